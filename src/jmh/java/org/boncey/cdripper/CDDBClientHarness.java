@@ -0,0 +1,458 @@
+package org.boncey.cdripper;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.boncey.cdripper.model.CDInfo;
+import org.boncey.cdripper.model.DiscToc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the {@link CDDBClient} against stub CDDB mirrors on the loopback interface, so the mirror racing and timeouts
+ * are exercised without the network.
+ *
+ * The stub serves a mirror that never answers, one that has no match, and one that answers the recorded query and
+ * entry for the benchmarks' CD after a short delay. A port with nothing listening stands in for a mirror that's down.
+ * The answer parsing is also checked on multi-line and escaped values. Each check is reported and the harness exits
+ * non-zero if any failed.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec@cddb-stub
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class CDDBClientHarness
+{
+
+    /**
+     * The recorded CD's track offsets, in frames including the lead-in.
+     */
+    private static final int[] OFFSETS = { 150, 18720, 40345, 57965, 73435, 91822, 110782, 127387, 145179, 161344, 179424 };
+
+
+    /**
+     * The recorded CD's lead-out, in frames including the lead-in.
+     */
+    private static final int LEAD_OUT = 192140;
+
+
+    /**
+     * The recorded CD's disc ID.
+     */
+    private static final String DISC_ID = "a809ff0b";
+
+
+    /**
+     * How long the good mirror takes to answer, so the mirror with no match answers first.
+     */
+    private static final int GOOD_DELAY_MS = 300;
+
+
+    /**
+     * The connect timeout for the lookups.
+     */
+    private static final int CONNECT_TIMEOUT_MS = 500;
+
+
+    /**
+     * The read timeout for the lookups, the slow mirror is given up on after this.
+     */
+    private static final int READ_TIMEOUT_MS = 1000;
+
+
+    /**
+     * Released when the harness is finished, so the slow mirror's requests don't hold up the stub's shutdown.
+     */
+    private final CountDownLatch _finished = new CountDownLatch(1);
+
+
+    /**
+     * The recorded answer to the CD's read.
+     */
+    private List<String> _readAnswer;
+
+
+    /**
+     * The recorded answer to a query with several matches.
+     */
+    private List<String> _queryAnswer;
+
+
+    /**
+     * The stub mirrors.
+     */
+    private HttpServer _server;
+
+
+    /**
+     * The number of checks that failed.
+     */
+    private int _failures;
+
+
+    /**
+     * Run every check.
+     *
+     * @return whether they all passed.
+     * @throws IOException if unable to start the stub or read a recorded answer.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public boolean run() throws IOException, InterruptedException
+    {
+
+        _readAnswer = readTranscript("cddb_read_answer.txt");
+        _queryAnswer = readTranscript("cddb_query_answer.txt");
+
+        checkParsing();
+
+        startStub();
+        try
+        {
+            checkLookups();
+        }
+        finally
+        {
+            _finished.countDown();
+            _server.stop(0);
+        }
+
+        System.out.println(_failures == 0 ? "All checks passed" : String.format("%d checks failed", _failures));
+
+        return _failures == 0;
+    }
+
+
+    /**
+     * Check the query and entry parsing.
+     *
+     * @throws IOException if a valid answer can't be parsed.
+     */
+    private void checkParsing() throws IOException
+    {
+
+        List<String> matches = CDDBClient.parseMatches(_queryAnswer);
+        check("Query with inexact matches", matches != null && matches.size() == 3 && matches.get(2).startsWith("newage a809fe0b "),
+                String.valueOf(matches));
+        matches = CDDBClient.parseMatches(Arrays.asList("200 rock a809ff0b Foals / Holy Fire"));
+        check("Query with an exact match", matches.equals(Arrays.asList("rock a809ff0b Foals / Holy Fire")), String.valueOf(matches));
+        matches = CDDBClient.parseMatches(Arrays.asList("202 No match for disc ID a809ff0b."));
+        check("Query with no match", matches == null, String.valueOf(matches));
+
+        CDInfo cdInfo = CDDBClient.parseEntry(_readAnswer, OFFSETS.length);
+        check("Entry's DTITLE split over two lines", "Foals".equals(cdInfo.getArtist()) && "Holy Fire".equals(cdInfo.getAlbum()),
+                describe(cdInfo));
+        check("Entry's TTITLE split over two lines", "Milk & Black Spiders".equals(cdInfo.getTracks().get(7)), cdInfo.getTracks().get(7));
+
+        // Values are joined before they're unescaped, so an escape may be split across lines
+        cdInfo = CDDBClient.parseEntry(Arrays.asList("210 misc 00000001 CD database entry follows", "DTITLE=Various\\\\Art",
+                "DTITLE=ists / Best \\\\o/", "TTITLE0=Tab\\", "TTITLE0=tSeparated", ".", "TTITLE1=Ignored after the terminator"), 1);
+        check("Entry with escapes split across lines", "Various\\Artists".equals(cdInfo.getArtist())
+                && "Best \\o/".equals(cdInfo.getAlbum()) && "Tab\tSeparated".equals(cdInfo.getTracks().get(0)),
+                describe(cdInfo) + " " + cdInfo.getTracks());
+
+        checkRejected("Entry without a terminator", _readAnswer.subList(0, _readAnswer.size() - 1), OFFSETS.length);
+        checkRejected("Entry with fewer tracks than the CD", _readAnswer, OFFSETS.length + 1);
+        checkRejected("Entry with more tracks than the CD", _readAnswer, OFFSETS.length - 1);
+        checkRejected("Error answer", Arrays.asList("401 rock a809ff0b No such CD entry in database."), OFFSETS.length);
+    }
+
+
+    /**
+     * Check an entry is rejected.
+     *
+     * @param name the check's name.
+     * @param answer the answer.
+     * @param trackCount the number of tracks on the CD.
+     */
+    private void checkRejected(String name, List<String> answer, int trackCount)
+    {
+
+        try
+        {
+            CDInfo cdInfo = CDDBClient.parseEntry(answer, trackCount);
+            check(name, false, "parsed as " + describe(cdInfo));
+        }
+        catch (IOException e)
+        {
+            check(name, true, e.getMessage());
+        }
+    }
+
+
+    /**
+     * Check looking the CD up against different sets of stub mirrors.
+     *
+     * @throws IOException if unable to find a port for the refused mirror.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private void checkLookups() throws IOException, InterruptedException
+    {
+
+        DiscToc toc = new DiscToc(OFFSETS, LEAD_OUT);
+        check("Disc ID", DISC_ID.equals(toc.getDiscId()), toc.getDiscId());
+
+        String slow = mirror("slow");
+        String noMatch = mirror("nomatch");
+        String good = mirror("good");
+        String refused = refusedMirror();
+
+        long started = System.nanoTime();
+        CDInfo cdInfo = lookup(toc, slow, noMatch, refused, good);
+        long millis = elapsed(started);
+        check("Lookup takes the good mirror's answer", cdInfo.recognised() && "Holy Fire".equals(cdInfo.getAlbum()), describe(cdInfo));
+        check("Lookup isn't held up by the slow mirror", millis < READ_TIMEOUT_MS, millis + " ms");
+
+        started = System.nanoTime();
+        cdInfo = lookup(toc, slow, noMatch, refused);
+        millis = elapsed(started);
+        check("Lookup without the good mirror is unrecognised", !cdInfo.recognised(), describe(cdInfo));
+        check("Lookup gives up on the slow mirror in time", millis >= READ_TIMEOUT_MS && millis < CONNECT_TIMEOUT_MS + READ_TIMEOUT_MS + 1000,
+                millis + " ms");
+
+        started = System.nanoTime();
+        cdInfo = lookup(toc, refused);
+        millis = elapsed(started);
+        check("Lookup with every mirror down is unrecognised at once", !cdInfo.recognised() && millis < CONNECT_TIMEOUT_MS, millis + " ms");
+    }
+
+
+    /**
+     * Look the CD up.
+     *
+     * @param toc the CD's table of contents.
+     * @param mirrors the mirrors to ask.
+     * @return the CD info.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private CDInfo lookup(DiscToc toc, String... mirrors) throws InterruptedException
+    {
+
+        CDDBClient client = new CDDBClient(Arrays.asList(mirrors));
+        client.setTimeouts(CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+
+        return client.lookup(toc);
+    }
+
+
+    /**
+     * Start the stub mirrors, each at its own path on one server.
+     *
+     * @throws IOException if unable to start the server.
+     */
+    private void startStub() throws IOException
+    {
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cddb-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        _server.createContext("/slow/cddb.cgi", exchange -> {
+            try
+            {
+                _finished.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        _server.createContext("/nomatch/cddb.cgi", exchange -> answer(exchange, Arrays.asList("202 No match found.")));
+        _server.createContext("/good/cddb.cgi", exchange -> {
+            try
+            {
+                Thread.sleep(GOOD_DELAY_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            String[] command = getCommand(exchange).split(" ");
+            if (command[1].equals("query") && command[2].equals(DISC_ID))
+            {
+                answer(exchange, Arrays.asList("200 rock " + DISC_ID + " Foals / Holy Fire"));
+            }
+            else if (command[1].equals("read") && command[3].equals(DISC_ID))
+            {
+                answer(exchange, _readAnswer);
+            }
+            else
+            {
+                answer(exchange, Arrays.asList("202 No match found."));
+            }
+        });
+        _server.start();
+    }
+
+
+    /**
+     * Get a stub mirror's URL.
+     *
+     * @param name the stub's name.
+     * @return the URL.
+     */
+    private String mirror(String name)
+    {
+
+        return String.format("http://127.0.0.1:%d/%s/cddb.cgi", _server.getAddress().getPort(), name);
+    }
+
+
+    /**
+     * Get the URL of a mirror that refuses connections, on a port that was free a moment ago.
+     *
+     * @return the URL.
+     * @throws IOException if unable to find a free port.
+     */
+    private String refusedMirror() throws IOException
+    {
+
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return String.format("http://127.0.0.1:%d/cddb.cgi", socket.getLocalPort());
+        }
+    }
+
+
+    /**
+     * Get the CDDB command from a request.
+     *
+     * @param exchange the request.
+     * @return the command.
+     * @throws IOException never, UTF-8 is always supported.
+     */
+    private static String getCommand(HttpExchange exchange) throws IOException
+    {
+
+        for (String param : exchange.getRequestURI().getRawQuery().split("&"))
+        {
+            if (param.startsWith("cmd="))
+            {
+                return URLDecoder.decode(param.substring(4), StandardCharsets.UTF_8.name());
+            }
+        }
+
+        return "";
+    }
+
+
+    /**
+     * Send an answer.
+     *
+     * @param exchange the request.
+     * @param lines the answer's lines.
+     * @throws IOException if unable to send the answer.
+     */
+    private static void answer(HttpExchange exchange, List<String> lines) throws IOException
+    {
+
+        byte[] body = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+
+    /**
+     * Report a check.
+     *
+     * @param name the check's name.
+     * @param passed whether it passed.
+     * @param detail what was found.
+     */
+    private void check(String name, boolean passed, String detail)
+    {
+
+        System.out.println(String.format("%s: %s (%s)", passed ? "PASS" : "FAIL", name, detail));
+        if (!passed)
+        {
+            _failures++;
+        }
+    }
+
+
+    /**
+     * Describe a CD for a check's report.
+     *
+     * @param cdInfo the CD info.
+     * @return its directory name, or unrecognised.
+     */
+    private static String describe(CDInfo cdInfo)
+    {
+
+        return cdInfo.recognised() ? cdInfo.getDir() : "unrecognised";
+    }
+
+
+    /**
+     * Get the time since a check started.
+     *
+     * @param started when it started, from {@link System#nanoTime()}.
+     * @return the elapsed milliseconds.
+     */
+    private static long elapsed(long started)
+    {
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+
+    /**
+     * Read a recorded answer.
+     *
+     * @param name the answer's resource name.
+     * @return the lines.
+     * @throws IOException if unable to read the answer.
+     */
+    private static List<String> readTranscript(String name) throws IOException
+    {
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(CDDBClientHarness.class.getResourceAsStream(name), StandardCharsets.UTF_8)))
+        {
+            String line = reader.readLine();
+            while (line != null)
+            {
+                lines.add(line);
+                line = reader.readLine();
+            }
+        }
+
+        return lines;
+    }
+
+
+    /**
+     * Run the checks.
+     *
+     * @param args none.
+     * @throws Exception if unable to run the checks.
+     */
+    public static void main(String[] args) throws Exception
+    {
+
+        if (!new CDDBClientHarness().run())
+        {
+            System.exit(-1);
+        }
+    }
+}
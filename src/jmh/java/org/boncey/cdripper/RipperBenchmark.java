@@ -0,0 +1,146 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.model.CDInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the rippers' filename tidying and the CDDB client's parsing of recorded cddb.cgi answers.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RipperBenchmark
+{
+
+    /**
+     * The number of tracks on the recorded CD.
+     */
+    private static final int TRACK_COUNT = 11;
+
+
+    /**
+     * The MacOS ripper, only used for its tidying.
+     */
+    private MacOSRipper _macRipper;
+
+
+    /**
+     * A recorded cddb.cgi answer to a query, with several matches.
+     */
+    private List<String> _queryAnswer;
+
+
+    /**
+     * A recorded cddb.cgi answer to a read, the CD's database entry.
+     */
+    private List<String> _readAnswer;
+
+
+    /**
+     * Create the ripper and load the transcripts.
+     *
+     * @throws IOException if unable to read a transcript.
+     * @throws InterruptedException never.
+     */
+    @Setup
+    public void setup() throws IOException, InterruptedException
+    {
+
+        File baseDir = new File(System.getProperty("java.io.tmpdir"));
+        _macRipper = new MacOSRipper(baseDir, Collections.<String> emptyList());
+        _queryAnswer = readTranscript("cddb_query_answer.txt");
+        _readAnswer = readTranscript("cddb_read_answer.txt");
+    }
+
+
+    /**
+     * Tidy a track filename.
+     *
+     * @return the tidied filename.
+     */
+    @Benchmark
+    public String tidyFilename()
+    {
+
+        return _macRipper.tidyFilename("07 - Out of the Woods: \"Live\" <Demo>/Remix?.wav");
+    }
+
+
+    /**
+     * Parse a CDDB query's matches.
+     *
+     * @return the matches.
+     * @throws IOException never.
+     */
+    @Benchmark
+    public List<String> parseQuery() throws IOException
+    {
+
+        return CDDBClient.parseMatches(_queryAnswer);
+    }
+
+
+    /**
+     * Parse a CD's CDDB entry.
+     *
+     * @return the CD info.
+     * @throws IOException never.
+     */
+    @Benchmark
+    public CDInfo parseEntry() throws IOException
+    {
+
+        return CDDBClient.parseEntry(_readAnswer, TRACK_COUNT);
+    }
+
+
+    /**
+     * Read a recorded transcript.
+     *
+     * @param name the transcript's resource name.
+     * @return the lines.
+     * @throws IOException if unable to read the transcript.
+     */
+    private List<String> readTranscript(String name) throws IOException
+    {
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(RipperBenchmark.class.getResourceAsStream(name), StandardCharsets.UTF_8)))
+        {
+            String line = reader.readLine();
+            while (line != null)
+            {
+                lines.add(line);
+                line = reader.readLine();
+            }
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,636 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.encoder.AppleLosslessEncoder;
+import org.boncey.cdripper.encoder.AppleLossyEncoder;
+import org.boncey.cdripper.encoder.FlacEncoder;
+import org.boncey.cdripper.encoder.Mp3Encoder;
+import org.boncey.cdripper.encoder.OggEncoder;
+import org.boncey.cdripper.process.ProcessResult;
+import org.boncey.cdripper.process.RunningProcess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how the whole {@link EncoderQueue} pipeline scales with workers, formats and library size, without real CDs
+ * or real encoders.
+ *
+ * For each configuration a library of synthetic wav files is generated in the 'Artist - Album/NN - Title.wav' layout,
+ * and EncoderQueue is run on it in a separate JVM with stub flac, lame, oggenc and ffmpeg binaries first on the PATH.
+ * Each stub reads its input, burns a configurable amount of CPU and writes a small output file. Tracks per second,
+ * average queue wait, core utilisation and wall-clock time are reported for each configuration, as a table and as
+ * JSON.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec@throughput -Dthroughput.args="--workers 1,2,4 --formats 1,3"
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class ThroughputHarness
+{
+
+    /**
+     * The encoders to use, the first N are used for N formats.
+     */
+    private static final String[][] FORMATS =
+    {
+            { "flac", FlacEncoder.class.getName() },
+            { "ogg", OggEncoder.class.getName() },
+            { "mp3", Mp3Encoder.class.getName() },
+            { "alac", AppleLosslessEncoder.class.getName() },
+            { "aac", AppleLossyEncoder.class.getName() }
+    };
+
+
+    /**
+     * The binaries to stub.
+     */
+    private static final String[] STUBS = { "flac", "oggenc", "lame", "ffmpeg" };
+
+
+    /**
+     * The stub encoder, it reads its input, burns $STUB_BURN iterations of CPU, then writes its output.
+     */
+    private static final String STUB_SCRIPT = String.join("\n",
+            "#!/bin/sh",
+            "# Stub encoder for the throughput harness",
+            "[ $# -eq 1 ] && exit 0",
+            "in=''; out=''; prev=''; penult=''; last=''",
+            "for a in \"$@\"; do",
+            "    [ \"$prev\" = '-o' ] && out=\"$a\"",
+            "    [ \"$prev\" = '-i' ] && in=\"$a\"",
+            "    prev=\"$a\"; penult=\"$last\"; last=\"$a\"",
+            "done",
+            "case $(basename \"$0\") in",
+            "    lame) in=\"$penult\"; out=\"$last\";;",
+            "    ffmpeg) out=\"$last\";;",
+            "    *) in=\"$last\";;",
+            "esac",
+            "if [ \"$in\" = '-' ]; then cat > /dev/null; else cat \"$in\" > /dev/null; fi || exit 1",
+            "awk -v n=\"${STUB_BURN:-0}\" 'BEGIN { for (i = 0; i < n; i++) x += i * i }'",
+            "echo stub > \"$out\"",
+            "");
+
+
+    /**
+     * Bytes per second of CD audio.
+     */
+    private static final int BYTES_PER_SECOND = 44100 * 2 * 2;
+
+
+    /**
+     * The length of a wav header.
+     */
+    private static final int WAV_HEADER = 44;
+
+
+    /**
+     * Matches each format's line of the scheduler's report.
+     */
+    private static final Pattern REPORT_PATTERN = Pattern.compile(".*: encoded (\\d+) tracks, (\\d+) failed, .*average queue wait (\\d+) ms$");
+
+
+    /**
+     * The numbers of workers to try.
+     */
+    private List<Integer> _workers;
+
+
+    /**
+     * The numbers of formats to try.
+     */
+    private List<Integer> _formats;
+
+
+    /**
+     * The library sizes to try, in albums.
+     */
+    private List<Integer> _albums;
+
+
+    /**
+     * The number of tracks on each album.
+     */
+    private int _tracks = 10;
+
+
+    /**
+     * The length of each track.
+     */
+    private int _seconds = 2;
+
+
+    /**
+     * The CPU each stub encode burns, in awk loop iterations.
+     */
+    private long _burn = 300000;
+
+
+    /**
+     * Whether to run EncoderQueue in fan-out mode.
+     */
+    private boolean _fanOut;
+
+
+    /**
+     * Where to write the JSON results.
+     */
+    private File _out = new File("target/throughput.json");
+
+
+    /**
+     * Where to build the libraries and outputs.
+     */
+    private File _workDir = new File("target/throughput");
+
+
+    /**
+     * Default constructor.
+     */
+    public ThroughputHarness()
+    {
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        _workers = cores > 1 ? Arrays.asList(1, cores) : Arrays.asList(1, 2);
+        _formats = Arrays.asList(2);
+        _albums = Arrays.asList(4);
+    }
+
+
+    /**
+     * Run every configuration and report the results.
+     *
+     * @throws IOException if unable to build or read the libraries.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException
+    {
+
+        delete(_workDir);
+        File stubDir = new File(_workDir, "bin");
+        stubDir.mkdirs();
+        for (String stub : STUBS)
+        {
+            File script = new File(stubDir, stub);
+            Files.write(script.toPath(), STUB_SCRIPT.getBytes(StandardCharsets.UTF_8));
+            script.setExecutable(true);
+        }
+
+        System.out.println(String.format("%8s %8s %8s %8s %10s %10s %12s %10s %8s", "workers", "formats", "albums", "tracks", "encodes",
+                "tracks/s", "queue wait", "cores", "wall s"));
+
+        List<Result> results = new ArrayList<>();
+        for (int albums : _albums)
+        {
+            for (int formats : _formats)
+            {
+                for (int workers : _workers)
+                {
+                    Result result = runConfiguration(stubDir, workers, formats, albums);
+                    System.out.println(String.format("%8d %8d %8d %8d %10d %10.2f %9d ms %10.2f %8.2f%s", workers, formats, albums, result._tracks,
+                            result._encoded, result.tracksPerSecond(), result._queueWaitMillis, result._coresBusy, result._wallSeconds,
+                            result._failed > 0 ? String.format(" (%d failed)", result._failed) : ""));
+                    results.add(result);
+                }
+            }
+        }
+
+        writeJson(results);
+        System.out.println("Results written to " + _out);
+    }
+
+
+    /**
+     * Run EncoderQueue over a freshly generated library.
+     *
+     * @param stubDir the directory holding the stub encoders.
+     * @param workers the number of workers.
+     * @param formats the number of formats.
+     * @param albums the number of albums.
+     * @return the result.
+     * @throws IOException if unable to build the library or run EncoderQueue.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private Result runConfiguration(File stubDir, int workers, int formats, int albums) throws IOException, InterruptedException
+    {
+
+        File runDir = new File(_workDir, String.format("run-%d-%d-%d", workers, formats, albums));
+        File baseDir = new File(runDir, "ripped");
+        generateLibrary(baseDir, albums);
+
+        File props = new File(runDir, "encoders.properties");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(props), StandardCharsets.UTF_8))
+        {
+            for (int i = 0; i < formats; i++)
+            {
+                String label = FORMATS[i][0];
+                File location = new File(runDir, label);
+                location.mkdirs();
+                out.write(String.format("encoder.class.%s=%s%n", label, FORMATS[i][1]));
+                out.write(String.format("encoder.location.%s=%s%n", label, location.getAbsolutePath()));
+            }
+            out.write(String.format("encoder.workers=%d%n", workers));
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-Duser.home=" + new File(runDir, "home").getAbsolutePath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(EncoderQueue.class.getName());
+        if (_fanOut)
+        {
+            command.add("--fan-out");
+        }
+        command.add(baseDir.getAbsolutePath());
+        command.add(props.getAbsolutePath());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().put("PATH", stubDir.getAbsolutePath() + File.pathSeparator + System.getenv("PATH"));
+        builder.environment().put("STUB_BURN", String.valueOf(_burn));
+
+        Result result = new Result(workers, formats, albums, albums * _tracks);
+        List<Long> waits = new ArrayList<>();
+
+        long[] cpuBefore = readCpu();
+        long start = System.nanoTime();
+        ProcessResult process = RunningProcess.start(builder, line -> {
+            Matcher m = REPORT_PATTERN.matcher(line);
+            if (m.matches())
+            {
+                result._encoded += Integer.parseInt(m.group(1));
+                result._failed += Integer.parseInt(m.group(2));
+                waits.add(Long.parseLong(m.group(3)));
+            }
+        }, null).waitFor();
+        result._wallSeconds = (System.nanoTime() - start) / 1e9;
+        long[] cpuAfter = readCpu();
+
+        if (!process.isSuccess())
+        {
+            process.reportFailure();
+        }
+
+        long totalWait = 0;
+        for (long wait : waits)
+        {
+            totalWait += wait;
+        }
+        result._queueWaitMillis = waits.isEmpty() ? 0 : totalWait / waits.size();
+
+        if (cpuBefore != null && cpuAfter != null && cpuAfter[1] > cpuBefore[1])
+        {
+            double busy = (double)(cpuAfter[0] - cpuBefore[0]) / (cpuAfter[1] - cpuBefore[1]);
+            result._coresBusy = busy * Runtime.getRuntime().availableProcessors();
+        }
+        else
+        {
+            result._coresBusy = Double.NaN;
+        }
+
+        delete(runDir);
+
+        return result;
+    }
+
+
+    /**
+     * Generate a library of wav files of pseudo-random audio.
+     *
+     * @param baseDir the directory to generate in.
+     * @param albums the number of albums.
+     * @throws IOException if unable to write the files.
+     */
+    private void generateLibrary(File baseDir, int albums) throws IOException
+    {
+
+        int dataLength = _seconds * BYTES_PER_SECOND;
+        byte[] track = new byte[WAV_HEADER + dataLength];
+        new Random(42).nextBytes(track);
+
+        ByteBuffer header = ByteBuffer.wrap(track, 0, WAV_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + dataLength).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short)1).putShort((short)2).putInt(44100).putInt(BYTES_PER_SECOND)
+                .putShort((short)4).putShort((short)16);
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(dataLength);
+
+        for (int album = 0; album < albums; album++)
+        {
+            File albumDir = new File(baseDir, String.format("Artist %d - Album %d", album, album));
+            albumDir.mkdirs();
+            for (int i = 1; i <= _tracks; i++)
+            {
+                try (OutputStream out = new FileOutputStream(new File(albumDir, String.format("%02d - Title %d.wav", i, i))))
+                {
+                    out.write(track);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Read the busy and total CPU time across all cores, Linux only.
+     *
+     * @return the busy and total jiffies, or null if not available.
+     */
+    private long[] readCpu()
+    {
+
+        File stat = new File("/proc/stat");
+        if (!stat.canRead())
+        {
+            return null;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(stat)))
+        {
+            // cpu user nice system idle iowait irq softirq steal ...
+            String[] fields = reader.readLine().trim().split("\\s+");
+            long total = 0;
+            for (int i = 1; i < fields.length && i <= 8; i++)
+            {
+                total += Long.parseLong(fields[i]);
+            }
+            long idle = Long.parseLong(fields[4]) + Long.parseLong(fields[5]);
+
+            return new long[] { total - idle, total };
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Write the results as JSON.
+     *
+     * @param results the results.
+     * @throws IOException if unable to write the file.
+     */
+    private void writeJson(List<Result> results) throws IOException
+    {
+
+        File dir = _out.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++)
+        {
+            Result r = results.get(i);
+            json.append(String.format(
+                    "  {\"workers\": %d, \"formats\": %d, \"albums\": %d, \"tracks\": %d, \"fanOut\": %b, \"encoded\": %d, \"failed\": %d, "
+                            + "\"tracksPerSecond\": %.3f, \"queueWaitMillis\": %d, \"coresBusy\": %s, \"wallSeconds\": %.3f}",
+                    r._workers, r._formats, r._albums, r._tracks, _fanOut, r._encoded, r._failed, r.tracksPerSecond(), r._queueWaitMillis,
+                    Double.isNaN(r._coresBusy) ? "null" : String.format("%.3f", r._coresBusy), r._wallSeconds));
+            json.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("]\n");
+
+        Files.write(_out.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Delete a directory and everything below it.
+     *
+     * @param dir the directory.
+     * @throws IOException if unable to delete the files.
+     */
+    private static void delete(File dir) throws IOException
+    {
+
+        if (!dir.exists())
+        {
+            return;
+        }
+
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>()
+        {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException
+            {
+
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    /**
+     * Parse a comma separated list of counts.
+     *
+     * @param value the list.
+     * @return the counts.
+     */
+    private static List<Integer> parseCounts(String value)
+    {
+
+        List<Integer> counts = new ArrayList<>();
+        for (String count : value.split(","))
+        {
+            counts.add(Integer.valueOf(count.trim()));
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * The outcome of one configuration.
+     */
+    private static final class Result
+    {
+
+        /**
+         * The number of workers.
+         */
+        private final int _workers;
+
+
+        /**
+         * The number of formats.
+         */
+        private final int _formats;
+
+
+        /**
+         * The number of albums.
+         */
+        private final int _albums;
+
+
+        /**
+         * The number of tracks.
+         */
+        private final int _tracks;
+
+
+        /**
+         * The number of encodes that succeeded, across all formats.
+         */
+        private int _encoded;
+
+
+        /**
+         * The number of encodes that failed, across all formats.
+         */
+        private int _failed;
+
+
+        /**
+         * The average queue wait across formats.
+         */
+        private long _queueWaitMillis;
+
+
+        /**
+         * The average number of cores busy, NaN if not known.
+         */
+        private double _coresBusy;
+
+
+        /**
+         * The wall-clock time.
+         */
+        private double _wallSeconds;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param workers the number of workers.
+         * @param formats the number of formats.
+         * @param albums the number of albums.
+         * @param tracks the number of tracks.
+         */
+        private Result(int workers, int formats, int albums, int tracks)
+        {
+
+            _workers = workers;
+            _formats = formats;
+            _albums = albums;
+            _tracks = tracks;
+        }
+
+
+        /**
+         * Get the number of tracks encoded to every format per second.
+         *
+         * @return the tracks per second.
+         */
+        private double tracksPerSecond()
+        {
+
+            return _tracks / _wallSeconds;
+        }
+    }
+
+
+    /**
+     * Run the harness.
+     *
+     * @param args the options.
+     * @throws Exception if the harness fails.
+     */
+    public static void main(String[] args) throws Exception
+    {
+
+        ThroughputHarness harness = new ThroughputHarness();
+        for (int i = 0; i < args.length; i++)
+        {
+            String option = args[i];
+            if ("--fan-out".equals(option))
+            {
+                harness._fanOut = true;
+                continue;
+            }
+
+            if (i + 1 >= args.length)
+            {
+                usage();
+            }
+            String value = args[++i];
+            switch (option)
+            {
+                case "--workers":
+                    harness._workers = parseCounts(value);
+                    break;
+                case "--formats":
+                    harness._formats = parseCounts(value);
+                    for (int formats : harness._formats)
+                    {
+                        if (formats < 1 || formats > FORMATS.length)
+                        {
+                            usage();
+                        }
+                    }
+                    break;
+                case "--albums":
+                    harness._albums = parseCounts(value);
+                    break;
+                case "--tracks":
+                    harness._tracks = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    harness._seconds = Integer.parseInt(value);
+                    break;
+                case "--burn":
+                    harness._burn = Long.parseLong(value);
+                    break;
+                case "--out":
+                    harness._out = new File(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        harness.run();
+    }
+
+
+    /**
+     * Print the usage and exit.
+     */
+    private static void usage()
+    {
+
+        System.err.println(String.format("Usage: ThroughputHarness [--workers 1,2,4] [--formats 1,%d] [--albums 4,16] [--tracks 10] [--seconds 2] "
+                + "[--burn <awk iterations per encode>] [--fan-out] [--out results.json]", FORMATS.length));
+        System.exit(-1);
+    }
+}
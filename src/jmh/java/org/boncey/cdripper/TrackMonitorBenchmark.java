@@ -0,0 +1,116 @@
+package org.boncey.cdripper;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks the {@link FileDeletingTrackMonitor} with several workers reporting encodes at once.
+ *
+ * Each track is monitored for two encoders but only reported once, so no files are ever deleted.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TrackMonitorBenchmark
+{
+
+    /**
+     * The number of tracks each worker cycles through.
+     */
+    private static final int TRACKS = 64;
+
+
+    /**
+     * The monitor shared by every worker.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedMonitor
+    {
+
+        /**
+         * The monitor.
+         */
+        private final FileDeletingTrackMonitor _monitor = new FileDeletingTrackMonitor();
+
+
+        /**
+         * Numbers each worker so their tracks don't collide.
+         */
+        private final AtomicInteger _workers = new AtomicInteger();
+    }
+
+
+    /**
+     * The tracks one worker reports.
+     */
+    @State(Scope.Thread)
+    public static class Worker
+    {
+
+        /**
+         * The worker's tracks.
+         */
+        private final File[] _tracks = new File[TRACKS];
+
+
+        /**
+         * The next track to report.
+         */
+        private int _next;
+
+
+        /**
+         * Name the worker's tracks.
+         *
+         * @param shared the shared monitor.
+         */
+        @Setup
+        public void setup(SharedMonitor shared)
+        {
+
+            int worker = shared._workers.getAndIncrement();
+            for (int i = 0; i < TRACKS; i++)
+            {
+                _tracks[i] = new File(String.format("/music/ripped/Worker %d - Album/%02d - Track.wav", worker, i));
+            }
+        }
+    }
+
+
+    /**
+     * Monitor a track then report one of its encodes.
+     *
+     * @param shared the shared monitor.
+     * @param worker this worker's tracks.
+     */
+    @Benchmark
+    public void monitorAndReport(SharedMonitor shared, Worker worker)
+    {
+
+        File track = worker._tracks[worker._next];
+        worker._next = (worker._next + 1) % TRACKS;
+
+        shared._monitor.monitor(track, 2);
+        shared._monitor.successfullyEncoded(track);
+    }
+}
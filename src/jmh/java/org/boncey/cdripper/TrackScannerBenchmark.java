@@ -0,0 +1,179 @@
+package org.boncey.cdripper;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks scanning a generated library for wav files, with and without the previous scan's snapshot.
+ *
+ * This replaces benchmarking EncoderQueue.findRawFiles, which {@link TrackScanner} replaced.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackScannerBenchmark
+{
+
+    /**
+     * The number of tracks on each album.
+     */
+    private static final int TRACKS_PER_ALBUM = 12;
+
+
+    /**
+     * The number of albums to generate.
+     */
+    @Param({ "100", "1000" })
+    private int _albums;
+
+
+    /**
+     * The generated library.
+     */
+    private File _baseDir;
+
+
+    /**
+     * Generate a library of empty wav files, with a cover image alongside each album.
+     *
+     * @throws IOException if unable to create the files.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+
+        _baseDir = Files.createTempDirectory("scan-bench").toFile();
+        for (int album = 0; album < _albums; album++)
+        {
+            File albumDir = new File(_baseDir, String.format("Artist %d - Album %d", album % 50, album));
+            albumDir.mkdir();
+            for (int track = 1; track <= TRACKS_PER_ALBUM; track++)
+            {
+                new File(albumDir, String.format("%02d - Track %d.wav", track, track)).createNewFile();
+            }
+            new File(albumDir, "cover.jpg").createNewFile();
+        }
+
+        // Old enough for the snapshot to trust
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        File[] dirs = _baseDir.listFiles(File::isDirectory);
+        for (File dir : dirs)
+        {
+            Files.setLastModifiedTime(dir.toPath(), old);
+        }
+        Files.setLastModifiedTime(_baseDir.toPath(), old);
+
+        TrackScanner scanner = new TrackScanner(_baseDir);
+        try
+        {
+            scanner.scan(wavFile -> {
+            });
+        }
+        catch (InterruptedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        scanner.saveSnapshot();
+    }
+
+
+    /**
+     * Delete the generated library.
+     *
+     * @throws IOException if unable to delete the files.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+
+        Files.walkFileTree(_baseDir.toPath(), new SimpleFileVisitor<Path>()
+        {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+            {
+
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    /**
+     * Scan, listing every directory.
+     *
+     * @param blackhole consumes the wav files found.
+     * @return the number of wav files found.
+     * @throws InterruptedException never.
+     */
+    @Benchmark
+    public int fullScan(Blackhole blackhole) throws InterruptedException
+    {
+
+        File snapshot = new File(_baseDir, TrackScanner.SNAPSHOT_NAME);
+        File moved = new File(_baseDir, TrackScanner.SNAPSHOT_NAME + ".bench");
+        snapshot.renameTo(moved);
+        try
+        {
+            return new TrackScanner(_baseDir).scan(blackhole::consume);
+        }
+        finally
+        {
+            moved.renameTo(snapshot);
+        }
+    }
+
+
+    /**
+     * Scan, reusing the snapshot for every unchanged directory.
+     *
+     * @param blackhole consumes the wav files found.
+     * @return the number of wav files found.
+     * @throws InterruptedException never.
+     */
+    @Benchmark
+    public int incrementalScan(Blackhole blackhole) throws InterruptedException
+    {
+
+        return new TrackScanner(_baseDir).scan(blackhole::consume);
+    }
+}
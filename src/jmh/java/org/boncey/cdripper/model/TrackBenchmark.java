@@ -0,0 +1,109 @@
+package org.boncey.cdripper.model;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks creating {@link Track}s and reading them as the encoders do.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackBenchmark
+{
+
+    /**
+     * The base dir the tracks are in.
+     */
+    private final File _baseDir = new File("/music/ripped");
+
+
+    /**
+     * A cdripper style 'Artist - Album' track.
+     */
+    private final File _wavFile = new File(_baseDir, "Foals - Holy Fire/07 - Out of the Woods.wav");
+
+
+    /**
+     * The location encoded files are saved to.
+     */
+    private final File _location = new File("/music/flac");
+
+
+    /**
+     * A parsed track.
+     */
+    private Track _track;
+
+
+    /**
+     * Create the parsed track.
+     */
+    @Setup
+    public void setup()
+    {
+
+        _track = Track.createTrack(_wavFile, _baseDir, ".wav");
+    }
+
+
+    /**
+     * Create a track from its wav file.
+     *
+     * @return the track.
+     */
+    @Benchmark
+    public Track createTrack()
+    {
+
+        return Track.createTrack(_wavFile, _baseDir, ".wav");
+    }
+
+
+    /**
+     * Read a track's fields as an encoder builds its command.
+     *
+     * @param blackhole consumes the fields.
+     */
+    @Benchmark
+    public void getters(Blackhole blackhole)
+    {
+
+        blackhole.consume(_track.getTrackName());
+        blackhole.consume(_track.getTrackNum());
+        blackhole.consume(_track.getArtist());
+        blackhole.consume(_track.getAlbum());
+    }
+
+
+    /**
+     * Build the filename a track is encoded to.
+     *
+     * @return the filename.
+     */
+    @Benchmark
+    public File constructFilename()
+    {
+
+        return _track.constructFilename(_location, ".flac");
+    }
+}
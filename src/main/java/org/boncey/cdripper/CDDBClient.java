@@ -0,0 +1,542 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.model.CDInfo;
+import org.boncey.cdripper.model.DiscToc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks CDs up using the CDDB protocol over HTTP, as served by gnudb and its mirrors.
+ *
+ * Each request is sent to every mirror at the same time and the first valid answer is used, so one slow or broken
+ * mirror doesn't hold up the rip. Every request has a connect and read timeout, and the whole lookup gives up once the
+ * mirrors have had the time for both.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class CDDBClient
+{
+
+    /**
+     * The mirror used if none have been configured.
+     */
+    public static final String DEFAULT_MIRROR = "http://gnudb.gnudb.org/~cddb/cddb.cgi";
+
+
+    /**
+     * The default time to wait to connect to a mirror.
+     */
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+
+    /**
+     * The default time to wait for a mirror to answer.
+     */
+    private static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+
+
+    /**
+     * The CDDB protocol level, 6 for UTF-8 answers.
+     */
+    private static final int PROTOCOL = 6;
+
+
+    /**
+     * The client name and version sent in the handshake.
+     */
+    private static final String CLIENT = "cdripper 1.0";
+
+
+    /**
+     * The line ending a multi-line answer.
+     */
+    private static final String TERMINATOR = ".";
+
+
+    /**
+     * The threads shared by all lookups for sending requests to the mirrors.
+     */
+    private static final ExecutorService REQUESTS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "cddb-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Guards the prompt for choosing between matches, so drives looking up at the same time take turns.
+     */
+    private static final Object PROMPT_LOCK = new Object();
+
+
+    /**
+     * Reads the choice between matches, shared so no typed-ahead input is lost between prompts.
+     */
+    private static BufferedReader _stdin;
+
+
+    /**
+     * The mirrors' cddb.cgi URLs.
+     */
+    private final List<String> _mirrors;
+
+
+    /**
+     * The time to wait to connect to a mirror.
+     */
+    private int _connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+
+
+    /**
+     * The time to wait for a mirror to answer.
+     */
+    private int _readTimeout = DEFAULT_READ_TIMEOUT_MS;
+
+
+    /**
+     * Default constructor, using gnudb.
+     */
+    public CDDBClient()
+    {
+
+        this(Collections.singletonList(DEFAULT_MIRROR));
+    }
+
+
+    /**
+     * Public constructor.
+     *
+     * @param mirrors the mirrors' cddb.cgi URLs, e.g. http://gnudb.gnudb.org/~cddb/cddb.cgi.
+     */
+    public CDDBClient(List<String> mirrors)
+    {
+
+        if (mirrors.isEmpty())
+        {
+            throw new IllegalArgumentException("No CDDB mirrors given");
+        }
+
+        _mirrors = new ArrayList<>(mirrors);
+    }
+
+
+    /**
+     * Set the timeouts for each request.
+     *
+     * @param connectTimeout the time to wait to connect to a mirror, in milliseconds.
+     * @param readTimeout the time to wait for a mirror to answer, in milliseconds.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout)
+    {
+
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+    }
+
+
+    /**
+     * Look a CD up, asking which to use if there's more than one match.
+     *
+     * @param toc the CD's table of contents.
+     * @return the CD info, unrecognised if no mirror has it or none could be reached.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public CDInfo lookup(DiscToc toc) throws InterruptedException
+    {
+
+        String query = query(toc);
+        List<String> matches = race(mirror -> parseMatches(request(mirror, query)));
+        if (matches == null)
+        {
+            return CDInfo.unknown(toc.getTrackCount());
+        }
+
+        String match = (matches.size() == 1) ? matches.get(0) : choose(matches);
+        if (match == null)
+        {
+            return CDInfo.unknown(toc.getTrackCount());
+        }
+
+        // The category and disc ID, the match's disc ID may differ from ours for an inexact match
+        String[] words = match.split(" ", 3);
+        String read = String.format("cddb read %s %s", words[0], words[1]);
+        CDInfo cdInfo = race(mirror -> parseEntry(request(mirror, read), toc.getTrackCount()));
+
+        return (cdInfo != null) ? cdInfo : CDInfo.unknown(toc.getTrackCount());
+    }
+
+
+    /**
+     * Get the query command for a CD.
+     *
+     * @param toc the CD's table of contents.
+     * @return the command.
+     */
+    static String query(DiscToc toc)
+    {
+
+        StringBuilder query = new StringBuilder("cddb query ");
+        query.append(toc.getDiscId()).append(' ').append(toc.getTrackCount());
+        for (int offset : toc.getOffsets())
+        {
+            query.append(' ').append(offset);
+        }
+        query.append(' ').append(toc.getSeconds());
+
+        return query.toString();
+    }
+
+
+    /**
+     * Send a request to every mirror at once and take the first valid answer, a mirror that hasn't got the CD may just
+     * be behind the others so its answer is only used if none of them have it.
+     *
+     * @param request sends the request to a mirror and parses the answer, null if the mirror hasn't got the CD.
+     * @param <T> the parsed answer.
+     * @return the first valid answer, or null if no mirror gave one in time.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private <T> T race(Request<T> request) throws InterruptedException
+    {
+
+        CompletionService<T> answers = new ExecutorCompletionService<>(REQUESTS);
+        List<Future<T>> pending = new ArrayList<>();
+        for (String mirror : _mirrors)
+        {
+            pending.add(answers.submit(() -> request.send(mirror)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_connectTimeout + _readTimeout);
+        try
+        {
+            for (int i = 0; i < pending.size(); i++)
+            {
+                Future<T> answer = answers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (answer == null)
+                {
+                    System.err.println("Timed out waiting for the CDDB mirrors");
+                    return null;
+                }
+
+                try
+                {
+                    T value = answer.get();
+                    if (value != null)
+                    {
+                        return value;
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    System.err.println(String.format("CDDB lookup failed: %s", e.getCause().getMessage()));
+                }
+            }
+
+            return null;
+        }
+        finally
+        {
+            for (Future<T> answer : pending)
+            {
+                answer.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * Send a command to a mirror.
+     *
+     * @param mirror the mirror's cddb.cgi URL.
+     * @param command the CDDB command.
+     * @return the answer's lines, its status line first.
+     * @throws IOException if the mirror can't be reached or doesn't answer in time.
+     */
+    private List<String> request(String mirror, String command) throws IOException
+    {
+
+        String hello = String.format("%s localhost %s", System.getProperty("user.name", "cdripper"), CLIENT);
+        URL url = new URL(String.format("%s?cmd=%s&hello=%s&proto=%d", mirror, encode(command), encode(hello), PROTOCOL));
+
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setConnectTimeout(_connectTimeout);
+        conn.setReadTimeout(_readTimeout);
+        try
+        {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+            {
+                throw new IOException(String.format("%s answered HTTP %d", mirror, conn.getResponseCode()));
+            }
+
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)))
+            {
+                String line = in.readLine();
+                while (line != null)
+                {
+                    lines.add(line);
+                    line = in.readLine();
+                }
+            }
+
+            if (lines.isEmpty())
+            {
+                throw new IOException(String.format("%s sent an empty answer", mirror));
+            }
+
+            return lines;
+        }
+        finally
+        {
+            conn.disconnect();
+        }
+    }
+
+
+    /**
+     * URL encode a request parameter.
+     *
+     * @param value the parameter.
+     * @return the encoded parameter, spaces as +.
+     * @throws IOException never, UTF-8 is always supported.
+     */
+    private static String encode(String value) throws IOException
+    {
+
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+
+    /**
+     * Parse the answer to a query.
+     *
+     * @param answer the answer's lines.
+     * @return each match's category, disc ID and title, or null if there were none.
+     * @throws IOException if the answer is an error or can't be parsed.
+     */
+    static List<String> parseMatches(List<String> answer) throws IOException
+    {
+
+        String status = answer.get(0);
+        switch (statusCode(status))
+        {
+            case 200:
+                // One exact match, on the status line
+                return Collections.singletonList(status.substring(4).trim());
+            case 202:
+                return null;
+            case 210:
+            case 211:
+                // Several matches, or inexact ones, one per line
+                return body(answer);
+            default:
+                throw new IOException(String.format("Unexpected answer '%s'", status));
+        }
+    }
+
+
+    /**
+     * Parse a CD's database entry.
+     *
+     * @param answer the answer's lines.
+     * @param trackCount the number of tracks on the CD.
+     * @return the CD info.
+     * @throws IOException if the answer is an error, can't be parsed or is for a different number of tracks.
+     */
+    static CDInfo parseEntry(List<String> answer, int trackCount) throws IOException
+    {
+
+        String status = answer.get(0);
+        if (statusCode(status) != 210)
+        {
+            throw new IOException(String.format("Unexpected answer '%s'", status));
+        }
+
+        // Long values are split over several lines with the same keyword
+        Map<String, StringBuilder> entry = new LinkedHashMap<>();
+        for (String line : body(answer))
+        {
+            int equals = line.indexOf('=');
+            if (!line.startsWith("#") && equals > 0)
+            {
+                entry.computeIfAbsent(line.substring(0, equals), k -> new StringBuilder()).append(line.substring(equals + 1));
+            }
+        }
+
+        StringBuilder title = entry.get("DTITLE");
+        if (title == null)
+        {
+            throw new IOException("The entry has no DTITLE");
+        }
+
+        // DTITLE is "artist / album", or just the title if the artist is the same
+        String dtitle = unescape(title.toString());
+        int slash = dtitle.indexOf(" / ");
+        CDInfo cdInfo = new CDInfo();
+        cdInfo.setArtist((slash == -1 ? dtitle : dtitle.substring(0, slash)).trim());
+        cdInfo.setAlbum((slash == -1 ? dtitle : dtitle.substring(slash + 3)).trim());
+
+        List<String> tracks = new ArrayList<>();
+        for (int i = 0; i < trackCount; i++)
+        {
+            StringBuilder track = entry.get("TTITLE" + i);
+            if (track == null)
+            {
+                throw new IOException(String.format("The entry has no title for track %d of %d", i + 1, trackCount));
+            }
+            tracks.add(unescape(track.toString()).trim());
+        }
+        if (entry.containsKey("TTITLE" + trackCount))
+        {
+            throw new IOException(String.format("The entry has more than %d tracks", trackCount));
+        }
+        cdInfo.setTracks(tracks);
+
+        return cdInfo;
+    }
+
+
+    /**
+     * Get the status code from an answer's status line.
+     *
+     * @param status the status line.
+     * @return the code.
+     * @throws IOException if the line doesn't start with a code.
+     */
+    private static int statusCode(String status) throws IOException
+    {
+
+        try
+        {
+            return Integer.parseInt(status.substring(0, Math.min(3, status.length())));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(String.format("Unexpected answer '%s'", status));
+        }
+    }
+
+
+    /**
+     * Get the lines of a multi-line answer after its status line.
+     *
+     * @param answer the answer's lines.
+     * @return the lines before the terminating '.'.
+     * @throws IOException if the answer isn't terminated, so may be incomplete.
+     */
+    private static List<String> body(List<String> answer) throws IOException
+    {
+
+        int end = answer.indexOf(TERMINATOR);
+        if (end == -1)
+        {
+            throw new IOException("The answer is incomplete");
+        }
+
+        return answer.subList(1, end);
+    }
+
+
+    /**
+     * Unescape a database entry's value.
+     *
+     * @param value the value, with \n, \t and \\ escaped.
+     * @return the unescaped value.
+     */
+    private static String unescape(String value)
+    {
+
+        StringBuilder unescaped = new StringBuilder();
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length())
+            {
+                char next = value.charAt(++i);
+                unescaped.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            }
+            else
+            {
+                unescaped.append(c);
+            }
+        }
+
+        return unescaped.toString();
+    }
+
+
+    /**
+     * Ask which match to use.
+     *
+     * @param matches each match's category, disc ID and title.
+     * @return the chosen match, or null to ignore them all.
+     */
+    private static String choose(List<String> matches)
+    {
+
+        synchronized (PROMPT_LOCK)
+        {
+            System.out.println(String.format("%d entries found:", matches.size()));
+            for (int i = 0; i < matches.size(); i++)
+            {
+                System.out.println(String.format("%d: %s", i + 1, matches.get(i)));
+            }
+            System.out.println("0: ignore");
+
+            try
+            {
+                if (_stdin == null)
+                {
+                    _stdin = new BufferedReader(new InputStreamReader(System.in));
+                }
+                String input = _stdin.readLine();
+                int choice = (input == null) ? 0 : Integer.parseInt(input.trim());
+
+                return (choice >= 1 && choice <= matches.size()) ? matches.get(choice - 1) : null;
+            }
+            catch (IOException | NumberFormatException e)
+            {
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * Sends a request to a mirror and parses its answer.
+     *
+     * @param <T> the parsed answer.
+     */
+    private interface Request<T>
+    {
+
+        /**
+         * Send the request.
+         *
+         * @param mirror the mirror's cddb.cgi URL.
+         * @return the parsed answer.
+         * @throws IOException if the mirror can't be reached or its answer isn't valid.
+         */
+        T send(String mirror) throws IOException;
+    }
+}
@@ -0,0 +1,181 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.model.CDInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Caches the info of CDs that have been looked up, one file per CD named by its freedb disc ID, so re-ripping a CD
+ * doesn't need the network.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class CDInfoCache
+{
+
+    /**
+     * The default cache directory, relative to the user's home directory.
+     */
+    private static final String DEFAULT_DIR = ".cdripper/cddb";
+
+
+    /**
+     * The property holding the artist.
+     */
+    private static final String ARTIST = "artist";
+
+
+    /**
+     * The property holding the album.
+     */
+    private static final String ALBUM = "album";
+
+
+    /**
+     * The property holding the number of tracks.
+     */
+    private static final String TRACKS = "tracks";
+
+
+    /**
+     * The prefix of the properties holding each track's title, followed by the track number.
+     */
+    private static final String TRACK = "track.";
+
+
+    /**
+     * The directory to cache the CD info in.
+     */
+    private final File _dir;
+
+
+    /**
+     * Default constructor, caching in the user's home directory.
+     */
+    public CDInfoCache()
+    {
+
+        this(new File(System.getProperty("user.home"), DEFAULT_DIR));
+    }
+
+
+    /**
+     * Public constructor.
+     *
+     * @param dir the directory to cache the CD info in.
+     */
+    public CDInfoCache(File dir)
+    {
+
+        _dir = dir;
+    }
+
+
+    /**
+     * Get a CD's cached info.
+     *
+     * @param discId the CD's disc ID.
+     * @param trackCount the number of tracks on the CD, an entry for a different number of tracks is ignored.
+     * @return the CD info, or null if it's not cached.
+     */
+    public CDInfo get(String discId, int trackCount)
+    {
+
+        File file = new File(_dir, discId);
+        if (!file.canRead())
+        {
+            return null;
+        }
+
+        Properties props = new Properties();
+        try (FileInputStream in = new FileInputStream(file))
+        {
+            props.load(in);
+
+            int count = Integer.parseInt(props.getProperty(TRACKS, "0"));
+            String artist = props.getProperty(ARTIST);
+            String album = props.getProperty(ALBUM);
+            if (count != trackCount || artist == null || album == null)
+            {
+                // A different CD with the same disc ID, or a damaged entry
+                return null;
+            }
+
+            List<String> tracks = new ArrayList<>();
+            for (int i = 1; i <= count; i++)
+            {
+                String track = props.getProperty(TRACK + i);
+                if (track == null)
+                {
+                    return null;
+                }
+                tracks.add(track);
+            }
+
+            CDInfo cdInfo = new CDInfo();
+            cdInfo.setArtist(artist);
+            cdInfo.setAlbum(album);
+            cdInfo.setTracks(tracks);
+
+            return cdInfo;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println(String.format("Ignoring unreadable CD info cache %s: %s", file, e.getMessage()));
+            return null;
+        }
+    }
+
+
+    /**
+     * Cache a CD's info, it's only an optimisation so failures are reported but ignored.
+     *
+     * @param discId the CD's disc ID.
+     * @param cdInfo the recognised CD info.
+     */
+    public void put(String discId, CDInfo cdInfo)
+    {
+
+        Properties props = new Properties();
+        props.setProperty(ARTIST, cdInfo.getArtist());
+        props.setProperty(ALBUM, cdInfo.getAlbum());
+        List<String> tracks = cdInfo.getTracks();
+        props.setProperty(TRACKS, String.valueOf(tracks.size()));
+        for (int i = 0; i < tracks.size(); i++)
+        {
+            props.setProperty(TRACK + (i + 1), tracks.get(i));
+        }
+
+        _dir.mkdirs();
+        File file = new File(_dir, discId);
+
+        // Write then rename so a concurrent rip never reads a partial file, another drive may be saving the same CD
+        File tempFile;
+        try
+        {
+            tempFile = File.createTempFile(discId, ".tmp", _dir);
+            try (FileOutputStream out = new FileOutputStream(tempFile))
+            {
+                props.store(out, cdInfo.getDir());
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to save CD info cache %s: %s", file, e.getMessage()));
+            return;
+        }
+
+        if (!tempFile.renameTo(file))
+        {
+            System.err.println(String.format("Unable to save CD info cache %s", file));
+        }
+    }
+}
@@ -1,14 +1,37 @@
 package org.boncey.cdripper;
 
+import org.boncey.cdripper.encoder.EncodeFanOut;
+import org.boncey.cdripper.encoder.EncodeTask;
+import org.boncey.cdripper.encoder.Encoder;
+import org.boncey.cdripper.encoder.JavaFlacEncoder;
+import org.boncey.cdripper.encoder.flac.FlacOutputStream;
 import org.boncey.cdripper.model.CDInfo;
+import org.boncey.cdripper.model.DiscToc;
+import org.boncey.cdripper.model.Track;
+import org.boncey.cdripper.process.CheckedStdout;
+import org.boncey.cdripper.process.LineHandler;
+import org.boncey.cdripper.process.ProcessResult;
+import org.boncey.cdripper.process.RunningProcess;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,14 +51,84 @@ public abstract class CDRipper
 
 
     /**
-     * The temporary directory where we create the CD files.
+     * The temporary directory where we create the CD files, suffixed with the drive's name when ripping from a chosen
+     * drive.
      */
-    private static final String TEMP_DIR = "TempDir";
+    static final String TEMP_DIR = "TempDir";
+
+    /**
+     * How long to wait for encoding to finish once the CD is ripped.
+     */
+    private static final int ENCODE_WAIT_MINUTES = 30;
+
+    /**
+     * The size of the buffer used to read the rip when encoding it to FLAC.
+     */
+    private static final int RIP_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The pattern for parsing each track in cdparanoia's table of contents, capturing its length and start in frames.
+     *
+     * E.g.   1.    16503 [03:40.03]        0 [00:00.00]    no   no  2
+     */
+    private static final String TOC_TRACK_PATTERN = "^\\s*\\d+\\.\\s+(\\d+) \\[[^\\]]*\\]\\s+(\\d+) \\[.*$";
+
+    /**
+     * The command that reads the whole table of contents, data tracks and all, which cdparanoia doesn't.
+     *
+     * With --musicbrainz it prints the track count, each track's start and the lead-out in frames including the lead-in.
+     */
+    private static final String DISC_ID_COMMAND = "cd-discid";
 
     private final File _baseDir;
 
     private final List<String> _trackListing;
 
+    /**
+     * The scheduler to encode each track with as soon as it's ripped, null to only rip.
+     */
+    private EncodeScheduler _scheduler;
+
+    /**
+     * The encoders to stream each track into as it's ripped, null to rip to a wav file first.
+     */
+    private List<Encoder> _streamEncoders;
+
+    /**
+     * Whether to keep the wav file when streaming into the encoders.
+     */
+    private boolean _keepWav = true;
+
+    /**
+     * Whether to rip each track to a FLAC file rather than a wav file.
+     */
+    private boolean _ripToFlac;
+
+    /**
+     * The drive to rip from, null for the default drive.
+     */
+    private String _device;
+
+    /**
+     * The working directory the CD is being ripped into.
+     */
+    private File _tmpDir;
+
+    /**
+     * The directory the ripped CD is moved to once encoded.
+     */
+    private File _dir;
+
+    /**
+     * The cache of CDs already looked up.
+     */
+    private final CDInfoCache _cache = new CDInfoCache();
+
+    /**
+     * The client for looking up CDs that aren't cached.
+     */
+    private CDDBClient _cddb = new CDDBClient();
+
     public CDRipper(File baseDir, List<String> trackListing)
     {
         _baseDir = baseDir;
@@ -43,98 +136,706 @@ public abstract class CDRipper
     }
 
     /**
-     * Rip the CD.
+     * Encode each track with this scheduler as soon as it has been ripped.
      *
-     * @throws IOException          if unable to interact with the external processes.
+     * @param scheduler the started scheduler, it will be shutdown once the CD is ripped.
+     */
+    public void setScheduler(EncodeScheduler scheduler)
+    {
+        _scheduler = scheduler;
+    }
+
+    /**
+     * Stream each track straight from cdparanoia into these encoders as it's ripped.
+     *
+     * @param encoders the encoders.
+     * @param keepWav whether to also save each track as a wav file.
+     */
+    public void setStreamEncoders(List<Encoder> encoders, boolean keepWav)
+    {
+        _streamEncoders = encoders;
+        _keepWav = keepWav;
+    }
+
+    /**
+     * Rip each track to a FLAC file rather than a wav file, taking half the space while waiting to be encoded.
+     *
+     * @param ripToFlac whether to rip to FLAC.
+     */
+    public void setRipToFlac(boolean ripToFlac)
+    {
+        _ripToFlac = ripToFlac;
+    }
+
+    /**
+     * Look CDs up with this client rather than one using gnudb.
+     *
+     * @param cddb the client.
+     */
+    public void setCDDBClient(CDDBClient cddb)
+    {
+        _cddb = cddb;
+    }
+
+    /**
+     * Rip from this drive rather than the default one, in a working directory of its own so that other drives can rip
+     * into the same base directory at the same time.
+     *
+     * @param device the drive's device, e.g. /dev/sr1.
+     */
+    public void setDevice(String device)
+    {
+        _device = device;
+    }
+
+    /**
+     * Get the drive being ripped from.
+     *
+     * @return the drive's device, null for the default drive.
+     */
+    protected String getDevice()
+    {
+        return _device;
+    }
+
+    /**
+     * Rip the CD and wait for it to be encoded.
+     *
+     * @throws IOException          if unable to interact with the external processes, or the CD can't be ripped.
      * @throws InterruptedException if this thread is interrupted.
      */
     public void start() throws IOException, InterruptedException
     {
-        File tmpDir = new File(_baseDir, TEMP_DIR);
-        boolean exists = tmpDir.exists() && !tmpDir.delete();
+        ripDisc();
 
-        if (!exists)
+        if (_scheduler != null)
         {
-            tmpDir.mkdir();
-
-            CDInfo cdInfo = getCDInfo(tmpDir);
-            File dir;
-
-            if (!cdInfo.recognised() && !_trackListing.isEmpty())
+            _scheduler.shutdown();
+            if (!_scheduler.awaitTermination(ENCODE_WAIT_MINUTES, TimeUnit.MINUTES))
             {
-                cdInfo.fromTrackListing(_trackListing);
+                throw new IOException(String.format("Encoding did not finish; leaving %s in place", _tmpDir));
             }
-            else if (!cdInfo.recognised())
+        }
+
+        finish();
+    }
+
+    /**
+     * Look up and rip the CD into the working directory, queueing each track to the scheduler if there is one, then
+     * eject it.
+     *
+     * Ripping starts straight away while the CD is looked up, into files named by track number, and they're renamed
+     * and queued once the CD info arrives.
+     *
+     * @throws IOException          if unable to interact with the external processes, or the CD can't be ripped.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public void ripDisc() throws IOException, InterruptedException
+    {
+        File tmpDir = new File(_baseDir, getTempDirName());
+        if (tmpDir.exists() && !tmpDir.delete())
+        {
+            throw new IOException(String.format("%s exists; clean up required", tmpDir));
+        }
+
+        tmpDir.mkdir();
+        _tmpDir = tmpDir;
+
+        DiscToc toc = readToc();
+        CDInfo cached = _cache.get(toc.getDiscId(), toc.getTrackCount());
+        FutureTask<CDInfo> lookup = new FutureTask<>(() -> (cached != null) ? cached : lookUp(toc));
+        if (cached != null)
+        {
+            System.out.println(String.format("Found %s in the CD info cache", toc.getDiscId()));
+            lookup.run();
+        }
+        else
+        {
+            Thread thread = new Thread(lookup, "lookup-" + tmpDir.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        CDInfo cdInfo = rip(toc.getAudioTrackCount(), lookup, tmpDir);
+        _dir = new File(_baseDir, cdInfo.getDir());
+    }
+
+    /**
+     * Look the CD up, falling back to the track listing if it's not recognised.
+     *
+     * @param toc the CD's table of contents.
+     * @return the CD info.
+     * @throws IOException          if the CD isn't recognised and there's no track listing.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private CDInfo lookUp(DiscToc toc) throws IOException, InterruptedException
+    {
+        CDInfo cdInfo = getCDInfo(toc);
+        if (cdInfo.recognised())
+        {
+            // Only what CDDB knows is cached, an offline rip's track listing mustn't stop it being looked up next time
+            _cache.put(toc.getDiscId(), cdInfo);
+        }
+        else if (!_trackListing.isEmpty())
+        {
+            cdInfo.fromTrackListing(_trackListing);
+        }
+        else
+        {
+            throw new IOException("Unable to recognise disk - provide a track listing file; aborting");
+        }
+
+        return cdInfo;
+    }
+
+    /**
+     * Wait for the CD to be looked up.
+     *
+     * @param lookup  the lookup.
+     * @param baseDir the directory being ripped into, emptied if the lookup failed as the tracks can't be named.
+     * @return the CD info.
+     * @throws IOException          if the lookup failed.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private CDInfo awaitLookup(FutureTask<CDInfo> lookup, File baseDir) throws IOException, InterruptedException
+    {
+        try
+        {
+            CDInfo cdInfo = lookup.get();
+            System.out.println(String.format("%s by %s", cdInfo.getAlbum(), cdInfo.getArtist()));
+
+            return cdInfo;
+        }
+        catch (ExecutionException e)
+        {
+            File[] ripped = baseDir.listFiles();
+            if (ripped != null)
             {
-                fail("Unable to recognise disk - provide a track listing file; aborting");
+                for (File file : ripped)
+                {
+                    file.delete();
+                }
             }
+            baseDir.delete();
 
-            System.out.println(String.format("%s by %s", cdInfo.getAlbum(), cdInfo.getArtist()));
-            dir = new File(_baseDir, cdInfo.getDir());
-            rip(cdInfo, tmpDir);
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause.getMessage(), cause);
+        }
+    }
 
-            dir.mkdir();
-            tmpDir.renameTo(dir);
+    /**
+     * Move the ripped CD into place once its tracks have been encoded, or remove the working directory if every track
+     * was encoded and deleted.
+     *
+     * @throws IOException if unable to move the ripped CD into place, it's left in its working directory.
+     */
+    public void finish() throws IOException
+    {
+        String[] remaining = _tmpDir.list();
+        if (remaining != null && remaining.length == 0)
+        {
+            // Every track has been encoded and deleted
+            _tmpDir.delete();
         }
         else
         {
-            fail(String.format("%s exists; clean up required", tmpDir));
+            // Another drive may have ripped the same CD, or it was ripped before, so don't clash with its directory
+            File dir = _dir;
+            for (int i = 2; dir.exists() && !isEmptyDir(dir); i++)
+            {
+                dir = new File(_dir.getPath() + " (" + i + ")");
+            }
+
+            dir.mkdir();
+            if (!_tmpDir.renameTo(dir))
+            {
+                throw new IOException(String.format("Unable to move %s to %s; leaving it in place", _tmpDir, dir));
+            }
+            _dir = dir;
         }
     }
 
+    /**
+     * Is this an empty directory, which the ripped CD can replace?
+     *
+     * @param dir the directory.
+     * @return true if it's an empty directory.
+     */
+    private static boolean isEmptyDir(File dir)
+    {
+        String[] files = dir.list();
+        return files != null && files.length == 0;
+    }
 
     /**
-     * Fail with an error message.
+     * Get the name of the working directory, one per drive.
      *
-     * @param message
-     * @throws IOException
+     * @return the directory name.
      */
-    private void fail(String message)
+    String getTempDirName()
     {
-        System.err.println(message);
-        System.exit(-1);
+        return _device == null ? TEMP_DIR : TEMP_DIR + "-" + tidyFilename(new File(_device).getName());
+    }
+
+    /**
+     * Is this the name of a ripper's working directory?
+     *
+     * @param name the directory name.
+     * @return true if a ripper may be ripping into it.
+     */
+    static boolean isTempDir(String name)
+    {
+        return name.equals(TEMP_DIR) || name.startsWith(TEMP_DIR + "-");
     }
 
 
     /**
-     * Rip the tracks from the CD.
+     * Rip the tracks from the CD, naming them by track number until the CD has been looked up.
      *
-     * @param cdInfo  the CD info.
-     * @param baseDir the base directory to rip and encode within.
-     * @throws IOException          if unable to interact with the cdparanoia process.
+     * @param trackCount the number of tracks.
+     * @param lookup     the CD's lookup, which may still be running.
+     * @param baseDir    the base directory to rip and encode within.
+     * @return the CD info.
+     * @throws IOException          if unable to interact with the cdparanoia process, or the lookup failed.
      * @throws InterruptedException if this thread is interrupted.
      */
-    private void rip(CDInfo cdInfo, File baseDir) throws IOException, InterruptedException
+    private CDInfo rip(int trackCount, FutureTask<CDInfo> lookup, File baseDir) throws IOException, InterruptedException
     {
 
-        Runtime rt = Runtime.getRuntime();
-        int index = 1;
-        for (Iterator<String> i = cdInfo.getTracks().iterator(); i.hasNext(); index++)
+        String ext = _ripToFlac ? EncoderQueue.FLAC_EXT : EXT;
+        CDInfo cdInfo = null;
+        Map<Integer, File> unnamed = new TreeMap<>();
+        for (int index = 1; index <= trackCount; index++)
         {
-            String trackName = i.next();
-            String indexStr = ((index < 10) ? "0" : "") + index;
-            String filename = tidyFilename(indexStr + " - " + trackName + EXT);
-            File wavFile = new File(baseDir, filename);
+            // Streaming into the encoders needs the track's tags before it starts
+            if (cdInfo == null && (lookup.isDone() || _streamEncoders != null))
+            {
+                cdInfo = awaitLookup(lookup, baseDir);
+                nameTracks(unnamed, cdInfo, ext, baseDir);
+            }
+
+            File wavFile = (cdInfo != null) ? getTrackFile(baseDir, cdInfo, index, ext) : new File(baseDir, getTrackNumber(index) + ext);
             File tempFile = File.createTempFile("wav", null, baseDir);
             System.out.println(String.format("Ripping %s (%s)", tempFile.getName(), wavFile.getName()));
-            String[] args = {getRipCommand(), "--quiet", String.valueOf(index), tempFile.getAbsolutePath()};
-            Process proc = rt.exec(args);
-            proc.waitFor();
 
-            if (proc.exitValue() != 0)
+            boolean ripped = false;
+            boolean keep = _keepWav;
+            try
+            {
+                if (_streamEncoders != null)
+                {
+                    int encoded = ripToEncoders(index, tempFile, Track.createTrack(wavFile, ext, cdInfo));
+                    ripped = (encoded >= 0);
+
+                    // Don't throw the track away if it couldn't be encoded to any format
+                    if (encoded == 0 && !keep)
+                    {
+                        System.err.println(String.format("Keeping %s as it couldn't be encoded", wavFile.getName()));
+                        keep = true;
+                    }
+                }
+                else if (_ripToFlac)
+                {
+                    // Tagged once the CD has been looked up, if it hasn't been yet
+                    List<String> comments = (cdInfo != null) ? JavaFlacEncoder.getComments(Track.createTrack(wavFile, ext, cdInfo)) : Collections.emptyList();
+                    ripped = ripToFlac(index, tempFile, wavFile, comments);
+                }
+                else
+                {
+                    ProcessResult result = RunningProcess.start(getRipArgs(index, tempFile.getAbsolutePath())).waitFor();
+                    ripped = result.isSuccess();
+                    if (!ripped)
+                    {
+                        result.reportFailure();
+                    }
+                }
+            }
+            finally
+            {
+                if (!ripped)
+                {
+                    tempFile.delete();
+                }
+            }
+
+            if (!ripped)
             {
-                System.err.println("Unable to rip " + tempFile);
+                System.err.println("Unable to rip " + wavFile.getName());
             }
-            else
+            else if (!keep)
+            {
+                tempFile.delete();
+            }
+            else if (!tempFile.renameTo(wavFile))
+            {
+                System.err.println("Unable to rename " + tempFile.getName() + " to " + wavFile.getName());
+            }
+            else if (cdInfo == null)
+            {
+                unnamed.put(index, wavFile);
+            }
+            else if (_scheduler != null)
             {
-                if (!tempFile.renameTo(wavFile))
+                _scheduler.queue(Track.createTrack(wavFile, ext, cdInfo));
+            }
+        }
+
+        // Keep the CD in the drive until it's recognised, a failed lookup throws away what's been ripped
+        if (cdInfo == null)
+        {
+            cdInfo = awaitLookup(lookup, baseDir);
+        }
+
+        RunningProcess.start(splitCommand(getEjectCommand()));
+        nameTracks(unnamed, cdInfo, ext, baseDir);
+
+        return cdInfo;
+    }
+
+    /**
+     * Rename the tracks ripped before the CD was looked up, tagging them if they're FLAC, and queue them for encoding.
+     *
+     * @param unnamed the tracks named by track number, by track number, emptied once they're named.
+     * @param cdInfo  the CD info.
+     * @param ext     the file extension.
+     * @param baseDir the directory being ripped into.
+     * @throws InterruptedException if this thread is interrupted while queueing.
+     */
+    private void nameTracks(Map<Integer, File> unnamed, CDInfo cdInfo, String ext, File baseDir) throws InterruptedException
+    {
+        for (Map.Entry<Integer, File> entry : unnamed.entrySet())
+        {
+            File file = entry.getValue();
+            File wavFile = getTrackFile(baseDir, cdInfo, entry.getKey(), ext);
+            Track track = Track.createTrack(wavFile, ext, cdInfo);
+            if (_ripToFlac)
+            {
+                try
                 {
-                    System.err.println("Unable to rename " + tempFile.getName() + " to " + wavFile.getName());
+                    FlacOutputStream.writeComments(file, JavaFlacEncoder.getComments(track));
                 }
+                catch (IOException e)
+                {
+                    System.err.println(String.format("Unable to tag %s: %s", file.getName(), e.getMessage()));
+                }
+            }
+
+            if (!file.renameTo(wavFile))
+            {
+                System.err.println("Unable to rename " + file.getName() + " to " + wavFile.getName());
+            }
+            else if (_scheduler != null)
+            {
+                _scheduler.queue(track);
             }
         }
+        unnamed.clear();
+    }
 
-        rt.exec(getEjectCommand());
+    /**
+     * Get the file a track is saved as once the CD has been looked up.
+     *
+     * @param baseDir the directory being ripped into.
+     * @param cdInfo  the CD info.
+     * @param index   the track number.
+     * @param ext     the file extension.
+     * @return the track's file.
+     */
+    private File getTrackFile(File baseDir, CDInfo cdInfo, int index, String ext)
+    {
+        return new File(baseDir, tidyFilename(getTrackNumber(index) + " - " + cdInfo.getTracks().get(index - 1) + ext));
+    }
+
+    /**
+     * Get a track number, padded to two digits.
+     *
+     * @param index the track number.
+     * @return the padded track number.
+     */
+    private static String getTrackNumber(int index)
+    {
+        return ((index < 10) ? "0" : "") + index;
+    }
+
+    /**
+     * Rip a track to cdparanoia's stdout and stream it into the encoders, saving a copy to the temp file.
+     *
+     * The copy is always saved, even if it's not to be kept, so the track isn't lost if every encode fails.
+     *
+     * @param index    the track number.
+     * @param tempFile the file to save the wav data to.
+     * @param track    the track being ripped.
+     * @return the number of formats the track was encoded to, or -1 if the rip failed.
+     * @throws IOException          if unable to start the encoders or the cdparanoia process.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private int ripToEncoders(int index, File tempFile, Track track) throws IOException, InterruptedException
+    {
+        List<EncodeTask> tasks = new ArrayList<>();
+        RunningProcess proc = null;
+        boolean[] success = null;
+        try
+        {
+            for (Encoder encoder : _streamEncoders)
+            {
+                tasks.add(encoder.createTask(track, false));
+            }
+
+            proc = RunningProcess.startReadingStdout(getRipArgs(index, "-"));
+            try (OutputStream copy = openCopy(tempFile, track))
+            {
+                // The fan-out finishes every task from here on, whether or not it succeeds
+                EncodeFanOut fanOut = new EncodeFanOut(tasks);
+                tasks = Collections.emptyList();
+                success = fanOut.encode(new CheckedStdout(proc, "rip"), copy);
+            }
+        }
+        catch (IOException e)
+        {
+            if (proc == null)
+            {
+                throw e;
+            }
+            proc.destroy();
+            System.err.println(String.format("Unable to rip %s: %s", track.getWavFile().getName(), e.getMessage()));
+            return -1;
+        }
+        finally
+        {
+            // Remove the temp dests of tasks that never started
+            for (EncodeTask task : tasks)
+            {
+                task.finish(false);
+            }
+        }
+
+        int encoded = 0;
+        for (int i = 0; i < success.length; i++)
+        {
+            if (success[i])
+            {
+                encoded++;
+            }
+            else
+            {
+                System.err.println("Unable to encode " + track.getWavFile().getName() + " with " + _streamEncoders.get(i));
+            }
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Rip a track to cdparanoia's stdout and encode it to a FLAC file.
+     *
+     * @param index    the track number.
+     * @param tempFile the file to save the FLAC data to.
+     * @param wavFile  the file the track will be saved as, for reporting.
+     * @param comments the track's Vorbis comments.
+     * @return whether the rip was successful.
+     * @throws IOException          if unable to start the cdparanoia process.
+     */
+    private boolean ripToFlac(int index, File tempFile, File wavFile, List<String> comments) throws IOException
+    {
+        RunningProcess proc = RunningProcess.startReadingStdout(getRipArgs(index, "-"));
+        FlacOutputStream flac = null;
+        try (InputStream in = new CheckedStdout(proc, "rip"))
+        {
+            flac = new FlacOutputStream(tempFile, comments);
+            byte[] buffer = new byte[RIP_BUFFER_SIZE];
+            int len = in.read(buffer);
+            while (len != -1)
+            {
+                flac.write(buffer, 0, len);
+                len = in.read(buffer);
+            }
+            flac.close();
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            if (flac != null)
+            {
+                flac.abort();
+            }
+            proc.destroy();
+            System.err.println(String.format("Unable to rip %s: %s", wavFile.getName(), e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Open the file to save a copy of a track to as it's streamed into the encoders.
+     *
+     * @param tempFile the file to save the copy to.
+     * @param track    the track being ripped.
+     * @return the stream to write the wav data to, encoding it to FLAC if ripping to FLAC.
+     * @throws IOException if unable to create the file.
+     */
+    private OutputStream openCopy(File tempFile, Track track) throws IOException
+    {
+        if (_ripToFlac)
+        {
+            return new FlacOutputStream(tempFile, JavaFlacEncoder.getComments(track));
+        }
+
+        return new FileOutputStream(tempFile);
+    }
+
+    /**
+     * Read the CD's table of contents with cdparanoia, to look the CD up by.
+     *
+     * cdparanoia only lists the audio tracks, so an Enhanced CD's data track and real lead-out are read with cd-discid
+     * if it's installed. Without it such a CD's disc ID is wrong and CDDB is unlikely to recognise it.
+     *
+     * @return the table of contents.
+     * @throws IOException          if unable to run cdparanoia, or there's no audio CD in the drive.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private DiscToc readToc() throws IOException, InterruptedException
+    {
+        List<String> args = getDriveArgs();
+        args.add("-Q");
+
+        // cdparanoia prints its report on stderr
+        TocParser parser = new TocParser();
+        ProcessResult result = RunningProcess.start(new ProcessBuilder(args), null, parser).waitFor();
+        if (!result.isSuccess())
+        {
+            result.reportFailure();
+            throw new IOException("Unable to read the table of contents; is there an audio CD in the drive?");
+        }
+
+        DiscToc toc;
+        try
+        {
+            toc = parser.getToc();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException(String.format("Unable to read the table of contents: %s", e.getMessage()));
+        }
+        if (toc == null)
+        {
+            throw new IOException("The CD has no audio tracks");
+        }
+
+        DiscToc fullToc = readFullToc(toc);
+
+        return (fullToc != null) ? fullToc : toc;
+    }
+
+    /**
+     * Read the CD's whole table of contents with cd-discid, including any data tracks after the audio tracks.
+     *
+     * @param audioToc the audio tracks, as read by cdparanoia.
+     * @return the whole table of contents, or null if cd-discid isn't installed, fails or doesn't agree with cdparanoia.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private DiscToc readFullToc(DiscToc audioToc) throws InterruptedException
+    {
+        List<String> args = new ArrayList<>();
+        args.add(DISC_ID_COMMAND);
+        args.add("--musicbrainz");
+        if (_device != null)
+        {
+            args.add(_device);
+        }
+
+        List<String> lines = new ArrayList<>();
+        ProcessResult result;
+        try
+        {
+            result = RunningProcess.start(new ProcessBuilder(args), lines::add, null).waitFor();
+        }
+        catch (IOException e)
+        {
+            // Not installed, the audio tracks will have to do
+            return null;
+        }
+        if (!result.isSuccess() || lines.isEmpty())
+        {
+            result.reportFailure();
+            return null;
+        }
+
+        try
+        {
+            String[] fields = splitCommand(lines.get(0));
+            int trackCount = Integer.parseInt(fields[0]);
+            if (trackCount < 1 || fields.length != trackCount + 2)
+            {
+                throw new IllegalArgumentException(String.format("%d tracks but %d offsets", trackCount, fields.length - 2));
+            }
+
+            int[] offsets = new int[trackCount];
+            for (int i = 0; i < trackCount; i++)
+            {
+                offsets[i] = Integer.parseInt(fields[i + 1]);
+            }
+            DiscToc toc = new DiscToc(offsets, Integer.parseInt(fields[trackCount + 1]), audioToc.getTrackCount());
+
+            // The audio tracks must come first, as on an Enhanced CD, or they can't be ripped by their track numbers
+            int[] audioOffsets = audioToc.getOffsets();
+            if (!Arrays.equals(audioOffsets, Arrays.copyOf(offsets, audioOffsets.length)))
+            {
+                throw new IllegalArgumentException("its audio tracks don't match cdparanoia's");
+            }
+
+            return toc;
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(String.format("Ignoring %s's table of contents, %s: %s", DISC_ID_COMMAND, lines.get(0), e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Get the cdparanoia command, reading from the chosen drive.
+     *
+     * @return the command and its drive arguments, to add to.
+     */
+    private List<String> getDriveArgs()
+    {
+        List<String> args = new ArrayList<>();
+        args.add(getRipCommand());
+        if (_device != null)
+        {
+            args.add("-d");
+            args.add(_device);
+        }
+
+        return args;
+    }
+
+    /**
+     * Get the cdparanoia arguments to rip a track from the drive.
+     *
+     * @param index  the track number.
+     * @param output the file to rip to, - for stdout.
+     * @return the command and its arguments.
+     */
+    private String[] getRipArgs(int index, String output)
+    {
+        List<String> args = getDriveArgs();
+        args.add("--quiet");
+        args.add(String.valueOf(index));
+        args.add(output);
+
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Split a command held as a single String into its arguments.
+     *
+     * @param command the command.
+     * @return the arguments.
+     */
+    protected static String[] splitCommand(String command)
+    {
+        return command.trim().split("\\s+");
     }
 
     /**
@@ -159,14 +860,75 @@ public abstract class CDRipper
         return ret;
     }
 
-    protected abstract String getInfoCommand();
-
     protected abstract String getEjectCommand();
 
     protected abstract String getRipCommand();
 
-    protected abstract CDInfo getCDInfo(File dir)
-            throws IOException, InterruptedException;
+    /**
+     * Look the CD up in CDDB.
+     *
+     * @param toc the CD's table of contents.
+     * @return a populated CD info object, unrecognised if CDDB doesn't have it.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    protected CDInfo getCDInfo(DiscToc toc) throws InterruptedException
+    {
+        CDInfo cdInfo = _cddb.lookup(toc);
+        if (cdInfo.recognised())
+        {
+            cdInfo.setAlbum(tidyFilename(cdInfo.getAlbum()));
+            cdInfo.setArtist(tidyFilename(cdInfo.getArtist()));
+        }
+
+        return cdInfo;
+    }
+
+    /**
+     * Parses each track's start and length from cdparanoia's table of contents.
+     */
+    private static final class TocParser implements LineHandler
+    {
+        private final Pattern _trackPattern = Pattern.compile(TOC_TRACK_PATTERN);
+        private final List<Integer> _offsets = new ArrayList<>();
+        private int _leadOut;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void handle(String line)
+        {
+            Matcher trackMatcher = _trackPattern.matcher(line);
+            if (trackMatcher.matches())
+            {
+                int start = Integer.parseInt(trackMatcher.group(2)) + DiscToc.LEAD_IN;
+                _offsets.add(start);
+                _leadOut = start + Integer.parseInt(trackMatcher.group(1));
+            }
+        }
+
+        /**
+         * Get the table of contents parsed.
+         *
+         * @return the table of contents, or null if there were no tracks.
+         * @throws IllegalArgumentException if the tracks are out of order.
+         */
+        DiscToc getToc()
+        {
+            if (_offsets.isEmpty())
+            {
+                return null;
+            }
+
+            int[] offsets = new int[_offsets.size()];
+            for (int i = 0; i < offsets.length; i++)
+            {
+                offsets[i] = _offsets.get(i);
+            }
+
+            return new DiscToc(offsets, _leadOut);
+        }
+    }
 
     /**
      * Rip and encode the CD.
@@ -176,13 +938,54 @@ public abstract class CDRipper
     public static void main(String[] args) throws Exception
     {
 
-        if (args.length < 1)
+        int argIndex = 0;
+        File props = null;
+        boolean stream = false;
+        boolean keepWav = true;
+        boolean flac = false;
+        List<String> devices = new ArrayList<>();
+        List<String> mirrors = new ArrayList<>();
+        while (args.length > argIndex + 1 && args[argIndex].startsWith("--"))
+        {
+            String option = args[argIndex++];
+            if ("--encode".equals(option))
+            {
+                props = new File(args[argIndex++]);
+            }
+            else if ("--stream".equals(option))
+            {
+                stream = true;
+            }
+            else if ("--no-wav".equals(option))
+            {
+                stream = true;
+                keepWav = false;
+            }
+            else if ("--flac".equals(option))
+            {
+                flac = true;
+            }
+            else if ("--device".equals(option))
+            {
+                devices.add(args[argIndex++]);
+            }
+            else if ("--cddb".equals(option))
+            {
+                mirrors.add(args[argIndex++]);
+            }
+            else
+            {
+                argIndex = args.length;
+            }
+        }
+
+        if (args.length < argIndex + 1 || (stream && props == null))
         {
-            System.err.println("Usage: CDRipper <base dir> [track names text file]");
+            System.err.println("Usage: CDRipper [--encode <encoder properties> [--stream] [--no-wav]] [--flac] [--device <drive>]... [--cddb <cddb.cgi url>]... <base dir> [track names text file]");
             System.exit(-1);
         }
 
-        File baseDir = new File(args[0]);
+        File baseDir = new File(args[argIndex++]);
         if (!baseDir.canRead() || !baseDir.isDirectory())
         {
             System.err.printf("Unable to access %s as a directory%n", baseDir);
@@ -190,20 +993,127 @@ public abstract class CDRipper
         }
 
         List<String> trackListing = Collections.EMPTY_LIST;
-        if (args.length > 1)
+        if (args.length > argIndex)
         {
-            trackListing = Files.readAllLines(Paths.get(args[1]));
+            trackListing = Files.readAllLines(Paths.get(args[argIndex]));
+        }
+
+        if (devices.isEmpty())
+        {
+            // Rip from the default drive
+            devices.add(null);
         }
 
         try
         {
-            // TODO Select based on OS
-            CDRipper cdr = new MacOSRipper(baseDir, trackListing);
-            cdr.start();
+            List<Encoder> encoders = null;
+            EncodeScheduler scheduler = null;
+            if (props != null)
+            {
+                EncoderLoader loader = new EncoderLoader();
+                encoders = loader.loadEncoders(props);
+                // Streamed tracks are encoded from the wav data, queued FLAC rips are decoded first
+                EncoderQueue.dependenciesInstalled(encoders, flac && !stream);
+                if (!stream)
+                {
+                    scheduler = new EncodeScheduler(encoders, new FileDeletingTrackMonitor(), loader.loadWorkers(props), false);
+                    scheduler.start();
+                }
+            }
+
+            CDDBClient cddb = mirrors.isEmpty() ? new CDDBClient() : new CDDBClient(mirrors);
+
+            // Each drive rips in a thread of its own, all feeding the same encoders
+            ExecutorService drives = Executors.newFixedThreadPool(devices.size());
+            List<CDRipper> rippers = new ArrayList<>();
+            List<Future<?>> rips = new ArrayList<>();
+            for (String device : devices)
+            {
+                CDRipper cdr = createRipper(baseDir, new ArrayList<>(trackListing));
+                cdr.setDevice(device);
+                cdr.setCDDBClient(cddb);
+                cdr.setRipToFlac(flac);
+                if (stream)
+                {
+                    cdr.setStreamEncoders(encoders, keepWav);
+                }
+                cdr.setScheduler(scheduler);
+                rippers.add(cdr);
+                rips.add(drives.submit(() -> {
+                    cdr.ripDisc();
+                    return null;
+                }));
+            }
+            drives.shutdown();
+
+            List<CDRipper> ripped = new ArrayList<>();
+            boolean failed = false;
+            for (int i = 0; i < rips.size(); i++)
+            {
+                try
+                {
+                    rips.get(i).get();
+                    ripped.add(rippers.get(i));
+                }
+                catch (ExecutionException e)
+                {
+                    String device = devices.get(i);
+                    System.err.println(device == null ? e.getCause().getMessage() : String.format("%s: %s", device, e.getCause().getMessage()));
+                    failed = true;
+                }
+            }
+
+            if (scheduler != null)
+            {
+                scheduler.shutdown();
+                if (!scheduler.awaitTermination(ENCODE_WAIT_MINUTES, TimeUnit.MINUTES))
+                {
+                    System.err.println("Encoding did not finish; leaving the ripped CDs in place");
+                    System.exit(-1);
+                }
+                scheduler.report();
+            }
+
+            for (CDRipper cdr : ripped)
+            {
+                try
+                {
+                    cdr.finish();
+                }
+                catch (IOException e)
+                {
+                    System.err.println(e.getMessage());
+                    failed = true;
+                }
+            }
+
+            if (failed)
+            {
+                System.exit(-1);
+            }
         }
         catch (Exception e)
         {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Create the ripper for the OS we're running on.
+     *
+     * @param baseDir      the directory to create the CD directory within.
+     * @param trackListing the track listing to use if the CD isn't recognised.
+     * @return the ripper.
+     * @throws IOException          if unable to interact with the external processes.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private static CDRipper createRipper(File baseDir, List<String> trackListing) throws IOException, InterruptedException
+    {
+        if (System.getProperty("os.name").startsWith("Linux"))
+        {
+            return new LinuxCDRipper(baseDir, trackListing);
+        }
+
+        return new MacOSRipper(baseDir, trackListing);
+    }
 }
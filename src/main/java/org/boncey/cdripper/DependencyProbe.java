@@ -0,0 +1,269 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.encoder.Encoder;
+import org.boncey.cdripper.encoder.FlacDecoder;
+import org.boncey.cdripper.process.ProcessResult;
+import org.boncey.cdripper.process.RunningProcess;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Checks that the {@link Encoder}s' binaries are installed, and the {@link FlacDecoder}'s if they transcode FLAC rips.
+ *
+ * Each distinct probe command is run once, all at the same time, and successful probes are cached on disk against the
+ * binary's resolved path and modification time so later runs don't need to fork them at all.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class DependencyProbe
+{
+
+    /**
+     * The default cache file, relative to the user's home directory.
+     */
+    private static final String DEFAULT_CACHE = ".cdripper/probes.properties";
+
+
+    /**
+     * The file to cache successful probes in.
+     */
+    private final File _cacheFile;
+
+
+    /**
+     * Default constructor, caching in the user's home directory.
+     */
+    public DependencyProbe()
+    {
+
+        this(new File(System.getProperty("user.home"), DEFAULT_CACHE));
+    }
+
+
+    /**
+     * Public constructor.
+     *
+     * @param cacheFile the file to cache successful probes in.
+     */
+    public DependencyProbe(File cacheFile)
+    {
+
+        _cacheFile = cacheFile;
+    }
+
+
+    /**
+     * Check the {@link Encoder} dependencies are installed.
+     *
+     * @param encoders the encoders to check.
+     * @param flacSources whether the encoders may be given tracks ripped to FLAC.
+     * @throws IOException if unable to run a probe.
+     * @throws InterruptedException if this thread is interrupted.
+     * @throws IllegalStateException if a dependency is not installed.
+     */
+    public void check(List<Encoder> encoders, boolean flacSources) throws IOException, InterruptedException
+    {
+
+        // Each command is only run once, failing with the message of the first encoder needing it
+        Map<String, String> probes = new LinkedHashMap<>();
+        Map<String, String[]> commands = new LinkedHashMap<>();
+        for (Encoder encoder : encoders)
+        {
+            add(encoder.probeCommand(), String.format("Encoder %s does not have %s installed", encoder, encoder.command()), probes, commands);
+            if (flacSources && encoder.decodesFlac())
+            {
+                add(FlacDecoder.probeCommand(), String.format("Encoder %s needs flac installed to decode FLAC rips", encoder), probes,
+                        commands);
+            }
+        }
+
+        Properties cache = loadCache();
+        Map<String, RunningProcess> running = new LinkedHashMap<>();
+        Map<String, String> versions = new LinkedHashMap<>();
+        try
+        {
+            for (Map.Entry<String, String[]> entry : commands.entrySet())
+            {
+                String[] command = entry.getValue();
+                File binary = resolve(command[0]);
+                if (binary == null)
+                {
+                    fail(probes.get(entry.getKey()));
+                }
+
+                String cacheKey = binary.getCanonicalPath() + " " + entry.getKey();
+                String version = String.valueOf(binary.lastModified());
+                if (!version.equals(cache.getProperty(cacheKey)))
+                {
+                    String[] resolved = command.clone();
+                    resolved[0] = binary.getAbsolutePath();
+                    running.put(entry.getKey(), RunningProcess.start(resolved));
+                    versions.put(cacheKey, version);
+                }
+            }
+
+            if (running.isEmpty())
+            {
+                return;
+            }
+
+            Iterator<Map.Entry<String, RunningProcess>> iter = running.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry<String, RunningProcess> entry = iter.next();
+                ProcessResult result = entry.getValue().waitFor();
+                iter.remove();
+                if (!result.isSuccess())
+                {
+                    result.reportFailure();
+                    fail(probes.get(entry.getKey()));
+                }
+            }
+        }
+        finally
+        {
+            // Don't leave the other probes running if one fails
+            for (RunningProcess proc : running.values())
+            {
+                proc.destroy();
+            }
+        }
+
+        cache.putAll(versions);
+        saveCache(cache);
+    }
+
+
+    /**
+     * Add a probe, unless it's empty or already added.
+     *
+     * @param command the probe command.
+     * @param failure the message to fail with if the probe fails.
+     * @param probes the failure messages, by probe.
+     * @param commands the commands, by probe.
+     */
+    private void add(String[] command, String failure, Map<String, String> probes, Map<String, String[]> commands)
+    {
+
+        if (command.length == 0)
+        {
+            return;
+        }
+
+        String key = String.join(" ", command);
+        probes.putIfAbsent(key, failure);
+        commands.putIfAbsent(key, command);
+    }
+
+
+    /**
+     * Find a binary on the PATH.
+     *
+     * @param command the binary name or path.
+     * @return the binary, or null if not found.
+     */
+    private File resolve(String command)
+    {
+
+        if (command.contains(File.separator))
+        {
+            File binary = new File(command);
+            return binary.canExecute() ? binary : null;
+        }
+
+        String path = System.getenv("PATH");
+        if (path != null)
+        {
+            for (String dir : path.split(File.pathSeparator))
+            {
+                File binary = new File(dir, command);
+                if (binary.isFile() && binary.canExecute())
+                {
+                    return binary;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Fail as a dependency is not installed.
+     *
+     * @param failure the message to fail with.
+     */
+    private void fail(String failure)
+    {
+
+        throw new IllegalStateException(failure);
+    }
+
+
+    /**
+     * Load the cache, empty if there isn't one yet.
+     *
+     * @return the cached probes.
+     */
+    private Properties loadCache()
+    {
+
+        Properties cache = new Properties();
+        if (_cacheFile.canRead())
+        {
+            try (FileInputStream in = new FileInputStream(_cacheFile))
+            {
+                cache.load(in);
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                System.err.println(String.format("Ignoring unreadable probe cache %s: %s", _cacheFile, e.getMessage()));
+            }
+        }
+
+        return cache;
+    }
+
+
+    /**
+     * Save the cache, it's only an optimisation so failures are reported but ignored.
+     *
+     * @param cache the cached probes.
+     */
+    private void saveCache(Properties cache)
+    {
+
+        File dir = _cacheFile.getParentFile();
+        if (dir != null)
+        {
+            dir.mkdirs();
+        }
+
+        // Write then rename so a concurrent run never reads a partial file
+        File tempFile = new File(_cacheFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile))
+        {
+            cache.store(out, "Encoder dependency probes, keyed by binary and command, valued by binary modification time");
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to save probe cache %s: %s", _cacheFile, e.getMessage()));
+            return;
+        }
+
+        if (!tempFile.renameTo(_cacheFile))
+        {
+            System.err.println(String.format("Unable to save probe cache %s", _cacheFile));
+        }
+    }
+}
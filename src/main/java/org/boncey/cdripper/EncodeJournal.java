@@ -0,0 +1,338 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.encoder.AbstractEncoder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A write-ahead journal of the encodes for a base directory, so a run that is killed can be recovered from.
+ *
+ * Each queued track, each encode started along with its temporary output, and each encode finished is written and
+ * synced before it takes effect. On startup the journal is replayed: temporary outputs of encodes that never finished
+ * are removed and wav files that were encoded to every format but not deleted are deleted. The tracks that were in
+ * flight are then found again by the normal scan, with the finished formats skipped by each location's manifest.
+ *
+ * The journal is locked while in use so two encoders can't share a base directory, and it is emptied whenever every
+ * journalled track has finished.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class EncodeJournal
+{
+
+    /**
+     * The journal's filename within the base directory.
+     */
+    public static final String JOURNAL_NAME = ".cdripper-journal";
+
+
+    /**
+     * A track was queued, with the number of formats it was queued for.
+     */
+    private static final String TRACK = "TRACK";
+
+
+    /**
+     * An encode was started, with its temporary output.
+     */
+    private static final String RUNNING = "RUNNING";
+
+
+    /**
+     * An encode succeeded, or the format was already up to date.
+     */
+    private static final String DONE = "DONE";
+
+
+    /**
+     * An encode failed.
+     */
+    private static final String FAILED = "FAILED";
+
+
+    /**
+     * Written in place of a temporary output for an encode that never had one.
+     */
+    private static final String NONE = "-";
+
+
+    /**
+     * Separates the fields of each line.
+     */
+    private static final String SEPARATOR = "\t";
+
+
+    /**
+     * The journal file.
+     */
+    private final File _file;
+
+
+    /**
+     * The open journal, held so it stays open and locked for the life of the process.
+     */
+    private final RandomAccessFile _raf;
+
+
+    /**
+     * The journal's channel, for syncing.
+     */
+    private final FileChannel _channel;
+
+
+    /**
+     * Held while the journal is open.
+     */
+    private final FileLock _lock;
+
+
+    /**
+     * The number of formats still to finish for each journalled track.
+     */
+    private final Map<File, Integer> _unfinished;
+
+
+    /**
+     * Public constructor, opening and locking the journal.
+     *
+     * @param baseDir the base dir being encoded.
+     * @throws IOException if unable to open the journal.
+     * @throws IllegalStateException if another encoder is using the base dir.
+     */
+    public EncodeJournal(File baseDir) throws IOException
+    {
+
+        _file = new File(baseDir, JOURNAL_NAME);
+        _raf = new RandomAccessFile(_file, "rw");
+        _channel = _raf.getChannel();
+        _lock = _channel.tryLock();
+        if (_lock == null)
+        {
+            _raf.close();
+            throw new IllegalStateException(String.format("Another encoder is using %s", baseDir));
+        }
+        _unfinished = new HashMap<>();
+    }
+
+
+    /**
+     * Recover from a run that didn't finish, then empty the journal.
+     *
+     * @param dryRun only report what would be recovered.
+     * @throws IOException if unable to read the journal.
+     */
+    public synchronized void recover(boolean dryRun) throws IOException
+    {
+
+        Map<File, Integer> formats = new HashMap<>();
+        Map<File, Integer> done = new HashMap<>();
+        Set<File> finished = new HashSet<>();
+        Map<File, File> running = new HashMap<>();
+
+        _channel.position(0);
+        BufferedReader reader = new BufferedReader(Channels.newReader(_channel, StandardCharsets.UTF_8.newDecoder(), -1));
+        String line = reader.readLine();
+        while (line != null)
+        {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length == 3)
+            {
+                File wavFile = new File(fields[1]);
+                File tempFile = NONE.equals(fields[2]) ? null : new File(fields[2]);
+                switch (fields[0])
+                {
+                    case TRACK:
+                        try
+                        {
+                            formats.put(wavFile, Integer.valueOf(fields[2]));
+                            done.remove(wavFile);
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            // Cut short when the run was killed
+                        }
+                        break;
+                    case RUNNING:
+                        if (tempFile != null)
+                        {
+                            running.put(tempFile, wavFile);
+                        }
+                        break;
+                    case DONE:
+                        done.merge(wavFile, 1, Integer::sum);
+                        finished.add(tempFile);
+                        break;
+                    case FAILED:
+                        finished.add(tempFile);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            line = reader.readLine();
+        }
+
+        // Encodes that never finished, and the directories they were running in
+        running.keySet().removeAll(finished);
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Map.Entry<File, File> entry : running.entrySet())
+        {
+            dirs.add(entry.getValue().getParentFile());
+            dirs.add(entry.getKey().getParentFile());
+        }
+
+        // The temporary outputs of those encodes, along with any created but not yet journalled when the run was killed
+        int removed = 0;
+        for (File dir : dirs)
+        {
+            File[] tempFiles = dir.listFiles((d, name) -> name.startsWith(AbstractEncoder.TEMP_PREFIX));
+            if (tempFiles != null)
+            {
+                for (File tempFile : tempFiles)
+                {
+                    System.out.println(String.format("Removing unfinished encode %s", tempFile));
+                    if (!dryRun && !tempFile.delete())
+                    {
+                        System.err.println(String.format("Unable to remove %s", tempFile));
+                    }
+                    removed++;
+                }
+            }
+        }
+
+        // Wav files encoded to every format but not deleted before the run was killed
+        int deleted = 0;
+        for (Map.Entry<File, Integer> entry : formats.entrySet())
+        {
+            File wavFile = entry.getKey();
+            if (entry.getValue().equals(done.get(wavFile)) && wavFile.exists())
+            {
+                System.out.println(String.format("Deleting %s, already encoded", wavFile));
+                if (!dryRun && !wavFile.delete())
+                {
+                    System.err.println(String.format("Unable to delete %s", wavFile));
+                }
+                deleted++;
+            }
+        }
+
+        if (!formats.isEmpty())
+        {
+            System.out.println(String.format("Recovered from journal: %d unfinished encodes, %d temporary files removed, %d wav files deleted",
+                    running.size(), removed, deleted));
+        }
+
+        if (!dryRun)
+        {
+            _channel.truncate(0);
+            _channel.force(true);
+        }
+        _channel.position(_channel.size());
+    }
+
+
+    /**
+     * Journal a track queued for encoding.
+     *
+     * @param wavFile the track's wav file.
+     * @param formats the number of formats it will be encoded to, including those already up to date.
+     */
+    public synchronized void queued(File wavFile, int formats)
+    {
+
+        _unfinished.merge(wavFile, formats, Integer::sum);
+        write(TRACK, wavFile, String.valueOf(formats));
+    }
+
+
+    /**
+     * Journal an encode starting.
+     *
+     * @param wavFile the track's wav file.
+     * @param tempFile the temporary output.
+     */
+    public synchronized void running(File wavFile, File tempFile)
+    {
+
+        write(RUNNING, wavFile, tempFile.getAbsolutePath());
+    }
+
+
+    /**
+     * Journal an encode finishing, or a format that was already up to date.
+     *
+     * @param wavFile the track's wav file.
+     * @param tempFile the temporary output, null if there wasn't one.
+     * @param success whether the encode was successful.
+     */
+    public synchronized void finished(File wavFile, File tempFile, boolean success)
+    {
+
+        write(success ? DONE : FAILED, wavFile, tempFile == null ? NONE : tempFile.getAbsolutePath());
+
+        Integer remaining = _unfinished.get(wavFile);
+        if (remaining != null && remaining > 1)
+        {
+            _unfinished.put(wavFile, remaining - 1);
+        }
+        else
+        {
+            _unfinished.remove(wavFile);
+        }
+
+        if (_unfinished.isEmpty())
+        {
+            // Nothing left to recover
+            try
+            {
+                _channel.truncate(0);
+            }
+            catch (IOException e)
+            {
+                System.err.println(String.format("Unable to empty journal %s: %s", _file, e.getMessage()));
+            }
+        }
+    }
+
+
+    /**
+     * Write a line and sync it to disk.
+     *
+     * @param type the line type.
+     * @param wavFile the track's wav file.
+     * @param value the line's value.
+     */
+    private void write(String type, File wavFile, String value)
+    {
+
+        String line = String.join(SEPARATOR, type, wavFile.getAbsolutePath(), value) + "\n";
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining())
+            {
+                _channel.write(buffer, _channel.size());
+            }
+            _channel.force(false);
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to write journal %s: %s", _file, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,1080 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.encoder.EncodeFanOut;
+import org.boncey.cdripper.encoder.EncodeTask;
+import org.boncey.cdripper.encoder.Encoder;
+import org.boncey.cdripper.encoder.FlacDecoder;
+import org.boncey.cdripper.metrics.Counter;
+import org.boncey.cdripper.metrics.Histogram;
+import org.boncey.cdripper.metrics.MetricsRegistry;
+import org.boncey.cdripper.model.AudioHeader;
+import org.boncey.cdripper.model.Track;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules every (track, format) pair across a single pool of workers.
+ *
+ * Any free worker takes the oldest queued task of any format that is below its own thread limit, so the slow formats
+ * are not left queueing once the fast ones have finished.
+ *
+ * In fan-out mode each track is instead a single task that reads the wav file once and encodes it to every format at
+ * the same time. A track ripped to FLAC is decoded once for every format but FLAC, which it's copied to.
+ *
+ * Each format's encode durations, queue waits, bytes read and written, and results are recorded in a
+ * {@link MetricsRegistry}.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class EncodeScheduler
+{
+
+    /**
+     * The upper bounds of the encode duration buckets, in seconds.
+     */
+    private static final double[] DURATION_BUCKETS = { 1, 2, 5, 10, 20, 30, 60, 120, 300, 600 };
+
+
+    /**
+     * The upper bounds of the queue wait buckets, in seconds.
+     */
+    private static final double[] WAIT_BUCKETS = { 0.01, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 1800 };
+
+
+    /**
+     * The queued work for each format.
+     */
+    private final List<FormatQueue> _formats;
+
+
+    /**
+     * The queued tracks to encode to every format at once, in fan-out mode.
+     */
+    private final Deque<QueuedTrack> _fanOutTasks;
+
+
+    /**
+     * The {@link Encoded} implementation to monitor tracks being encoded.
+     */
+    private final Encoded _monitor;
+
+
+    /**
+     * The maximum number of encodes to run at once, across all formats.
+     */
+    private final int _workers;
+
+
+    /**
+     * Perform a "dry run", don't encode tracks or change file-system.
+     */
+    private final boolean _dryRun;
+
+
+    /**
+     * Guards the queues.
+     */
+    private final ReentrantLock _lock;
+
+
+    /**
+     * Signalled whenever a task is queued or finished, or on shutdown.
+     */
+    private final Condition _changed;
+
+
+    /**
+     * The journal of tasks queued, running and finished, null if not journalling.
+     */
+    private EncodeJournal _journal;
+
+
+    /**
+     * Reports the progress through the queued audio, null if not reporting.
+     */
+    private ProgressReporter _progress;
+
+
+    /**
+     * The threads running the tasks.
+     */
+    private ExecutorService _executor;
+
+
+    /**
+     * The maximum number of tasks to queue before {@link #queue(Track)} blocks, counting each format separately.
+     */
+    private int _capacity = Integer.MAX_VALUE;
+
+
+    /**
+     * The number of tasks queued and not yet started, counting each format separately.
+     */
+    private int _depth;
+
+
+    /**
+     * Incremented for each task queued so the oldest can be found.
+     */
+    private long _sequence;
+
+
+    /**
+     * Whether no more tracks will be queued.
+     */
+    private boolean _shutdown;
+
+
+    /**
+     * Whether to encode each track to every format at once.
+     */
+    private boolean _fanOut;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param encoders the List of {@link Encoder}s.
+     * @param monitor the {@link Encoded} implementation to monitor tracks being encoded.
+     * @param workers the maximum number of encodes to run at once.
+     * @param dryRun
+     */
+    public EncodeScheduler(List<Encoder> encoders, Encoded monitor, int workers, boolean dryRun)
+    {
+
+        if (workers < 1)
+        {
+            throw new IllegalArgumentException("Need at least one worker, not " + workers);
+        }
+
+        _formats = new ArrayList<>();
+        for (Encoder encoder : encoders)
+        {
+            _formats.add(new FormatQueue(encoder));
+        }
+        _fanOutTasks = new ArrayDeque<>();
+
+        _monitor = monitor;
+        _workers = workers;
+        _dryRun = dryRun;
+        _lock = new ReentrantLock();
+        _changed = _lock.newCondition();
+
+        setMetrics(new MetricsRegistry());
+    }
+
+
+    /**
+     * Record each format's encodes in these metrics, rather than ones that are never exported.
+     *
+     * @param metrics the metrics, must be set before any tracks are queued.
+     */
+    public void setMetrics(MetricsRegistry metrics)
+    {
+
+        for (FormatQueue format : _formats)
+        {
+            format.register(metrics);
+        }
+        metrics.gauge("cdripper_queue_depth", "Encodes queued and not yet started, counting each format separately", this::getQueueDepth);
+        metrics.gauge("cdripper_workers", "The maximum number of encodes run at once", () -> _workers);
+    }
+
+
+    /**
+     * Encode each track to every format at once, reading its wav file only once, rather than one format at a time.
+     *
+     * The per-format thread limits don't apply as every format is encoded together.
+     *
+     * @param fanOut whether to fan out, must be set before any tracks are queued.
+     */
+    public void setFanOut(boolean fanOut)
+    {
+
+        _fanOut = fanOut;
+    }
+
+
+    /**
+     * Limit the number of tasks queued, so whatever is queueing tracks is held back while the workers catch up.
+     *
+     * @param capacity the maximum number of tasks to queue, counting each format separately.
+     */
+    public void setCapacity(int capacity)
+    {
+
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Need a capacity of at least one, not " + capacity);
+        }
+
+        _capacity = capacity;
+    }
+
+
+    /**
+     * Journal each task so a killed run can be recovered.
+     *
+     * @param journal the journal, must be set before any tracks are queued.
+     */
+    public void setJournal(EncodeJournal journal)
+    {
+
+        _journal = journal;
+    }
+
+
+    /**
+     * Report the progress through the queued audio.
+     *
+     * @param progress the reporter, created with {@link #getFormatLabels()}, must be set before any tracks are queued.
+     */
+    public void setProgress(ProgressReporter progress)
+    {
+
+        _progress = progress;
+    }
+
+
+    /**
+     * Get the label each format is reported and exported under, so FlacEncoder is 'flac'.
+     *
+     * @return the labels, in the order the formats were given.
+     */
+    public List<String> getFormatLabels()
+    {
+
+        List<String> labels = new ArrayList<>();
+        for (FormatQueue format : _formats)
+        {
+            labels.add(format._label);
+        }
+
+        return labels;
+    }
+
+
+    /**
+     * Start the worker threads.
+     */
+    public void start()
+    {
+
+        _executor = Executors.newFixedThreadPool(_workers);
+        for (int i = 0; i < _workers; i++)
+        {
+            _executor.execute(this::work);
+        }
+
+        // The threads exit once the workers run out of work, so nothing can keep the JVM running after a failure
+        _executor.shutdown();
+    }
+
+
+    /**
+     * Queue this track for encoding to every format it is not already up to date in, waiting for room if the queue is
+     * full.
+     *
+     * @param track the track to encode.
+     * @return the number of formats queued.
+     * @throws InterruptedException if this thread is interrupted while waiting for room.
+     */
+    public int queue(Track track) throws InterruptedException
+    {
+
+        List<FormatQueue> stale = new ArrayList<>();
+        List<FormatQueue> upToDate = new ArrayList<>();
+        for (FormatQueue format : _formats)
+        {
+            (format._encoder.isUpToDate(track) ? upToDate : stale).add(format);
+        }
+
+        File wavFile = track.getWavFile();
+        List<String> labels = new ArrayList<>();
+        double seconds = 0;
+        if (_progress != null)
+        {
+            for (FormatQueue format : stale)
+            {
+                labels.add(format._label);
+            }
+            // Tracks found by the scan have their duration, a freshly ripped one's header is read now
+            seconds = track.getSampleCount() > 0 ? track.getDuration() : AudioHeader.readDuration(wavFile);
+        }
+
+        _lock.lock();
+        try
+        {
+            // Always let one track in, however small the capacity
+            while (!_shutdown && _depth > 0 && _depth + stale.size() > _capacity)
+            {
+                _changed.await();
+            }
+
+            if (_shutdown)
+            {
+                throw new IllegalStateException("Scheduler has been shutdown");
+            }
+
+            // Only register the track once it's admitted, so an interrupted wait or a shutdown leaves nothing behind
+            if (_journal != null)
+            {
+                _journal.queued(wavFile, _formats.size());
+            }
+            if (!_dryRun)
+            {
+                _monitor.monitor(wavFile, _formats.size());
+            }
+            if (_progress != null)
+            {
+                _progress.queued(wavFile, seconds, labels);
+            }
+
+            _depth += stale.size();
+            for (FormatQueue format : upToDate)
+            {
+                format._skipped++;
+                format._skippedCount.inc();
+            }
+
+            if (_fanOut && !stale.isEmpty())
+            {
+                _fanOutTasks.add(new QueuedTrack(null, stale, track, _sequence++));
+            }
+            else
+            {
+                for (FormatQueue format : stale)
+                {
+                    format._tasks.add(new QueuedTrack(format, null, track, _sequence++));
+                }
+            }
+            _changed.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (FormatQueue format : upToDate)
+        {
+            System.out.println(String.format("Skipping %s for %s, already encoded", wavFile.getName(), format._encoder));
+            if (_journal != null)
+            {
+                _journal.finished(wavFile, null, true);
+            }
+            if (!_dryRun)
+            {
+                _monitor.successfullyEncoded(wavFile);
+            }
+        }
+
+        return stale.size();
+    }
+
+
+    /**
+     * Signal that no more tracks will be queued, any tracks already queued will still be encoded.
+     */
+    public void shutdown()
+    {
+
+        _lock.lock();
+        try
+        {
+            _shutdown = true;
+            _changed.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Wait for all queued tracks to be encoded, {@link #shutdown()} must have been called.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if all workers finished, false if the timeout elapsed.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+
+        return _executor.awaitTermination(timeout, unit);
+    }
+
+
+    /**
+     * Get the number of tasks waiting to be encoded.
+     *
+     * @return the number of queued tasks.
+     */
+    public int getQueueDepth()
+    {
+
+        _lock.lock();
+        try
+        {
+            return _depth;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Get the number of tasks successfully encoded, across all formats.
+     *
+     * @return the number of tasks encoded.
+     */
+    public int getTracksEncoded()
+    {
+
+        _lock.lock();
+        try
+        {
+            int encoded = 0;
+            for (FormatQueue format : _formats)
+            {
+                encoded += format._encoded;
+            }
+
+            return encoded;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Print a summary of each format's results.
+     */
+    public void report()
+    {
+
+        _lock.lock();
+        try
+        {
+            for (FormatQueue format : _formats)
+            {
+                long started = format._encoded + format._failed;
+                long averageWait = started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(format._totalWaitNanos / started);
+                System.out.println(String.format("%s: encoded %d tracks, %d failed, %d up to date, average queue wait %d ms", format._encoder.command(),
+                        format._encoded, format._failed, format._skipped, averageWait));
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Run tasks until shutdown and there is nothing left to encode.
+     */
+    private void work()
+    {
+
+        try
+        {
+            QueuedTrack queued = take();
+            while (queued != null)
+            {
+                // A bug in one encode mustn't take the worker down with it
+                try
+                {
+                    if (queued._format == null)
+                    {
+                        fanOut(queued._fanOutFormats, queued._track);
+                    }
+                    else
+                    {
+                        encode(queued._format, queued._track);
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    if (queued._format != null)
+                    {
+                        release(queued._format);
+                    }
+                }
+
+                queued = take();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Wait for a runnable task and claim it.
+     *
+     * @return the claimed task, or null if there is no more work.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private QueuedTrack take() throws InterruptedException
+    {
+
+        _lock.lock();
+        try
+        {
+            while (true)
+            {
+                QueuedTrack fanOut = _fanOutTasks.poll();
+                if (fanOut != null)
+                {
+                    long waitNanos = System.nanoTime() - fanOut._queuedAt;
+                    for (FormatQueue format : fanOut._fanOutFormats)
+                    {
+                        format.waited(waitNanos);
+                    }
+                    _depth -= fanOut._fanOutFormats.size();
+                    _changed.signalAll();
+
+                    return fanOut;
+                }
+
+                FormatQueue next = null;
+                boolean queued = false;
+                for (FormatQueue format : _formats)
+                {
+                    QueuedTrack head = format._tasks.peek();
+                    if (head != null)
+                    {
+                        queued = true;
+                        if (format._running < format._encoder.getThreads() && (next == null || head._sequence < next._tasks.peek()._sequence))
+                        {
+                            next = format;
+                        }
+                    }
+                }
+
+                if (next != null)
+                {
+                    QueuedTrack task = next._tasks.poll();
+                    next._running++;
+                    next.waited(System.nanoTime() - task._queuedAt);
+                    _depth--;
+                    _changed.signalAll();
+
+                    return task;
+                }
+
+                if (_shutdown && !queued)
+                {
+                    return null;
+                }
+
+                _changed.await();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Encode the track to the format.
+     *
+     * @param format the format to encode to.
+     * @param track the track to encode.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private void encode(FormatQueue format, Track track) throws InterruptedException
+    {
+
+        boolean success;
+        EncodeTask task = null;
+        long wavLength = track.getWavFile().length();
+        long start = System.nanoTime();
+        try
+        {
+            task = format._encoder.createTask(track, _dryRun);
+            if (_journal != null)
+            {
+                _journal.running(track.getWavFile(), task.getTempDest());
+            }
+            success = task.encode();
+        }
+        catch (InterruptedException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            success = false;
+        }
+
+        if (_journal != null)
+        {
+            _journal.finished(track.getWavFile(), task == null ? null : task.getTempDest(), success);
+        }
+
+        format._duration.observeNanos(System.nanoTime() - start);
+        encoded(format, track, success);
+        if (success && task != null)
+        {
+            format.transferred(wavLength, task.getDestFile().length());
+        }
+    }
+
+
+    /**
+     * Encode the track to several formats at once, reading the wav file only once.
+     *
+     * @param queued the formats to encode to.
+     * @param track the track to encode.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private void fanOut(List<FormatQueue> queued, Track track) throws InterruptedException
+    {
+
+        List<EncodeTask> tasks = new ArrayList<>();
+        List<FormatQueue> formats = new ArrayList<>();
+        long wavLength = track.getWavFile().length();
+        long start = System.nanoTime();
+        for (FormatQueue format : queued)
+        {
+            try
+            {
+                EncodeTask task = format._encoder.createTask(track, _dryRun);
+                if (_journal != null)
+                {
+                    _journal.running(track.getWavFile(), task.getTempDest());
+                }
+                tasks.add(task);
+                formats.add(format);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                e.printStackTrace();
+                if (_journal != null)
+                {
+                    _journal.finished(track.getWavFile(), null, false);
+                }
+                encoded(format, track, false);
+            }
+        }
+
+        // A track ripped to FLAC is copied rather than streamed to the FLAC formats
+        List<EncodeTask> streamed = new ArrayList<>();
+        for (EncodeTask task : tasks)
+        {
+            if (!task.isCopy())
+            {
+                streamed.add(task);
+            }
+        }
+
+        boolean[] streamedSuccess;
+        try
+        {
+            streamedSuccess = streamed.isEmpty() ? new boolean[0] : new EncodeFanOut(streamed).encode(openSource(track));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            e.printStackTrace();
+            streamedSuccess = new boolean[streamed.size()];
+        }
+
+        boolean[] success = new boolean[tasks.size()];
+        int next = 0;
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            EncodeTask task = tasks.get(i);
+            if (!task.isCopy())
+            {
+                success[i] = streamedSuccess[next++];
+            }
+            else
+            {
+                try
+                {
+                    success[i] = task.encode();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Every format took as long as the slowest, they share the one read of the wav file
+        long duration = System.nanoTime() - start;
+        for (int i = 0; i < formats.size(); i++)
+        {
+            if (_journal != null)
+            {
+                _journal.finished(track.getWavFile(), tasks.get(i).getTempDest(), success[i]);
+            }
+            FormatQueue format = formats.get(i);
+            format._duration.observeNanos(duration);
+            encoded(format, track, success[i]);
+            if (success[i])
+            {
+                format.transferred(wavLength, tasks.get(i).getDestFile().length());
+            }
+        }
+    }
+
+
+    /**
+     * Open a track's wav data, decoding it if the track was ripped to FLAC.
+     *
+     * @param track the track.
+     * @return the wav data.
+     * @throws IOException if unable to open the file or start the decoder.
+     */
+    private InputStream openSource(Track track) throws IOException
+    {
+
+        // Nothing is read in a dry run, so don't start a decoder
+        if (track.isFlac() && !_dryRun)
+        {
+            return FlacDecoder.decode(track.getWavFile());
+        }
+
+        return new FileInputStream(track.getWavFile());
+    }
+
+
+    /**
+     * Record the result of encoding a track to a format.
+     *
+     * @param format the format encoded to.
+     * @param track the track encoded.
+     * @param success whether or not the encoding was successful.
+     */
+    private void encoded(FormatQueue format, Track track, boolean success)
+    {
+
+        File wavFile = track.getWavFile();
+        if (success)
+        {
+            if (!_dryRun)
+            {
+                _monitor.successfullyEncoded(wavFile);
+            }
+        }
+        else
+        {
+            System.err.println("Unable to encode " + wavFile.getName() + " with " + format._encoder);
+        }
+        if (_progress != null)
+        {
+            _progress.finished(wavFile, format._label);
+        }
+
+        _lock.lock();
+        try
+        {
+            if (success)
+            {
+                format._encoded++;
+                format._encodedCount.inc();
+            }
+            else
+            {
+                format._failed++;
+                format._failedCount.inc();
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * Release a format's thread once its task has finished and wake any waiting workers.
+     *
+     * @param format the format the task was taken from.
+     */
+    private void release(FormatQueue format)
+    {
+
+        _lock.lock();
+        try
+        {
+            format._running--;
+            _changed.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+
+    /**
+     * The queued tracks and counts for one format, guarded by the scheduler's lock.
+     */
+    private static final class FormatQueue
+    {
+
+        /**
+         * The format's Encoder.
+         */
+        private final Encoder _encoder;
+
+
+        /**
+         * The label the format is reported and exported under.
+         */
+        private final String _label;
+
+
+        /**
+         * The queued tracks, oldest first.
+         */
+        private final Deque<QueuedTrack> _tasks;
+
+
+        /**
+         * The number of tasks running.
+         */
+        private int _running;
+
+
+        /**
+         * The number of tasks encoded.
+         */
+        private int _encoded;
+
+
+        /**
+         * The number of tasks failed.
+         */
+        private int _failed;
+
+
+        /**
+         * The number of tracks not queued as they were already up to date.
+         */
+        private int _skipped;
+
+
+        /**
+         * The total time tasks spent queued.
+         */
+        private long _totalWaitNanos;
+
+
+        /**
+         * The number of tasks encoded, as exported.
+         */
+        private Counter _encodedCount;
+
+
+        /**
+         * The number of tasks failed, as exported.
+         */
+        private Counter _failedCount;
+
+
+        /**
+         * The number of tracks not queued as they were already up to date, as exported.
+         */
+        private Counter _skippedCount;
+
+
+        /**
+         * The bytes of wav data read by successful encodes.
+         */
+        private Counter _bytesRead;
+
+
+        /**
+         * The bytes of encoded data written by successful encodes.
+         */
+        private Counter _bytesWritten;
+
+
+        /**
+         * How long each encode took.
+         */
+        private Histogram _duration;
+
+
+        /**
+         * How long each task spent queued.
+         */
+        private Histogram _wait;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param encoder the format's Encoder.
+         */
+        private FormatQueue(Encoder encoder)
+        {
+
+            _encoder = encoder;
+            _label = createLabel(encoder);
+            _tasks = new ArrayDeque<>();
+        }
+
+
+        /**
+         * Create this format's metrics.
+         *
+         * @param metrics where to create them.
+         */
+        private void register(MetricsRegistry metrics)
+        {
+
+            _encodedCount = metrics.counter("cdripper_encodes_total", "Encodes finished", "format", _label, "result", "success");
+            _failedCount = metrics.counter("cdripper_encodes_total", "Encodes finished", "format", _label, "result", "failure");
+            _skippedCount = metrics.counter("cdripper_encodes_skipped_total", "Tracks not encoded as they were already up to date", "format",
+                    _label);
+            _bytesRead = metrics.counter("cdripper_bytes_read_total", "Bytes of wav data read by successful encodes", "format", _label);
+            _bytesWritten = metrics.counter("cdripper_bytes_written_total", "Bytes of encoded data written by successful encodes", "format",
+                    _label);
+            _duration = metrics.histogram("cdripper_encode_duration_seconds", "How long each encode took", DURATION_BUCKETS, "format", _label);
+            _wait = metrics.histogram("cdripper_queue_wait_seconds", "How long each encode waited for a worker", WAIT_BUCKETS, "format", _label);
+
+            Counter read = _bytesRead;
+            Counter written = _bytesWritten;
+            metrics.gauge("cdripper_compression_ratio", "Bytes written per byte of wav read", () -> {
+                long readBytes = read.get();
+                return readBytes == 0 ? Double.NaN : (double)written.get() / readBytes;
+            }, "format", _label);
+        }
+
+
+        /**
+         * Record how long a task spent queued, the scheduler's lock must be held.
+         *
+         * @param waitNanos the time queued.
+         */
+        private void waited(long waitNanos)
+        {
+
+            _totalWaitNanos += waitNanos;
+            _wait.observeNanos(waitNanos);
+        }
+
+
+        /**
+         * Record the bytes read and written by a successful encode.
+         *
+         * @param read the length of the wav file.
+         * @param written the length of the encoded file.
+         */
+        private void transferred(long read, long written)
+        {
+
+            _bytesRead.add(read);
+            _bytesWritten.add(written);
+        }
+
+
+        /**
+         * Create the label for a format, from its Encoder's class, so FlacEncoder is 'flac'.
+         *
+         * @param encoder the format's Encoder.
+         * @return the label.
+         */
+        private static String createLabel(Encoder encoder)
+        {
+
+            String name = encoder.getClass().getSimpleName();
+            if (name.endsWith("Encoder") && name.length() > "Encoder".length())
+            {
+                name = name.substring(0, name.length() - "Encoder".length());
+            }
+
+            return name.toLowerCase();
+        }
+    }
+
+
+    /**
+     * A Track queued for one format, along with when it was queued.
+     */
+    private static final class QueuedTrack
+    {
+
+        /**
+         * The format to encode to, null to encode to several formats at once.
+         */
+        private final FormatQueue _format;
+
+
+        /**
+         * The formats to encode to at once, null unless encoding to every format at once.
+         */
+        private final List<FormatQueue> _fanOutFormats;
+
+
+        /**
+         * The track to encode.
+         */
+        private final Track _track;
+
+
+        /**
+         * The order the track was queued in.
+         */
+        private final long _sequence;
+
+
+        /**
+         * When the track was queued, from {@link System#nanoTime()}.
+         */
+        private final long _queuedAt;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param format the format to encode to, null for several formats at once.
+         * @param fanOutFormats the formats to encode to at once, null for a single format.
+         * @param track the track to encode.
+         * @param sequence the order the track was queued in.
+         */
+        private QueuedTrack(FormatQueue format, List<FormatQueue> fanOutFormats, Track track, long sequence)
+        {
+
+            _format = format;
+            _fanOutFormats = fanOutFormats;
+            _track = track;
+            _sequence = sequence;
+            _queuedAt = System.nanoTime();
+        }
+    }
+}
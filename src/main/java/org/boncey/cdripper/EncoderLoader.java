@@ -1,14 +1,19 @@
 package org.boncey.cdripper;
 
 import org.boncey.cdripper.encoder.AbstractEncoder;
+import org.boncey.cdripper.encoder.EncodeManifest;
 import org.boncey.cdripper.encoder.Encoder;
+import org.boncey.cdripper.metrics.MetricsExporter;
+import org.boncey.cdripper.metrics.MetricsRegistry;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -32,22 +37,57 @@ public class EncoderLoader
     private static final String ENCODER_LOCATION_KEY = "encoder.location";
 
 
+    /**
+     * The key for the number of threads per encoder in the properties file.
+     */
+    private static final String ENCODER_THREADS_KEY = "encoder.threads";
+
+
+    /**
+     * The key for the number of encodes to run at once, across all encoders, in the properties file.
+     */
+    private static final String WORKERS_KEY = "encoder.workers";
+
+
+    /**
+     * The key for the Prometheus text file to write the metrics to in the properties file.
+     */
+    private static final String METRICS_TEXTFILE_KEY = "metrics.textfile";
+
+
+    /**
+     * The key for the number of seconds between writes of the metrics text file in the properties file.
+     */
+    private static final String METRICS_INTERVAL_KEY = "metrics.interval";
+
+
+    /**
+     * The key for the JSON file to write a summary of the metrics to at exit in the properties file.
+     */
+    private static final String METRICS_SUMMARY_KEY = "metrics.summary";
+
+
+    /**
+     * Where the metrics summary is written if not set, relative to the user's home directory.
+     */
+    private static final String DEFAULT_SUMMARY = ".cdripper/metrics.json";
+
+
     /**
      * Read the Encoders from the properties file.
      * 
      * @param propFile the details of the Encoders.
-     * @param encoded the {@link Encoded} implementation to track files being encoded.
      * @return the Set of {@link Encoder}s.
      * @throws IOException if there was an IO problem.
      * 
      */
-    public List<Encoder> loadEncoders(File propFile, Encoded encoded) throws IOException
+    public List<Encoder> loadEncoders(File propFile) throws IOException
     {
 
-        Properties properties = new Properties();
-        properties.load(new FileInputStream(propFile));
+        Properties properties = loadProperties(propFile);
 
         List<Encoder> encoders = new ArrayList<>();
+        Map<File, EncodeManifest> manifests = new HashMap<>();
         for (Object entry : properties.keySet())
         {
             String key = String.valueOf(entry);
@@ -76,8 +116,24 @@ public class EncoderLoader
                     }
 
                     Class<?> encoderClass = Class.forName(value);
-                    Constructor<?> c = encoderClass.getConstructor(Encoded.class, File.class);
-                    Encoder encoder = (AbstractEncoder)c.newInstance(encoded, location);
+                    Constructor<?> c = encoderClass.getConstructor(File.class);
+                    AbstractEncoder encoder = (AbstractEncoder)c.newInstance(location);
+
+                    String threads = properties.getProperty(ENCODER_THREADS_KEY + label);
+                    if (threads != null)
+                    {
+                        encoder.setThreads(parseCount(threads, ENCODER_THREADS_KEY + label));
+                    }
+
+                    // Encoders sharing a location share its manifest
+                    File canonical = location.getCanonicalFile();
+                    EncodeManifest manifest = manifests.get(canonical);
+                    if (manifest == null)
+                    {
+                        manifest = new EncodeManifest(canonical);
+                        manifests.put(canonical, manifest);
+                    }
+                    encoder.setManifest(manifest);
 
                     encoders.add(encoder);
                 }
@@ -90,4 +146,94 @@ public class EncoderLoader
 
         return encoders;
     }
+
+
+    /**
+     * Read the number of encodes to run at once, across all encoders, from the properties file.
+     * 
+     * @param propFile the details of the Encoders.
+     * @return the number of workers, defaulting to the number of available cores.
+     * @throws IOException if there was an IO problem.
+     */
+    public int loadWorkers(File propFile) throws IOException
+    {
+
+        String workers = loadProperties(propFile).getProperty(WORKERS_KEY);
+
+        return workers == null ? Runtime.getRuntime().availableProcessors() : parseCount(workers, WORKERS_KEY);
+    }
+
+
+    /**
+     * Read where to export the metrics to from the properties file.
+     * 
+     * The Prometheus text file is only written if set, the JSON summary defaults to ~/.cdripper/metrics.json.
+     * 
+     * @param propFile the details of the Encoders.
+     * @param metrics the metrics to export.
+     * @return the exporter, not yet started.
+     * @throws IOException if there was an IO problem.
+     */
+    public MetricsExporter loadMetricsExporter(File propFile, MetricsRegistry metrics) throws IOException
+    {
+
+        Properties properties = loadProperties(propFile);
+
+        MetricsExporter exporter = new MetricsExporter(metrics);
+        String textFile = properties.getProperty(METRICS_TEXTFILE_KEY);
+        if (textFile != null)
+        {
+            exporter.setTextFile(new File(textFile.trim()));
+        }
+        String interval = properties.getProperty(METRICS_INTERVAL_KEY);
+        if (interval != null)
+        {
+            exporter.setInterval(parseCount(interval, METRICS_INTERVAL_KEY));
+        }
+        String summary = properties.getProperty(METRICS_SUMMARY_KEY);
+        exporter.setSummaryFile(summary == null ? new File(System.getProperty("user.home"), DEFAULT_SUMMARY) : new File(summary.trim()));
+
+        return exporter;
+    }
+
+
+    /**
+     * Load the properties file.
+     * 
+     * @param propFile the properties file.
+     * @return the properties.
+     * @throws IOException if there was an IO problem.
+     */
+    private Properties loadProperties(File propFile) throws IOException
+    {
+
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(propFile))
+        {
+            properties.load(in);
+        }
+
+        return properties;
+    }
+
+
+    /**
+     * Parse a thread count from the properties file.
+     * 
+     * @param value the value to parse.
+     * @param key the key the value was read from.
+     * @return the count.
+     */
+    private int parseCount(String value, String key)
+    {
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new RuntimeException(String.format("Invalid value '%s' for %s", value, key), e);
+        }
+    }
 }
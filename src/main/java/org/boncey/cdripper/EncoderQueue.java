@@ -1,16 +1,17 @@
 package org.boncey.cdripper;
 
 
+import org.boncey.cdripper.encoder.AbstractEncoder;
 import org.boncey.cdripper.encoder.Encoder;
+import org.boncey.cdripper.metrics.MetricsRegistry;
 import org.boncey.cdripper.model.Track;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -23,9 +24,9 @@ public class EncoderQueue
 {
 
     /**
-     * A count of tracks encoded.
+     * The wav files that couldn't be parsed as tracks or are incomplete, with why.
      */
-    private int _tracksEncoded;
+    private final Queue<String> _malformed = new ConcurrentLinkedQueue<>();
 
 
     /**
@@ -41,9 +42,9 @@ public class EncoderQueue
 
 
     /**
-     * The {@link Encoded} implementation to monitor tracks being encoded.
+     * The scheduler that runs the encodes.
      */
-    private final Encoded _monitor;
+    private final EncodeScheduler _scheduler;
 
 
     /**
@@ -58,6 +59,18 @@ public class EncoderQueue
     public static final String WAV_EXT = ".wav";
 
 
+    /**
+     * The extension for files ripped to FLAC rather than wav.
+     */
+    public static final String FLAC_EXT = ".flac";
+
+
+    /**
+     * The number of tasks to queue per worker before the scan waits for the workers to catch up.
+     */
+    private static final int TASKS_PER_WORKER = 8;
+
+
     /**
      * Perform a "dry run", don't encode tracks or change file-system.
      */
@@ -69,80 +82,52 @@ public class EncoderQueue
      * 
      * @param baseDir the base directory to read the raw files from.
      * @param encoders the List of {@link Encoder}s.
-     * @param monitor
+     * @param scheduler the scheduler to queue the tracks on.
      * @param dryRun
      * @throws IOException if there was an IO problem.
      * @throws InterruptedException
      */
-    public EncoderQueue(File baseDir, List<Encoder> encoders, Encoded monitor, boolean dryRun) throws IOException, InterruptedException
+    public EncoderQueue(File baseDir, List<Encoder> encoders, EncodeScheduler scheduler, boolean dryRun) throws IOException, InterruptedException
     {
 
         _fileSystemCleaner = new FileSystemCleaner();
         try
         {
-            _monitor = monitor;
+            _scheduler = scheduler;
             _encoders = encoders;
             _baseDir = baseDir;
             _dryRun = dryRun;
 
-            dependenciesInstalled(encoders);
-
-            List<File> files = findRawFiles(_baseDir);
-            Collections.sort(files);
+            // Any of the tracks found may have been ripped to FLAC
+            dependenciesInstalled(encoders, true);
 
-            if (files.size() > 0)
+            // Tracks are queued as they're found, the scan waits whenever the queue is full
+            TrackScanner scanner = new TrackScanner(_baseDir);
+            scanner.setExcluded(getLocations(encoders));
+            int found = scanner.scan(this::found);
+            if (!dryRun)
             {
-
-                for (File file : files)
-                {
-                    Track track = Track.createTrack(file, baseDir, WAV_EXT);
-                    if (track != null)
-                    {
-                        queue(track);
-                    }
-                }
+                scanner.saveSnapshot();
             }
-            else
+
+            if (found == 0)
             {
                 System.err.println("No wav files found in " + baseDir);
             }
-        }
-        finally
-        {
-            shutdown();
-        }
-    }
-
 
-    /**
-     * Find any files that require encoding.
-     * 
-     * @param dir the directory to search from.
-     * @return a List of files found.
-     */
-    private List<File> findRawFiles(File dir)
-    {
-
-        List<File> files = new ArrayList<>();
-
-        File[] fileArray = dir.listFiles();
-        if (fileArray != null)
-        {
-            for (File file : fileArray)
+            if (!_malformed.isEmpty())
             {
-                String filename = file.getName();
-                if (file.isDirectory() && !filename.startsWith("."))
+                System.err.println(String.format("Ignoring %d wav files that couldn't be parsed or are incomplete:", _malformed.size()));
+                for (String malformed : _malformed)
                 {
-                    files.addAll(findRawFiles(file));
-                }
-                else if (filename.endsWith(EncoderQueue.WAV_EXT))
-                {
-                    files.add(file);
+                    System.err.println("    " + malformed);
                 }
             }
         }
-
-        return files;
+        finally
+        {
+            shutdown();
+        }
     }
 
 
@@ -164,67 +149,115 @@ public class EncoderQueue
      * Are the {@link Encoder} dependencies installed?
      * 
      * @param encoders
+     * @param flacSources whether the encoders may be given tracks ripped to FLAC.
      * @throws InterruptedException
      * @throws IOException
      */
-    private void dependenciesInstalled(List<Encoder> encoders) throws IOException, InterruptedException
+    static void dependenciesInstalled(List<Encoder> encoders, boolean flacSources) throws IOException, InterruptedException
     {
 
-        for (Encoder encoder : encoders)
-        {
+        new DependencyProbe().check(encoders, flacSources);
+    }
 
-            if (!encoder.dependenciesInstalled())
-            {
 
-                throw new IllegalStateException(String.format("Encoder %s does not have %s installed", encoder, encoder.command()));
-            }
+    /**
+     * Get the extension of a file to encode.
+     * 
+     * @param name the file name.
+     * @return {@link #WAV_EXT} or {@link #FLAC_EXT}, or null if it's not a track, such as an encoder's temporary file.
+     */
+    static String getTrackExt(String name)
+    {
+
+        if (name.endsWith(WAV_EXT))
+        {
+            return WAV_EXT;
         }
+        if (name.endsWith(FLAC_EXT) && !name.startsWith(AbstractEncoder.TEMP_PREFIX))
+        {
+            return FLAC_EXT;
+        }
+
+        return null;
     }
 
 
     /**
-     * Queue this track for encoding.
+     * Get the locations the encoders save to, which aren't scanned so encoded FLAC files aren't taken for tracks.
      * 
-     * @param track the track to encode.
+     * @param encoders the encoders.
+     * @return the locations.
      */
-    public void queue(Track track)
+    static List<File> getLocations(List<Encoder> encoders)
     {
 
-        if (!_dryRun)
+        List<File> locations = new ArrayList<>();
+        for (Encoder encoder : encoders)
         {
-            _monitor.monitor(track.getWavFile(), _encoders.size());
+            locations.add(encoder.getLocation());
         }
 
-        for (Encoder encoder : _encoders)
+        return locations;
+    }
+
+
+    /**
+     * Queue a wav file found by the scan.
+     * 
+     * @param wavFile the wav file.
+     * @throws InterruptedException if this thread is interrupted while waiting for room in the queue.
+     */
+    private void found(File wavFile) throws InterruptedException
+    {
+
+        Track track;
+        try
         {
-            encoder.queue(track, _dryRun);
-            _tracksEncoded++;
+            track = Track.readTrack(wavFile, _baseDir, getTrackExt(wavFile.getName()));
         }
+        catch (IllegalArgumentException e)
+        {
+            // Reported together once the scan has finished
+            _malformed.add(e.getMessage());
+            return;
+        }
+
+        queue(track);
+    }
+
+
+    /**
+     * Queue this track for encoding to any formats it's not already up to date in.
+     * 
+     * @param track the track to encode.
+     * @throws InterruptedException if this thread is interrupted while waiting for room in the queue.
+     */
+    public void queue(Track track) throws InterruptedException
+    {
+
+        _scheduler.queue(track);
     }
 
 
     /**
-     * Shutdown the encoders.
+     * Shutdown the encoders once the queued tracks are encoded.
      */
     public void shutdown()
     {
 
-        for (Encoder encoder : _encoders)
-        {
-            encoder.shutdown();
-        }
+        _scheduler.shutdown();
     }
 
 
     /**
-     * Get the tracksEncoded.
+     * Get the number of tracks successfully encoded, counting each format separately.
      * 
      * @return the tracksEncoded.
      */
     private int getTracksEncoded()
     {
 
-        return _tracksEncoded;
+        return _scheduler.getTracksEncoded();
     }
 
 
@@ -233,7 +266,6 @@ public class EncoderQueue
      * 
      * @param args the base directory.
      */
-    @SuppressWarnings("boxing")
     public static void main(String[] args)
     {
 
@@ -244,9 +276,27 @@ public class EncoderQueue
 
         int argIndex = 0;
         boolean dryRun = false;
-        if (args.length == 3)
+        boolean watch = false;
+        boolean fanOut = false;
+        while (args.length - argIndex > 2)
         {
-            dryRun = "--dry-run".equals(args[argIndex++]);
+            String option = args[argIndex++];
+            if ("--dry-run".equals(option))
+            {
+                dryRun = true;
+            }
+            else if ("--watch".equals(option))
+            {
+                watch = true;
+            }
+            else if ("--fan-out".equals(option))
+            {
+                fanOut = true;
+            }
+            else
+            {
+                usage();
+            }
         }
 
         File baseDir = new File(args[argIndex++]);
@@ -264,22 +314,59 @@ public class EncoderQueue
 
         try
         {
-            Encoded monitor = new FileDeletingTrackMonitor();
-            List<Encoder> encoders = new EncoderLoader().loadEncoders(props, monitor);
-            ExecutorService executor = executeEncoders(encoders);
-            EncoderQueue encoderQueue = new EncoderQueue(baseDir, encoders, monitor, dryRun);
-            executor.shutdown();
-            executor.awaitTermination(30, TimeUnit.MINUTES);
-
-            encoderQueue.cleanup(baseDir, dryRun);
-            if (encoderQueue.getTracksEncoded() == 0)
+            MetricsRegistry metrics = new MetricsRegistry();
+            Encoded monitor = new FileDeletingTrackMonitor(metrics);
+            EncoderLoader loader = new EncoderLoader();
+            List<Encoder> encoders = loader.loadEncoders(props);
+            int workers = loader.loadWorkers(props);
+            EncodeScheduler scheduler = new EncodeScheduler(encoders, monitor, workers, dryRun);
+            scheduler.setMetrics(metrics);
+            scheduler.setFanOut(fanOut);
+
+            ProgressReporter progress = new ProgressReporter(scheduler.getFormatLabels());
+            if (watch && !dryRun)
             {
-                // Return -1 so we don't trigger success notifications in any caller
-                System.exit(-1);
+                progress.setStatusFile(new File(baseDir, ProgressReporter.STATUS_NAME));
+            }
+            scheduler.setProgress(progress);
+            scheduler.setCapacity(workers * TASKS_PER_WORKER);
+
+            // Recover from any run that was killed before looking for work
+            if (!dryRun || new File(baseDir, EncodeJournal.JOURNAL_NAME).exists())
+            {
+                EncodeJournal journal = new EncodeJournal(baseDir);
+                journal.recover(dryRun);
+                if (!dryRun)
+                {
+                    scheduler.setJournal(journal);
+                }
+            }
+            scheduler.start();
+
+            // A dry run would only export misleading numbers
+            if (!dryRun)
+            {
+                loader.loadMetricsExporter(props, metrics).start();
+            }
+
+            if (watch)
+            {
+                try
+                {
+                    dependenciesInstalled(encoders, true);
+                    FolderWatcher watcher = new FolderWatcher(baseDir, scheduler, dryRun);
+                    watcher.setExcluded(getLocations(encoders));
+                    watcher.watch();
+                }
+                finally
+                {
+                    // Let the workers finish what's queued so we can exit
+                    scheduler.shutdown();
+                }
             }
             else
             {
-                System.out.println(String.format("Encoded %d tracks", encoderQueue.getTracksEncoded()));
+                encodeOnce(baseDir, encoders, scheduler, dryRun);
             }
         }
         catch (Exception e)
@@ -290,21 +377,35 @@ public class EncoderQueue
 
 
     /**
-     * Start the encoder threads.
+     * Encode the tracks found in the base directory then exit.
      * 
-     * @param encoders
-     * @return
+     * @param baseDir the base directory to read the raw files from.
+     * @param encoders the List of {@link Encoder}s.
+     * @param scheduler the started scheduler.
+     * @param dryRun
+     * @throws IOException if there was an IO problem.
+     * @throws InterruptedException
      */
-    private static ExecutorService executeEncoders(List<Encoder> encoders)
+    @SuppressWarnings("boxing")
+    private static void encodeOnce(File baseDir, List<Encoder> encoders, EncodeScheduler scheduler, boolean dryRun)
+            throws IOException, InterruptedException
     {
-        ExecutorService executor = Executors.newFixedThreadPool(encoders.size());
 
-        for (Encoder encoder : encoders)
+        EncoderQueue encoderQueue = new EncoderQueue(baseDir, encoders, scheduler, dryRun);
+        scheduler.awaitTermination(30, TimeUnit.MINUTES);
+
+        encoderQueue.cleanup(baseDir, dryRun);
+        scheduler.report();
+
+        if (encoderQueue.getTracksEncoded() == 0)
         {
-            executor.execute(encoder);
+            // Return -1 so we don't trigger success notifications in any caller
+            System.exit(-1);
+        }
+        else
+        {
+            System.out.println(String.format("Encoded %d tracks", encoderQueue.getTracksEncoded()));
         }
-
-        return executor;
     }
 
 
@@ -313,7 +414,7 @@ public class EncoderQueue
      */
     private static void usage()
     {
-        System.err.println("Usage: Encode [--dry-run] <base dir> <encoder properties>");
+        System.err.println("Usage: Encode [--dry-run] [--watch] [--fan-out] <base dir> <encoder properties>");
         System.exit(-1);
     }
 }
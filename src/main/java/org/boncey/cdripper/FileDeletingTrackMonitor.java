@@ -1,5 +1,8 @@
 package org.boncey.cdripper;
 
+import org.boncey.cdripper.metrics.Counter;
+import org.boncey.cdripper.metrics.MetricsRegistry;
+
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,12 +22,34 @@ public class FileDeletingTrackMonitor implements Encoded
      */
     private final Map<File, AtomicInteger> _trackCount;
 
+    /**
+     * The number of wav files deleted.
+     */
+    private final Counter _deleted;
+
+    /**
+     * The number of wav files that couldn't be deleted.
+     */
+    private final Counter _deleteFailures;
+
     /**
      * Default constructor.
      */
     public FileDeletingTrackMonitor()
+    {
+        this(new MetricsRegistry());
+    }
+
+    /**
+     * Public constructor.
+     *
+     * @param metrics where to count the wav files deleted.
+     */
+    public FileDeletingTrackMonitor(MetricsRegistry metrics)
     {
         _trackCount = new HashMap<>();
+        _deleted = metrics.counter("cdripper_wav_deletions_total", "Wav files deleted once encoded to every format", "result", "success");
+        _deleteFailures = metrics.counter("cdripper_wav_deletions_total", "Wav files deleted once encoded to every format", "result", "failure");
     }
 
     /**
@@ -54,10 +79,12 @@ public class FileDeletingTrackMonitor implements Encoded
                 boolean deleted = rawFile.delete();
                 if (deleted)
                 {
+                    _deleted.inc();
                     System.out.println("Deleted " + rawFile.getName());
                 }
                 else
                 {
+                    _deleteFailures.inc();
                     System.err.println("Unable to delete " + rawFile);
                 }
             }
@@ -0,0 +1,390 @@
+package org.boncey.cdripper;
+
+
+import org.boncey.cdripper.model.Track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the base directory for newly ripped CDs and queues their tracks for encoding, for running as a daemon.
+ *
+ * A wav or FLAC file is only queued once its size and modification time have stopped changing, so files still being
+ * written are left alone. The rippers' working directories and the encoders' locations are never looked at.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2011 Darren Greaves.
+ */
+public class FolderWatcher
+{
+
+    /**
+     * How long a wav file must be unchanged for before it's queued.
+     */
+    private static final long SETTLE_MILLIS = 5000;
+
+
+    /**
+     * The base dir to encode from.
+     */
+    private final File _baseDir;
+
+
+    /**
+     * The scheduler to queue tracks on.
+     */
+    private final EncodeScheduler _scheduler;
+
+
+    /**
+     * Perform a "dry run", don't encode tracks or change file-system.
+     */
+    private final boolean _dryRun;
+
+
+    /**
+     * The directories being watched.
+     */
+    private final Map<WatchKey, Path> _keys;
+
+
+    /**
+     * The wav files waiting to settle, with how they looked when last checked, sorted so an album is queued in track
+     * order like the scan.
+     */
+    private final Map<File, FileState> _pending;
+
+
+    /**
+     * The wav files already queued.
+     */
+    private final Set<File> _queued;
+
+
+    /**
+     * The directories not to watch, absolute and normalised.
+     */
+    private Set<Path> _excluded = Collections.emptySet();
+
+
+    /**
+     * Public constructor.
+     *
+     * @param baseDir the base dir to watch.
+     * @param scheduler the started scheduler to queue tracks on.
+     * @param dryRun
+     */
+    public FolderWatcher(File baseDir, EncodeScheduler scheduler, boolean dryRun)
+    {
+
+        _baseDir = baseDir;
+        _scheduler = scheduler;
+        _dryRun = dryRun;
+        _keys = new HashMap<>();
+        _pending = new TreeMap<>();
+        _queued = new HashSet<>();
+    }
+
+
+    /**
+     * Don't watch these directories, or any below them.
+     *
+     * @param dirs the directories, such as the encoders' locations.
+     */
+    public void setExcluded(Collection<File> dirs)
+    {
+
+        _excluded = new HashSet<>();
+        for (File dir : dirs)
+        {
+            _excluded.add(dir.toPath().toAbsolutePath().normalize());
+        }
+    }
+
+
+    /**
+     * Queue any tracks already present then watch for more, until interrupted.
+     *
+     * @throws IOException if unable to watch the file system.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public void watch() throws IOException, InterruptedException
+    {
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService())
+        {
+            register(watcher, _baseDir);
+            System.out.println(String.format("Watching %s for new CDs", _baseDir));
+
+            while (true)
+            {
+                // Only wake up periodically while there are files settling
+                WatchKey key = _pending.isEmpty() ? watcher.take() : watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null)
+                {
+                    handleEvents(watcher, key);
+                }
+
+                queueSettled();
+            }
+        }
+    }
+
+
+    /**
+     * Handle the events for a watched directory.
+     *
+     * @param watcher the watch service.
+     * @param key the signalled key.
+     * @throws IOException if unable to watch the file system.
+     */
+    private void handleEvents(WatchService watcher, WatchKey key) throws IOException
+    {
+
+        Path dir = _keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                // Events were lost, so look at everything again
+                register(watcher, _baseDir);
+                continue;
+            }
+
+            File file = dir.resolve((Path)event.context()).toFile();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+            {
+                // Forget it so a re-ripped track of the same name is picked up
+                _queued.remove(file);
+                _pending.remove(file);
+                deleteIfEmpty(dir.toFile());
+            }
+            else if (file.isDirectory())
+            {
+                if (!ignored(file))
+                {
+                    register(watcher, file);
+                }
+            }
+            else if (EncoderQueue.getTrackExt(file.getName()) != null)
+            {
+                pending(file);
+            }
+        }
+
+        if (!key.reset())
+        {
+            _keys.remove(key);
+        }
+    }
+
+
+    /**
+     * Watch this directory and the directories below it, and look for any wav files already present.
+     *
+     * @param watcher the watch service.
+     * @param dir the directory to watch.
+     * @throws IOException if unable to watch the file system.
+     */
+    private void register(WatchService watcher, File dir) throws IOException
+    {
+
+        WatchKey key = dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        _keys.put(key, dir.toPath());
+
+        File[] subdirs = dir.listFiles(File::isDirectory);
+        if (subdirs != null)
+        {
+            for (File subdir : subdirs)
+            {
+                if (!ignored(subdir))
+                {
+                    register(watcher, subdir);
+                }
+            }
+        }
+
+        File[] wavFiles = dir.listFiles((d, name) -> EncoderQueue.getTrackExt(name) != null);
+        if (wavFiles != null)
+        {
+            for (File wavFile : wavFiles)
+            {
+                pending(wavFile);
+            }
+        }
+    }
+
+
+    /**
+     * Should this directory be ignored?
+     *
+     * @param dir the directory.
+     * @return true for hidden directories, the rippers' working directories and the excluded directories.
+     */
+    private boolean ignored(File dir)
+    {
+
+        return TrackScanner.ignored(dir.getName()) || _excluded.contains(dir.toPath().toAbsolutePath().normalize());
+    }
+
+
+    /**
+     * Note a wav file that may need encoding.
+     *
+     * @param wavFile the file.
+     */
+    private void pending(File wavFile)
+    {
+
+        if (!_queued.contains(wavFile))
+        {
+            _pending.put(wavFile, new FileState(wavFile));
+        }
+    }
+
+
+    /**
+     * Queue any pending files that have stopped changing.
+     *
+     * @throws InterruptedException if this thread is interrupted while waiting for room in the queue.
+     */
+    private void queueSettled() throws InterruptedException
+    {
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<File, FileState>> i = _pending.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<File, FileState> entry = i.next();
+            File wavFile = entry.getKey();
+            FileState previous = entry.getValue();
+            FileState current = new FileState(wavFile);
+
+            if (!wavFile.exists())
+            {
+                i.remove();
+            }
+            else if (!current.equals(previous))
+            {
+                entry.setValue(current);
+            }
+            else if (now - previous._checkedAt >= SETTLE_MILLIS)
+            {
+                i.remove();
+                _queued.add(wavFile);
+
+                try
+                {
+                    _scheduler.queue(Track.readTrack(wavFile, _baseDir, EncoderQueue.getTrackExt(wavFile.getName())));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(String.format("Ignoring %s: %s", wavFile, e.getMessage()));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Remove a directory below the base dir once all its tracks have been encoded and deleted.
+     *
+     * @param dir the directory.
+     */
+    private void deleteIfEmpty(File dir)
+    {
+
+        String[] contents = dir.list();
+        if (!dir.equals(_baseDir) && contents != null && contents.length == 0)
+        {
+            System.out.println(String.format("Deleting %s on cleanup", dir));
+            if (!_dryRun && !dir.delete())
+            {
+                System.err.println(String.format("Unable to delete %s on cleanup", dir));
+            }
+        }
+    }
+
+
+    /**
+     * The size and modification time of a file when it was checked.
+     */
+    private static final class FileState
+    {
+
+        /**
+         * The file size.
+         */
+        private final long _length;
+
+
+        /**
+         * The file modification time.
+         */
+        private final long _lastModified;
+
+
+        /**
+         * When the file was checked.
+         */
+        private final long _checkedAt;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param file the file to check.
+         */
+        private FileState(File file)
+        {
+
+            _length = file.length();
+            _lastModified = file.lastModified();
+            _checkedAt = System.currentTimeMillis();
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+
+            if (!(obj instanceof FileState))
+            {
+                return false;
+            }
+
+            FileState other = (FileState)obj;
+
+            return _length == other._length && _lastModified == other._lastModified;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+
+            return Long.hashCode(_length) * 31 + Long.hashCode(_lastModified);
+        }
+    }
+}
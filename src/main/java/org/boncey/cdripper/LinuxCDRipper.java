@@ -1,12 +1,8 @@
 package org.boncey.cdripper;
 
-import org.boncey.cdripper.model.CDInfo;
-
-import java.io.*;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Class for ripping Audio CDs.
@@ -18,12 +14,7 @@ public class LinuxCDRipper extends CDRipper
 {
 
     /**
-     * The command for getting CD info.
-     */
-    private static final String CD_INFO_CMD = "cdda2wav -D /dev/cdrom -cddbp-server=gnudb.gnudb.org -cddbp-port=8880 -L 0 -J -v titles";
-
-    /**
-     * The command for getting CD info.
+     * The command for ripping the CD.
      */
     private static final String CD_RIP_CMD = "cdparanoia";
 
@@ -32,31 +23,6 @@ public class LinuxCDRipper extends CDRipper
      */
     private static final String CD_EJECT_CMD = "eject";
 
-    /**
-     * The pattern for parsing Album info.
-     */
-    private static final String ALBUM_PATTERN =
-        "Album title: '(.+)'\\s+\\[from (.+)\\]$";
-
-    /**
-     * The pattern for parsing Track info.
-     */
-    private static final String TRACK_PATTERN =
-        "^Track\\s+\\d+:\\s\'(.+)'.*";
-
-    /**
-     * The pattern for parsing the message indicating multiple matches.
-     */
-    private static final String MULTI_CHOICE_PATTERN =
-        "^\\d+ entries found:";
-
-    /**
-     * The pattern for parsing the message asking user to choose between
-     * multiple matches.
-     */
-    private static final String CHOOSE_PATTERN = "^\\d+: ignore$";
-
-
     /**
      * Public constructor.
      *
@@ -70,16 +36,10 @@ public class LinuxCDRipper extends CDRipper
         super(baseDir, trackListing);
     }
 
-    @Override
-    protected String getInfoCommand()
-    {
-        return CD_INFO_CMD;
-    }
-
     @Override
     protected String getEjectCommand()
     {
-        return CD_EJECT_CMD;
+        return getDevice() == null ? CD_EJECT_CMD : CD_EJECT_CMD + " " + getDevice();
     }
 
     @Override
@@ -87,95 +47,4 @@ public class LinuxCDRipper extends CDRipper
     {
         return CD_RIP_CMD;
     }
-
-    /**
-     * Get the CD info.
-     * @param dir the directory to create within.
-     * @return a populated CD info object.
-     * @throws IOException if unable to interact with the cdda process.
-     * @throws InterruptedException if this thread is interrupted.
-     */
-    @Override
-    protected CDInfo getCDInfo(File dir)
-            throws IOException, InterruptedException
-    {
-        boolean matched = false;
-        CDInfo cdInfo = null;
-        Runtime rt = Runtime.getRuntime();
-        Process proc = rt.exec(CD_INFO_CMD, null, dir);
-        Pattern albumPattern = Pattern.compile(ALBUM_PATTERN);
-        Pattern trackPattern = Pattern.compile(TRACK_PATTERN);
-        Pattern choosePattern = Pattern.compile(CHOOSE_PATTERN);
-        Pattern multiPattern = Pattern.compile(MULTI_CHOICE_PATTERN);
-        List<String> tracks = new ArrayList<>();
-        String album = null;
-        String artist = null;
-        boolean multiple = false;
-
-        try (BufferedReader in = new BufferedReader(
-                new InputStreamReader(proc.getErrorStream())))
-        {
-            String line = in.readLine();
-
-            while (line != null)
-            {
-                Matcher multiMatcher = multiPattern.matcher(line);
-                if (multiMatcher.matches())
-                {
-                    multiple = true;
-                }
-
-                Matcher chooseMatcher = choosePattern.matcher(line);
-                if (chooseMatcher.matches())
-                {
-                    String input;
-                    try (BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in)))
-                    {
-                        input = stdin.readLine();
-                    }
-
-                    try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream())))
-                    {
-                        out.write(input);
-                    }
-
-                    multiple = false;
-                }
-
-                Matcher albumMatcher = albumPattern.matcher(line);
-                if (albumMatcher.matches())
-                {
-                    album = albumMatcher.group(1);
-                    artist = albumMatcher.group(2);
-                    matched = true;
-                }
-
-                Matcher trackMatcher = trackPattern.matcher(line);
-                if (trackMatcher.matches())
-                {
-                    tracks.add(trackMatcher.group(1));
-                }
-
-                if (multiple)
-                {
-                    System.out.println(line);
-                }
-
-                line = in.readLine();
-            }
-        }
-
-        if (matched)
-        {
-            cdInfo = new CDInfo();
-
-            cdInfo.setAlbum(tidyFilename(album));
-            cdInfo.setArtist(tidyFilename(artist));
-            cdInfo.setTracks(tracks);
-        }
-
-        proc.waitFor();
-
-        return cdInfo;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,359 @@
+package org.boncey.cdripper;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports how much of the queued audio has been encoded, how fast, and when it should finish.
+ *
+ * Progress is measured in seconds of audio, read from each wav file's header as it's queued, rather than in files, so
+ * a long track counts for more than a short one. A progress line is printed at most every {@link #PRINT_INTERVAL}
+ * milliseconds, and the same figures can be written to a status file for watch mode.
+ *
+ * A batch of work runs from when a track is queued with nothing outstanding until everything queued has finished,
+ * and the speed is measured over the current batch so time spent idle in watch mode doesn't count.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class ProgressReporter
+{
+
+    /**
+     * The name of the status file in the base directory.
+     */
+    public static final String STATUS_NAME = ".cdripper-status";
+
+
+    /**
+     * The minimum time between progress lines, in milliseconds.
+     */
+    private static final long PRINT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+
+    /**
+     * The minimum time between writes of the status file, unless encoding starts or stops, in milliseconds.
+     */
+    private static final long STATUS_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+
+    /**
+     * The seconds of audio queued and encoded for each format, in the order they were added.
+     */
+    private final Map<String, double[]> _formats;
+
+
+    /**
+     * The duration of each queued wav file and the number of its formats yet to finish.
+     */
+    private final Map<File, double[]> _tracks;
+
+
+    /**
+     * The file to write the status to, null if not wanted.
+     */
+    private File _statusFile;
+
+
+    /**
+     * The seconds of audio queued across all formats.
+     */
+    private double _totalSeconds;
+
+
+    /**
+     * The seconds of audio encoded, or failed, across all formats.
+     */
+    private double _doneSeconds;
+
+
+    /**
+     * The seconds of audio done when the current batch of work started.
+     */
+    private double _batchStartSeconds;
+
+
+    /**
+     * When the current batch of work started, 0 if idle.
+     */
+    private long _batchStarted;
+
+
+    /**
+     * When the last progress line was printed.
+     */
+    private long _lastPrinted;
+
+
+    /**
+     * Whether a progress line has been printed during the current batch of work.
+     */
+    private boolean _printedInBatch;
+
+
+    /**
+     * When the status file was last written.
+     */
+    private long _lastStatus;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param formats the label of each format.
+     */
+    public ProgressReporter(List<String> formats)
+    {
+
+        _formats = new LinkedHashMap<>();
+        for (String format : formats)
+        {
+            _formats.put(format, new double[2]);
+        }
+        _tracks = new HashMap<>();
+    }
+
+
+    /**
+     * Write the progress to a status file too, whenever it changes or a progress line is printed.
+     *
+     * @param statusFile the file to write, null not to.
+     */
+    public void setStatusFile(File statusFile)
+    {
+
+        _statusFile = statusFile;
+    }
+
+
+    /**
+     * Add a track's audio to the total.
+     *
+     * @param wavFile the track's wav file.
+     * @param seconds the duration of the track.
+     * @param formats the labels of the formats it was queued for.
+     */
+    public void queued(File wavFile, double seconds, List<String> formats)
+    {
+
+        if (formats.isEmpty())
+        {
+            return;
+        }
+
+        boolean started;
+        synchronized (this)
+        {
+            started = _batchStarted == 0;
+            if (started)
+            {
+                _batchStarted = System.currentTimeMillis();
+                _batchStartSeconds = _doneSeconds;
+                _lastPrinted = _batchStarted;
+                _printedInBatch = false;
+            }
+
+            _tracks.put(wavFile, new double[] { seconds, formats.size() });
+            for (String format : formats)
+            {
+                _formats.get(format)[0] += seconds;
+            }
+            _totalSeconds += seconds * formats.size();
+        }
+        writeStatus(started);
+    }
+
+
+    /**
+     * Add a track's audio to the amount done for a format, whether the encode succeeded or not.
+     *
+     * @param wavFile the track's wav file.
+     * @param format the label of the format.
+     */
+    public void finished(File wavFile, String format)
+    {
+
+        String line = null;
+        boolean idle;
+        synchronized (this)
+        {
+            double[] track = _tracks.get(wavFile);
+            if (track == null)
+            {
+                return;
+            }
+            if (--track[1] == 0)
+            {
+                _tracks.remove(wavFile);
+            }
+
+            _formats.get(format)[1] += track[0];
+            _doneSeconds += track[0];
+
+            long now = System.currentTimeMillis();
+            idle = _tracks.isEmpty();
+            // A batch too short to have printed any progress doesn't need to say it's finished
+            if (now - _lastPrinted >= PRINT_INTERVAL || idle && _printedInBatch)
+            {
+                _lastPrinted = now;
+                _printedInBatch = true;
+                line = describe(now);
+            }
+            if (idle)
+            {
+                _batchStarted = 0;
+            }
+        }
+
+        if (line != null)
+        {
+            System.out.println(line);
+        }
+        writeStatus(idle);
+    }
+
+
+    /**
+     * Describe the progress, the lock must be held.
+     *
+     * @param now the current time.
+     * @return the progress line.
+     */
+    private String describe(long now)
+    {
+
+        StringBuilder formats = new StringBuilder();
+        for (Map.Entry<String, double[]> entry : _formats.entrySet())
+        {
+            double[] format = entry.getValue();
+            if (format[0] > 0)
+            {
+                formats.append(formats.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ').append(percent(format[1], format[0])).append('%');
+            }
+        }
+
+        double realtime = getRealtime(now);
+        return String.format("Progress: %d%% of %s audio (%s), %.1fx realtime, ETA %s", percent(_doneSeconds, _totalSeconds),
+                formatDuration(_totalSeconds), formats, realtime, realtime > 0 ? formatDuration((_totalSeconds - _doneSeconds) / realtime) : "unknown");
+    }
+
+
+    /**
+     * Get how many seconds of audio have been encoded per second during the current batch, the lock must be held.
+     *
+     * @param now the current time.
+     * @return the speed, 0 if not yet known.
+     */
+    private double getRealtime(long now)
+    {
+
+        double elapsed = (now - _batchStarted) / 1000.0;
+
+        return _batchStarted == 0 || elapsed <= 0 ? 0 : (_doneSeconds - _batchStartSeconds) / elapsed;
+    }
+
+
+    /**
+     * Write the status file, if wanted and not written too recently.
+     *
+     * @param force whether to write it however recently it was written.
+     */
+    private synchronized void writeStatus(boolean force)
+    {
+
+        long now = System.currentTimeMillis();
+        if (_statusFile == null || !force && now - _lastStatus < STATUS_INTERVAL)
+        {
+            return;
+        }
+        _lastStatus = now;
+
+        double realtime = getRealtime(now);
+        StringBuilder formats = new StringBuilder();
+        for (Map.Entry<String, double[]> entry : _formats.entrySet())
+        {
+            formats.append(formats.length() == 0 ? "" : ", ");
+            formats.append(String.format(Locale.ROOT, "\"%s\": {\"audioSeconds\": %.1f, \"encodedSeconds\": %.1f}", entry.getKey(),
+                    entry.getValue()[0], entry.getValue()[1]));
+        }
+
+        // Always a decimal point, whatever the locale, or it's not valid JSON
+        String status = String.format(Locale.ROOT,
+                "{%n  \"state\": \"%s\",%n  \"updated\": \"%s\",%n  \"audioSeconds\": %.1f,%n  \"encodedSeconds\": %.1f,%n  \"percent\": %d,%n"
+                        + "  \"realtime\": %.2f,%n  \"etaSeconds\": %s,%n  \"formats\": {%s}%n}%n",
+                _tracks.isEmpty() ? "idle" : "encoding", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new Date(now)), _totalSeconds,
+                _doneSeconds, percent(_doneSeconds, _totalSeconds), realtime,
+                realtime > 0 ? String.format(Locale.ROOT, "%.0f", (_totalSeconds - _doneSeconds) / realtime) : "null", formats);
+
+        File tempFile = new File(_statusFile.getAbsoluteFile().getParentFile(), _statusFile.getName() + ".tmp");
+        try
+        {
+            Files.write(tempFile.toPath(), status.getBytes(StandardCharsets.UTF_8));
+            try
+            {
+                Files.move(tempFile.toPath(), _statusFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tempFile.toPath(), _statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to write status to %s: %s", _statusFile, e.getMessage()));
+        }
+    }
+
+
+    /**
+     * Get a whole percentage.
+     *
+     * @param done the amount done.
+     * @param total the total.
+     * @return the percentage done.
+     */
+    private static int percent(double done, double total)
+    {
+
+        return total <= 0 ? 100 : (int)Math.floor(done * 100 / total);
+    }
+
+
+    /**
+     * Format a number of seconds as hours, minutes and seconds.
+     *
+     * @param seconds the seconds.
+     * @return the formatted duration.
+     */
+    static String formatDuration(double seconds)
+    {
+
+        long total = Math.round(seconds);
+        long hours = total / 3600;
+        long minutes = total / 60 % 60;
+        long secs = total % 60;
+        if (hours > 0)
+        {
+            return String.format("%dh %02dm %02ds", hours, minutes, secs);
+        }
+        if (minutes > 0)
+        {
+            return String.format("%dm %02ds", minutes, secs);
+        }
+
+        return String.format("%ds", secs);
+    }
+}
@@ -0,0 +1,534 @@
+package org.boncey.cdripper;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds the wav and FLAC files below a base directory that need encoding.
+ *
+ * Directories are listed in parallel on a fork/join pool and each directory's wav files are passed on, in name order,
+ * as soon as it has been listed, so encoding can start before the scan finishes. If the receiver blocks, for example
+ * because the encoders have fallen behind, the scan is held back with it.
+ *
+ * Each directory's listing is saved in a snapshot along with its modification time. On the next scan a directory
+ * whose modification time hasn't changed reuses its saved listing, so it costs one stat rather than a stat per entry.
+ * Hidden directories, the ripper's working directory and the encoders' locations are skipped. Symlinked directories
+ * are followed, but each directory is only scanned once however many links lead to it.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class TrackScanner
+{
+
+    /**
+     * The snapshot's filename within the base directory.
+     */
+    public static final String SNAPSHOT_NAME = ".cdripper-scan";
+
+
+    /**
+     * The snapshot file format version.
+     */
+    private static final int SNAPSHOT_VERSION = 2;
+
+
+    /**
+     * A directory modified this close to the start of a scan may change again within the same timestamp, so its
+     * listing isn't trusted next time.
+     */
+    private static final long RACY_MILLIS = 2000;
+
+
+    /**
+     * Listing directories is I/O bound, particularly over NFS, so use more threads than cores.
+     */
+    private static final int THREADS_PER_CORE = 4;
+
+
+    /**
+     * The base dir to scan.
+     */
+    private final File _baseDir;
+
+
+    /**
+     * The file to save the snapshot in.
+     */
+    private final File _snapshotFile;
+
+
+    /**
+     * The listings saved by the last scan.
+     */
+    private final Map<String, Listing> _previous;
+
+
+    /**
+     * The listings made by this scan.
+     */
+    private final Map<String, Listing> _current;
+
+
+    /**
+     * The directories scanned so far, by file key or real path.
+     */
+    private final Set<Object> _visited;
+
+
+    /**
+     * Set if the receiver was interrupted, to stop the scan.
+     */
+    private final AtomicBoolean _interrupted;
+
+
+    /**
+     * The directories not to scan, absolute and normalised.
+     */
+    private Set<Path> _excluded = Collections.emptySet();
+
+
+    /**
+     * When this scan started.
+     */
+    private long _scannedAt;
+
+
+    /**
+     * Public constructor, reading the snapshot left by the last scan.
+     *
+     * @param baseDir the base dir to scan.
+     */
+    public TrackScanner(File baseDir)
+    {
+
+        _baseDir = baseDir;
+        _snapshotFile = new File(baseDir, SNAPSHOT_NAME);
+        _previous = loadSnapshot();
+        _current = new ConcurrentHashMap<>();
+        _visited = ConcurrentHashMap.newKeySet();
+        _interrupted = new AtomicBoolean();
+    }
+
+
+    /**
+     * Don't scan these directories, or any below them.
+     *
+     * @param dirs the directories, such as the encoders' locations.
+     */
+    public void setExcluded(Collection<File> dirs)
+    {
+
+        _excluded = new HashSet<>();
+        for (File dir : dirs)
+        {
+            _excluded.add(dir.toPath().toAbsolutePath().normalize());
+        }
+    }
+
+
+    /**
+     * Find the wav files to encode, passing each to the receiver as it's found.
+     *
+     * The wav files in each directory are passed on together in name order, the receiver is called from several
+     * threads at once.
+     *
+     * @param receiver receives each wav file.
+     * @return the number of wav files found.
+     * @throws InterruptedException if the receiver was interrupted.
+     */
+    public int scan(Receiver receiver) throws InterruptedException
+    {
+
+        _scannedAt = System.currentTimeMillis();
+        _visited.clear();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * THREADS_PER_CORE);
+        try
+        {
+            int found = pool.invoke(new ScanTask(_baseDir.toPath(), receiver));
+            if (_interrupted.get())
+            {
+                throw new InterruptedException("Scan of " + _baseDir + " interrupted");
+            }
+
+            return found;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Save the listings made by the last scan for the next scan to reuse, failures are reported but ignored.
+     */
+    public void saveSnapshot()
+    {
+
+        File tempFile = new File(_snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+        {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(_current.size());
+            for (Map.Entry<String, Listing> entry : _current.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to save scan snapshot %s: %s", _snapshotFile, e.getMessage()));
+            return;
+        }
+
+        if (!tempFile.renameTo(_snapshotFile))
+        {
+            System.err.println(String.format("Unable to save scan snapshot %s", _snapshotFile));
+        }
+    }
+
+
+    /**
+     * Should this directory be skipped?
+     *
+     * @param name the directory name.
+     * @return true for hidden directories and the rippers' working directories.
+     */
+    static boolean ignored(String name)
+    {
+
+        return name.startsWith(".") || CDRipper.isTempDir(name);
+    }
+
+
+    /**
+     * Read the snapshot left by the last scan.
+     *
+     * @return the saved listings, empty if there are none.
+     */
+    private Map<String, Listing> loadSnapshot()
+    {
+
+        Map<String, Listing> listings = new ConcurrentHashMap<>();
+        if (_snapshotFile.canRead())
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_snapshotFile))))
+            {
+                if (in.readInt() == SNAPSHOT_VERSION)
+                {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++)
+                    {
+                        listings.put(in.readUTF(), Listing.read(in));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println(String.format("Ignoring unreadable scan snapshot %s: %s", _snapshotFile, e.getMessage()));
+                listings.clear();
+            }
+        }
+
+        return listings;
+    }
+
+
+    /**
+     * List a directory, or reuse its saved listing if it hasn't changed.
+     *
+     * @param dir the directory.
+     * @param lastModified the directory's modification time.
+     * @return the listing.
+     * @throws IOException if unable to list the directory.
+     */
+    private Listing list(Path dir, long lastModified) throws IOException
+    {
+
+        String key = dir.toString();
+
+        Listing listing = _previous.get(key);
+        if (listing == null || listing._lastModified != lastModified)
+        {
+            listing = new Listing(lastModified);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+            {
+                for (Path entry : stream)
+                {
+                    String name = entry.getFileName().toString();
+                    if (EncoderQueue.getTrackExt(name) != null)
+                    {
+                        listing._wavFiles.add(name);
+                    }
+                    else if (!ignored(name) && Files.isDirectory(entry))
+                    {
+                        listing._subdirs.add(name);
+                    }
+                }
+            }
+        }
+
+        if (lastModified < _scannedAt - RACY_MILLIS)
+        {
+            _current.put(key, listing);
+        }
+
+        return listing;
+    }
+
+
+    /**
+     * Scans a directory, forking a task for each subdirectory.
+     */
+    private final class ScanTask extends RecursiveTask<Integer>
+    {
+
+        /**
+         * Serialisation ID.
+         */
+        private static final long serialVersionUID = 1L;
+
+
+        /**
+         * The directory to scan.
+         */
+        private final Path _dir;
+
+
+        /**
+         * Receives each wav file.
+         */
+        private final Receiver _receiver;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param dir the directory to scan.
+         * @param receiver receives each wav file.
+         */
+        private ScanTask(Path dir, Receiver receiver)
+        {
+
+            _dir = dir;
+            _receiver = receiver;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Integer compute()
+        {
+
+            if (_interrupted.get())
+            {
+                return 0;
+            }
+
+            Listing listing;
+            try
+            {
+                // Symlinked directories are followed, so make sure a link back up the tree isn't scanned forever
+                BasicFileAttributes attrs = Files.readAttributes(_dir, BasicFileAttributes.class);
+                Object fileKey = attrs.fileKey();
+                if (!_visited.add(fileKey != null ? fileKey : _dir.toRealPath()))
+                {
+                    return 0;
+                }
+
+                listing = list(_dir, attrs.lastModifiedTime().toMillis());
+            }
+            catch (IOException e)
+            {
+                System.err.println(String.format("Unable to scan %s: %s", _dir, e.getMessage()));
+                return 0;
+            }
+
+            // Start on the subdirectories while this one's wav files are passed on
+            List<ScanTask> subtasks = new ArrayList<>();
+            for (String subdir : listing._subdirs)
+            {
+                Path path = _dir.resolve(subdir);
+                if (!_excluded.contains(path.toAbsolutePath().normalize()))
+                {
+                    ScanTask subtask = new ScanTask(path, _receiver);
+                    subtask.fork();
+                    subtasks.add(subtask);
+                }
+            }
+
+            List<String> wavFiles = new ArrayList<>(listing._wavFiles);
+            Collections.sort(wavFiles);
+            int found = 0;
+            try
+            {
+                for (String wavFile : wavFiles)
+                {
+                    _receiver.found(_dir.resolve(wavFile).toFile());
+                    found++;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                _interrupted.set(true);
+            }
+
+            for (ScanTask subtask : subtasks)
+            {
+                found += subtask.join();
+            }
+
+            return found;
+        }
+    }
+
+
+    /**
+     * Receives the wav files found by a scan.
+     */
+    public interface Receiver
+    {
+
+        /**
+         * Receive a wav file, this may block to hold back the scan.
+         *
+         * @param wavFile the wav file.
+         * @throws InterruptedException if this thread is interrupted.
+         */
+        void found(File wavFile) throws InterruptedException;
+    }
+
+
+    /**
+     * The wav files and subdirectories of a directory, as of its modification time.
+     */
+    private static final class Listing
+    {
+
+        /**
+         * The directory's modification time when listed.
+         */
+        private final long _lastModified;
+
+
+        /**
+         * The names of the subdirectories to scan.
+         */
+        private final List<String> _subdirs;
+
+
+        /**
+         * The names of the wav and FLAC files.
+         */
+        private final List<String> _wavFiles;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param lastModified the directory's modification time.
+         */
+        private Listing(long lastModified)
+        {
+
+            _lastModified = lastModified;
+            _subdirs = new ArrayList<>();
+            _wavFiles = new ArrayList<>();
+        }
+
+
+        /**
+         * Read a listing from a snapshot.
+         *
+         * @param in the snapshot.
+         * @return the listing.
+         * @throws IOException if unable to read the snapshot.
+         */
+        private static Listing read(DataInputStream in) throws IOException
+        {
+
+            Listing listing = new Listing(in.readLong());
+            readNames(in, listing._subdirs);
+            readNames(in, listing._wavFiles);
+
+            return listing;
+        }
+
+
+        /**
+         * Write this listing to a snapshot.
+         *
+         * @param out the snapshot.
+         * @throws IOException if unable to write the snapshot.
+         */
+        private void write(DataOutputStream out) throws IOException
+        {
+
+            out.writeLong(_lastModified);
+            writeNames(out, _subdirs);
+            writeNames(out, _wavFiles);
+        }
+
+
+        /**
+         * Read a list of names from a snapshot.
+         *
+         * @param in the snapshot.
+         * @param names the list to read into.
+         * @throws IOException if unable to read the snapshot.
+         */
+        private static void readNames(DataInputStream in, List<String> names) throws IOException
+        {
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                names.add(in.readUTF());
+            }
+        }
+
+
+        /**
+         * Write a list of names to a snapshot.
+         *
+         * @param out the snapshot.
+         * @param names the names.
+         * @throws IOException if unable to write the snapshot.
+         */
+        private static void writeNames(DataOutputStream out, List<String> names) throws IOException
+        {
+
+            out.writeInt(names.size());
+            for (String name : names)
+            {
+                out.writeUTF(name);
+            }
+        }
+    }
+}
@@ -1,17 +1,19 @@
 package org.boncey.cdripper.encoder;
 
 
-import org.boncey.cdripper.Encoded;
 import org.boncey.cdripper.model.Track;
+import org.boncey.cdripper.process.ProcessResult;
+import org.boncey.cdripper.process.RunningProcess;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Vector;
-import java.util.stream.Collectors;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Abstract parent class for encoding an audio file. Copyright (c) 2000-2005 Darren Greaves.
@@ -23,240 +25,363 @@ public abstract class AbstractEncoder implements Encoder
 {
 
     /**
-     * How long to sleep for when waiting for encoding to finish.
+     * The prefix of the temporary files encoded to, alongside the wav file.
      */
-    private static final int WAIT = 1000;
+    public static final String TEMP_PREFIX = "dest-";
 
 
     /**
-     * The class to notify once encoding is finished.
+     * The file extension of FLAC files, which are copied rather than encoded if the track is already FLAC.
      */
-    private final Encoded _encoded;
+    private static final String FLAC_EXT = ".flac";
 
 
     /**
-     * The location to save the files to.
+     * The size of the buffer used to stream decoded FLAC into the encoder.
      */
-    private final File _location;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
 
     /**
-     * Whether or not this thread is alive.
+     * The location to save the files to.
      */
-    private transient boolean _alive = true;
+    private final File _location;
 
 
     /**
-     * The List of Tracks to encode.
+     * The maximum number of tracks to encode to this format at once.
      */
-    private final List<Track> _tracks;
+    private int _threads = Integer.MAX_VALUE;
 
 
     /**
-     * Perform a "dry run", don't encode tracks or change file-system.
+     * The record of tracks already encoded into the location, null to always encode.
      */
-    private boolean _dryRun;
+    private EncodeManifest _manifest;
 
 
     /**
      * Public constructor.
      * 
-     * @param encoded the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    protected AbstractEncoder(Encoded encoded, File location)
+    protected AbstractEncoder(File location)
     {
 
-        _encoded = encoded;
         _location = location;
-
-        // Use Vector as it's 'synchronized'.
-        _tracks = new Vector<Track>();
     }
 
 
     /**
-     * Encode the provided file.
+     * {@inheritDoc}
      */
-    public void run()
+    public EncodeTask createTask(Track track, boolean dryRun) throws IOException
     {
 
-        try
+        File wavFile = track.getWavFile();
+        File destFile = track.constructFilename(_location, getExt());
+
+        File tempDest;
+        if (dryRun)
         {
-            while (_alive || _tracks.size() > 0)
-            {
-                if (_tracks.size() > 0)
-                {
-                    Track track = _tracks.remove(0);
-                    File wavFile = track.getWavFile();
-                    if (encode(track))
-                    {
-                        if (!isDryRun())
-                        {
-                            _encoded.successfullyEncoded(wavFile);
-                        }
-                    }
-                    else
-                    {
-                        System.err.println("Unable to encode " + wavFile.getName() + " to " + getExt());
-                    }
-                }
-                else
-                {
-                    try
-                    {
-                        Thread.sleep(WAIT);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // Ignore
-                    }
-                }
-            }
+            tempDest = new File("tmpFile");
         }
-        catch (Exception e)
+        else
         {
-            e.printStackTrace();
+            tempDest = File.createTempFile(TEMP_PREFIX, getTempFileSuffix(), wavFile.getParentFile());
         }
+
+        return new EncodeTask(this, track, destFile, tempDest, dryRun);
     }
 
 
     /**
      * {@inheritDoc}
      */
-    public void queue(Track track, boolean dryRun)
+    public boolean isUpToDate(Track track)
+    {
+
+        if (_manifest == null)
+        {
+            return false;
+        }
+
+        File destFile = track.constructFilename(_location, getExt());
+
+        return _manifest.isUpToDate(track.getWavFile(), getClass().getName(), signature(track), destFile);
+    }
+
+
+    /**
+     * Set the record of tracks already encoded into the location.
+     * 
+     * @param manifest the manifest, shared by every encoder with the same location.
+     */
+    public void setManifest(EncodeManifest manifest)
     {
 
-        _dryRun = dryRun;
-        _tracks.add(track);
+        _manifest = manifest;
     }
 
 
     /**
-     * Is this a dry run?
+     * Get the location to save the files to.
      * 
-     * @return the dryRun.
+     * @return the location.
      */
-    protected boolean isDryRun()
+    public File getLocation()
     {
 
-        return _dryRun;
+        return _location;
     }
 
 
     /**
-     * Shutdown this Encoder.
+     * {@inheritDoc}
      */
-    public void shutdown()
+    public int getThreads()
     {
 
-        _alive = false;
+        return _threads;
     }
 
 
     /**
-     * Encode the CD track.
+     * Set the maximum number of tracks to encode to this format at once.
      * 
-     * @param track the track to encode.
-     * @return whether or not the encoding was successful.
-     * @throws IOException if unable to interact with the file system.
-     * @throws InterruptedException if this thread is interrupted.
+     * @param threads the number of threads, must be at least one.
+     */
+    public void setThreads(int threads)
+    {
+
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException(String.format("Encoder %s needs at least one thread, not %d", command(), threads));
+        }
+
+        _threads = threads;
+    }
+
+
+    /**
+     * Record a successful encode in the manifest, if there is one.
+     * 
+     * @param track the track encoded.
+     * @param destFile the encoded file.
      */
-    private boolean encode(Track track) throws IOException, InterruptedException
+    void recordEncoded(Track track, File destFile)
     {
 
-        boolean success;
         File wavFile = track.getWavFile();
-        File destFile = track.constructFilename(_location, getExt());
+        if (_manifest != null && wavFile.exists())
+        {
+            try
+            {
+                _manifest.record(wavFile, getClass().getName(), signature(track), destFile);
+            }
+            catch (IOException e)
+            {
+                System.err.println(String.format("Unable to record %s in manifest: %s", destFile, e.getMessage()));
+            }
+        }
+    }
 
-        System.out.println(String.format("Encoding (%s) %s to %s", track.getRelativeBasePath(), wavFile.getName(), destFile.getName()));
 
-        File tempDest;
-        if (isDryRun())
+    /**
+     * Get a signature of the arguments this track is encoded with, so a change of options or tags is re-encoded.
+     * 
+     * @param track the track.
+     * @return the signature.
+     */
+    private String signature(Track track)
+    {
+
+        try
         {
-            tempDest = new File("tmpFile");
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String arg : getEncodeCommand(track, "", ""))
+            {
+                digest.update(arg.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
         }
-        else
+        catch (NoSuchAlgorithmException e)
         {
-            tempDest = File.createTempFile("dest-", getTempFileSuffix(), wavFile.getParentFile());
+            throw new IllegalStateException("SHA-1 not available", e);
         }
+    }
+
+
+    /**
+     * Get the suffix for the temporary file encoded to.
+     * 
+     * @return the suffix.
+     */
+    protected abstract String getTempFileSuffix();
+
+
+    /**
+     * Encode a task from its wav file, by default running its encode command.
+     * 
+     * A track ripped to FLAC is linked or copied if this encoder's format is FLAC, otherwise it's decoded and streamed
+     * into the encoder.
+     * 
+     * @param task the task to encode.
+     * @return whether the encode was successful.
+     * @throws IOException if unable to start the encode.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    protected boolean encode(EncodeTask task) throws IOException, InterruptedException
+    {
+
+        Track track = task.getTrack();
+        if (isCopy(track))
+        {
+            return copy(track.getWavFile(), task.getTempDest());
+        }
+        if (track.isFlac())
+        {
+            return transcode(task);
+        }
+
+        return exec(task.getCommand(track.getWavFile().getAbsolutePath()));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean decodesFlac()
+    {
+
+        return !FLAC_EXT.equals(getExt());
+    }
+
+
+    /**
+     * Is the track already in this encoder's format, so it's copied rather than encoded?
+     * 
+     * @param track the track.
+     * @return true if the track was ripped to FLAC and this encodes to FLAC.
+     */
+    boolean isCopy(Track track)
+    {
+
+        return track.isFlac() && FLAC_EXT.equals(getExt());
+    }
+
+
+    /**
+     * Copy a FLAC file, as a hard link if it's on the same file system.
+     * 
+     * @param flacFile the FLAC file.
+     * @param dest the temporary file to copy to.
+     * @return whether the copy was successful.
+     */
+    private boolean copy(File flacFile, File dest)
+    {
+
         try
         {
-            String[] args = getEncodeCommand(track, tempDest.toString(), wavFile.getAbsolutePath());
-            if (isDryRun())
+            Files.delete(dest.toPath());
+            try
             {
-                System.out.println(String.format("Execing '%s'", getCommandArgs(args)));
-                success = true;
+                Files.createLink(dest.toPath(), flacFile.toPath());
             }
-            else
+            catch (IOException | UnsupportedOperationException e)
             {
-                success = exec(args);
+                Files.copy(flacFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+
+            return true;
         }
-        catch (IllegalArgumentException e)
+        catch (IOException e)
         {
-            System.err.println(String.format("Unable to parse name from track %s", track));
-            success = false;
+            System.err.println(String.format("Unable to copy %s: %s", flacFile, e.getMessage()));
+
+            return false;
         }
+    }
+
 
-        if (success && !isDryRun())
+    /**
+     * Decode a track ripped to FLAC and stream it into the encoder.
+     * 
+     * @param task the task to encode.
+     * @return whether the decode and encode were successful.
+     * @throws IOException if unable to start the encode.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    private boolean transcode(EncodeTask task) throws IOException, InterruptedException
+    {
+
+        File flacFile = task.getTrack().getWavFile();
+        EncodeSink sink = startStreaming(task);
+        try (InputStream in = FlacDecoder.decode(flacFile); OutputStream out = sink.getInput())
         {
-            File parentDir = destFile.getParentFile();
-            parentDir.mkdirs();
-            if (!tempDest.renameTo(destFile))
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len = in.read(buffer);
+            while (len != -1)
             {
-                System.err.println("Unable to rename " + tempDest.getName() + " to " + destFile.getName());
-                success = false;
+                out.write(buffer, 0, len);
+                len = in.read(buffer);
             }
         }
-        else if (!isDryRun())
+        catch (IOException e)
         {
-            tempDest.delete();
+            // Don't let the encoder finish a partial track
+            System.err.println(String.format("Unable to transcode %s with %s: %s", flacFile.getName(), command(), e.getMessage()));
+            sink.destroy();
+            sink.waitFor();
+
+            return false;
         }
 
-        return success;
+        return sink.waitFor();
     }
 
-    protected abstract String getTempFileSuffix();
 
     /**
+     * Start encoding a task from wav data streamed to it, by default running its encode command reading from stdin.
      * 
-     * @param args
-     * @return
+     * @param task the task to encode.
+     * @return the encode in progress.
+     * @throws IOException if unable to start the encode.
      */
-    private String getCommandArgs(String[] args)
+    EncodeSink startStreaming(EncodeTask task) throws IOException
     {
-        return Arrays.stream(args).collect(Collectors.joining(" "));
+
+        return new ProcessSink(RunningProcess.start(task.getCommand(Encoder.STDIN)));
     }
 
 
     /**
+     * Run a command, reporting its output if it fails.
      * 
-     * @param args
-     * @return
-     * @throws IOException
-     * @throws InterruptedException
+     * @param args the command.
+     * @return whether the command exited successfully.
+     * @throws IOException if unable to start the command.
+     * @throws InterruptedException if this thread is interrupted.
      */
     protected boolean exec(String[] args) throws IOException, InterruptedException
     {
 
-        boolean success;
-        Runtime rt = Runtime.getRuntime();
-        Process proc = rt.exec(args);
-
-        // TODO read in separate threads
-        BufferedReader in = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-        String line = in.readLine();
-
-        while (line != null)
+        ProcessResult result = RunningProcess.start(args).waitFor();
+        if (!result.isSuccess())
         {
-            System.err.println(line);
-            line = in.readLine();
+            result.reportFailure();
         }
-        proc.waitFor();
 
-        success = (proc.exitValue() == 0);
-        return success;
+        return result.isSuccess();
     }
 
 
@@ -265,7 +390,7 @@ public abstract class AbstractEncoder implements Encoder
      * 
      * @param track the track to encode.
      * @param encodedFilename the filename to encode to.
-     * @param wavFile the file to encode from.
+     * @param wavFile the file to encode from, or {@link Encoder#STDIN} to read from stdin.
      * @return the command to encode.
      */
     protected abstract String[] getEncodeCommand(Track track, String encodedFilename, String wavFile);
@@ -294,4 +419,15 @@ public abstract class AbstractEncoder implements Encoder
         System.out.println();
     }
 
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+
+        return command() + " (" + getExt() + ")";
+    }
+
 }
@@ -1,10 +1,8 @@
 package org.boncey.cdripper.encoder;
 
-import org.boncey.cdripper.Encoded;
 import org.boncey.cdripper.model.Track;
 
 import java.io.File;
-import java.io.IOException;
 
 public abstract class AppleEncoder extends AbstractEncoder
 {
@@ -21,12 +19,11 @@ public abstract class AppleEncoder extends AbstractEncoder
     /**
      * Public constructor.
      *
-     * @param encoded  the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    protected AppleEncoder(Encoded encoded, File location)
+    protected AppleEncoder(File location)
     {
-        super(encoded, location);
+        super(location);
     }
 
     /**
@@ -65,17 +62,14 @@ public abstract class AppleEncoder extends AbstractEncoder
 
     /**
      * {@inheritDoc}
-     *
-     * @throws InterruptedException
-     * @throws IOException
      */
     @Override
-    public boolean dependenciesInstalled() throws IOException, InterruptedException
+    public String[] probeCommand()
     {
-        return exec(new String[]
+        return new String[]
         {
                 CMD, "-version"
-        });
+        };
     }
 
     /**
@@ -1,8 +1,6 @@
 package org.boncey.cdripper.encoder;
 
 
-import org.boncey.cdripper.Encoded;
-
 import java.io.File;
 
 /**
@@ -18,12 +16,11 @@ public class AppleLossyEncoder extends AppleEncoder
     /**
      * Public constructor.
      *
-     * @param encoded the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    public AppleLossyEncoder(Encoded encoded, File location)
+    public AppleLossyEncoder(File location)
     {
-        super(encoded, location);
+        super(location);
     }
 
     @Override
@@ -0,0 +1,203 @@
+package org.boncey.cdripper.encoder;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes one track to several formats at once, reading the wav data a single time and streaming it to every
+ * encoder, usually to its stdin.
+ *
+ * Data is copied a buffer at a time and each buffer is written to every encoder before the next is read, so memory use
+ * is bounded and the slowest encoder sets the pace.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class EncodeFanOut
+{
+
+    /**
+     * The size of the buffer used to read the wav data.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+
+    /**
+     * The tasks to encode.
+     */
+    private final List<EncodeTask> _tasks;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param tasks the tasks to encode, all for the same track.
+     */
+    public EncodeFanOut(List<EncodeTask> tasks)
+    {
+
+        _tasks = tasks;
+    }
+
+
+    /**
+     * Encode the tasks, streaming the wav data to each.
+     *
+     * @param source the wav data, closed once read.
+     * @return whether each task was successful, in the same order as the tasks.
+     * @throws IOException if unable to read the wav data.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public boolean[] encode(InputStream source) throws IOException, InterruptedException
+    {
+
+        return encode(source, null);
+    }
+
+
+    /**
+     * Encode the tasks, streaming the wav data to each and also saving a copy of it.
+     *
+     * @param source the wav data, closed once read.
+     * @param copy where to save a copy of the wav data, null for no copy; not closed.
+     * @return whether each task was successful, in the same order as the tasks.
+     * @throws IOException if unable to read the wav data or write the copy.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public boolean[] encode(InputStream source, OutputStream copy) throws IOException, InterruptedException
+    {
+
+        boolean[] success = new boolean[_tasks.size()];
+        for (EncodeTask task : _tasks)
+        {
+            System.out.println(task.describe());
+        }
+
+        if (!_tasks.isEmpty() && _tasks.get(0).isDryRun())
+        {
+            source.close();
+            for (int i = 0; i < _tasks.size(); i++)
+            {
+                EncodeTask task = _tasks.get(i);
+                task.printCommand(task.getCommand(Encoder.STDIN));
+                success[i] = task.finish(true);
+            }
+
+            return success;
+        }
+
+        List<EncodeSink> encodes = new ArrayList<>();
+        List<OutputStream> sinks = new ArrayList<>();
+        boolean pumped = false;
+        try
+        {
+            for (EncodeTask task : _tasks)
+            {
+                EncodeSink encode = task.startStreaming();
+                encodes.add(encode);
+                sinks.add(encode.getInput());
+            }
+
+            pump(source, copy, sinks);
+            pumped = true;
+        }
+        finally
+        {
+            source.close();
+            for (OutputStream sink : sinks)
+            {
+                closeQuietly(sink);
+            }
+
+            if (!pumped)
+            {
+                // Don't let the encoders finish a partial track
+                for (EncodeSink encode : encodes)
+                {
+                    encode.destroy();
+                }
+                for (EncodeTask task : _tasks)
+                {
+                    task.finish(false);
+                }
+            }
+        }
+
+        for (int i = 0; i < _tasks.size(); i++)
+        {
+            boolean encoded = encodes.get(i).waitFor();
+            success[i] = _tasks.get(i).finish(encoded && sinks.get(i) != null);
+        }
+
+        return success;
+    }
+
+
+    /**
+     * Copy the source to every sink, dropping any sink whose encoder has stopped reading.
+     *
+     * @param source the wav data.
+     * @param copy where to save a copy of the wav data, may be null.
+     * @param sinks where each encoder reads the wav data, set to null once an encoder fails.
+     * @throws IOException if unable to read the wav data or write the copy.
+     */
+    private void pump(InputStream source, OutputStream copy, List<OutputStream> sinks) throws IOException
+    {
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len = source.read(buffer);
+        while (len != -1)
+        {
+            if (copy != null)
+            {
+                copy.write(buffer, 0, len);
+            }
+
+            for (int i = 0; i < sinks.size(); i++)
+            {
+                OutputStream sink = sinks.get(i);
+                if (sink != null)
+                {
+                    try
+                    {
+                        sink.write(buffer, 0, len);
+                    }
+                    catch (IOException e)
+                    {
+                        System.err.println(String.format("Encoder %s stopped reading: %s", _tasks.get(i).getEncoder(), e.getMessage()));
+                        closeQuietly(sink);
+                        sinks.set(i, null);
+                    }
+                }
+            }
+
+            len = source.read(buffer);
+        }
+    }
+
+
+    /**
+     * Close a stream, ignoring errors from an encoder that has already exited.
+     *
+     * @param out the stream.
+     */
+    private void closeQuietly(OutputStream out)
+    {
+
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package org.boncey.cdripper.encoder;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A record of the tracks already encoded into an output location, so reruns only encode what is missing or stale.
+ *
+ * Each successful encode appends a line holding the source file's path, size and modification time, the encoder
+ * class, a signature of its arguments and the output file. A track is up to date if its latest line still matches all
+ * of those and the output file exists. Superseded lines are dropped the next time the manifest is written to.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class EncodeManifest
+{
+
+    /**
+     * The manifest's filename within the output location.
+     */
+    public static final String MANIFEST_NAME = ".cdripper-manifest";
+
+
+    /**
+     * Separates the fields of each line.
+     */
+    private static final String SEPARATOR = "\t";
+
+
+    /**
+     * The number of fields in each line.
+     */
+    private static final int FIELDS = 6;
+
+
+    /**
+     * The manifest file.
+     */
+    private final File _file;
+
+
+    /**
+     * The latest entry for each source file and encoder.
+     */
+    private final Map<String, Entry> _entries;
+
+
+    /**
+     * Whether the file holds superseded or unreadable lines that should be dropped.
+     */
+    private boolean _compact;
+
+
+    /**
+     * Appends to the manifest, opened on the first write.
+     */
+    private Writer _writer;
+
+
+    /**
+     * Public constructor, reading any existing manifest.
+     *
+     * @param location the output location.
+     * @throws IOException if unable to read the manifest.
+     */
+    public EncodeManifest(File location) throws IOException
+    {
+
+        _file = new File(location, MANIFEST_NAME);
+        _entries = new HashMap<>();
+        load();
+    }
+
+
+    /**
+     * Is this source file already encoded, unchanged, by this encoder with these arguments?
+     *
+     * @param source the source file.
+     * @param encoder the encoder class.
+     * @param signature the encode arguments' signature.
+     * @param output the file the source would be encoded to.
+     * @return true if the output is up to date.
+     */
+    public synchronized boolean isUpToDate(File source, String encoder, String signature, File output)
+    {
+
+        Entry entry = _entries.get(key(source, encoder));
+
+        return entry != null && entry.matches(new Entry(source, encoder, signature, output)) && output.exists();
+    }
+
+
+    /**
+     * Record that this source file has been encoded.
+     *
+     * @param source the source file.
+     * @param encoder the encoder class.
+     * @param signature the encode arguments' signature.
+     * @param output the encoded file.
+     * @throws IOException if unable to write the manifest.
+     */
+    public synchronized void record(File source, String encoder, String signature, File output) throws IOException
+    {
+
+        Entry entry = new Entry(source, encoder, signature, output);
+        _entries.put(key(source, encoder), entry);
+
+        if (_writer == null)
+        {
+            if (_compact)
+            {
+                rewrite();
+            }
+            _writer = new OutputStreamWriter(new FileOutputStream(_file, true), StandardCharsets.UTF_8);
+        }
+
+        _writer.write(entry.toLine());
+        _writer.flush();
+    }
+
+
+    /**
+     * Read the manifest, if there is one.
+     *
+     * @throws IOException if unable to read the manifest.
+     */
+    private void load() throws IOException
+    {
+
+        if (!_file.exists())
+        {
+            return;
+        }
+
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8)))
+        {
+            String line = reader.readLine();
+            while (line != null)
+            {
+                lines++;
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length == FIELDS)
+                {
+                    try
+                    {
+                        Entry entry = new Entry(fields);
+                        _entries.put(entry._source + SEPARATOR + entry._encoder, entry);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // Unreadable, probably cut short when a run was killed
+                    }
+                }
+                line = reader.readLine();
+            }
+        }
+
+        _compact = lines > _entries.size();
+    }
+
+
+    /**
+     * Rewrite the manifest with only the latest entries.
+     *
+     * @throws IOException if unable to write the manifest.
+     */
+    private void rewrite() throws IOException
+    {
+
+        File tempFile = new File(_file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))
+        {
+            for (Entry entry : _entries.values())
+            {
+                writer.write(entry.toLine());
+            }
+        }
+
+        if (!tempFile.renameTo(_file))
+        {
+            throw new IOException(String.format("Unable to rename %s to %s", tempFile, _file));
+        }
+    }
+
+
+    /**
+     * Get the key for a source file and encoder.
+     *
+     * @param source the source file.
+     * @param encoder the encoder class.
+     * @return the key.
+     */
+    private static String key(File source, String encoder)
+    {
+
+        return source.getAbsolutePath() + SEPARATOR + encoder;
+    }
+
+
+    /**
+     * One line of the manifest.
+     */
+    private static final class Entry
+    {
+
+        /**
+         * The source file's absolute path.
+         */
+        private final String _source;
+
+
+        /**
+         * The source file's size.
+         */
+        private final long _length;
+
+
+        /**
+         * The source file's modification time.
+         */
+        private final long _lastModified;
+
+
+        /**
+         * The encoder class.
+         */
+        private final String _encoder;
+
+
+        /**
+         * The encode arguments' signature.
+         */
+        private final String _signature;
+
+
+        /**
+         * The output file's absolute path.
+         */
+        private final String _output;
+
+
+        /**
+         * Private constructor, for the source file as it is now.
+         *
+         * @param source the source file.
+         * @param encoder the encoder class.
+         * @param signature the encode arguments' signature.
+         * @param output the output file.
+         */
+        private Entry(File source, String encoder, String signature, File output)
+        {
+
+            _source = source.getAbsolutePath();
+            _length = source.length();
+            _lastModified = source.lastModified();
+            _encoder = encoder;
+            _signature = signature;
+            _output = output.getAbsolutePath();
+        }
+
+
+        /**
+         * Private constructor, for a line read from the manifest.
+         *
+         * @param fields the line's fields.
+         */
+        private Entry(String[] fields)
+        {
+
+            _source = fields[0];
+            _length = Long.parseLong(fields[1]);
+            _lastModified = Long.parseLong(fields[2]);
+            _encoder = fields[3];
+            _signature = fields[4];
+            _output = fields[5];
+        }
+
+
+        /**
+         * Does this entry match another?
+         *
+         * @param other the other entry.
+         * @return true if every field matches.
+         */
+        private boolean matches(Entry other)
+        {
+
+            return _length == other._length && _lastModified == other._lastModified && _source.equals(other._source) && _encoder.equals(other._encoder)
+                    && _signature.equals(other._signature) && _output.equals(other._output);
+        }
+
+
+        /**
+         * Format the entry as a line of the manifest.
+         *
+         * @return the line, including its line separator.
+         */
+        private String toLine()
+        {
+
+            return String.join(SEPARATOR, _source, String.valueOf(_length), String.valueOf(_lastModified), _encoder, _signature, _output) + "\n";
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.boncey.cdripper.encoder;
+
+
+import java.io.OutputStream;
+
+/**
+ * An encode in progress that the wav data is streamed into, whether a forked encoder or one running in this JVM.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+interface EncodeSink
+{
+
+    /**
+     * Get the stream to write the wav data to, closed once all of it has been written.
+     *
+     * @return the stream.
+     */
+    OutputStream getInput();
+
+
+    /**
+     * Wait for the encode to finish, reporting why if it failed.
+     *
+     * @return whether the encode was successful.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    boolean waitFor() throws InterruptedException;
+
+
+    /**
+     * Abandon the encode, its output won't be used.
+     */
+    void destroy();
+}
@@ -0,0 +1,272 @@
+package org.boncey.cdripper.encoder;
+
+
+import org.boncey.cdripper.model.Track;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * A single track to be encoded to a single format, as built by an {@link Encoder}.
+ * 
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class EncodeTask
+{
+
+    /**
+     * The Encoder that built this task.
+     */
+    private final AbstractEncoder _encoder;
+
+
+    /**
+     * The track to encode.
+     */
+    private final Track _track;
+
+
+    /**
+     * The file to save the encoded track as.
+     */
+    private final File _destFile;
+
+
+    /**
+     * The file to encode to before renaming to the destination.
+     */
+    private final File _tempDest;
+
+
+    /**
+     * Perform a "dry run", don't encode tracks or change file-system.
+     */
+    private final boolean _dryRun;
+
+
+    /**
+     * Package constructor, see {@link Encoder#createTask(Track, boolean)}.
+     * 
+     * @param encoder the Encoder that built this task.
+     * @param track the track to encode.
+     * @param destFile the file to save the encoded track as.
+     * @param tempDest the file to encode to before renaming to the destination.
+     * @param dryRun whether this is a dry run.
+     */
+    EncodeTask(AbstractEncoder encoder, Track track, File destFile, File tempDest, boolean dryRun)
+    {
+
+        _encoder = encoder;
+        _track = track;
+        _destFile = destFile;
+        _tempDest = tempDest;
+        _dryRun = dryRun;
+    }
+
+
+    /**
+     * Encode the track from its wav file, or from its FLAC file if it was ripped to FLAC.
+     * 
+     * @return whether or not the encoding was successful.
+     * @throws IOException if unable to interact with the file system.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public boolean encode() throws IOException, InterruptedException
+    {
+
+        boolean success;
+        File wavFile = _track.getWavFile();
+
+        System.out.println(describe());
+
+        if (_dryRun)
+        {
+            if (_track.isFlac() && !isCopy())
+            {
+                printCommand(FlacDecoder.getCommand(wavFile));
+                printCommand(getCommand(Encoder.STDIN));
+            }
+            else if (!isCopy())
+            {
+                printCommand(getCommand(wavFile.getAbsolutePath()));
+            }
+            success = true;
+        }
+        else
+        {
+            success = _encoder.encode(this);
+        }
+
+        return finish(success);
+    }
+
+
+    /**
+     * Get the command to encode this track.
+     * 
+     * @param input the input to encode from.
+     * @return the command to encode.
+     */
+    public String[] getCommand(String input)
+    {
+
+        return _encoder.getEncodeCommand(_track, _tempDest.toString(), input);
+    }
+
+
+    /**
+     * Is the track already in the encoder's format, so it's copied rather than encoded?
+     * 
+     * @return true if the track was ripped to FLAC and is being encoded to FLAC.
+     */
+    public boolean isCopy()
+    {
+
+        return _encoder.isCopy(_track);
+    }
+
+
+    /**
+     * Start encoding the track from wav data streamed to it.
+     * 
+     * @return the encode in progress.
+     * @throws IOException if unable to start the encode.
+     */
+    EncodeSink startStreaming() throws IOException
+    {
+
+        return _encoder.startStreaming(this);
+    }
+
+
+    /**
+     * Finish the task, moving the encoded file into place or removing it on failure.
+     * 
+     * @param success whether or not the encoding was successful.
+     * @return whether or not the task completed successfully.
+     */
+    public boolean finish(boolean success)
+    {
+
+        boolean finished = success;
+        if (success && !_dryRun)
+        {
+            File parentDir = _destFile.getParentFile();
+            parentDir.mkdirs();
+            if (!_tempDest.renameTo(_destFile))
+            {
+                System.err.println("Unable to rename " + _tempDest.getName() + " to " + _destFile.getName());
+                finished = false;
+            }
+            else
+            {
+                _encoder.recordEncoded(_track, _destFile);
+            }
+        }
+        else if (!_dryRun)
+        {
+            _tempDest.delete();
+        }
+
+        return finished;
+    }
+
+
+    /**
+     * Describe this task for logging.
+     * 
+     * @return the description.
+     */
+    String describe()
+    {
+
+        return String.format("%s (%s) %s to %s", isCopy() ? "Copying" : "Encoding", _track.getRelativeBasePath(), _track.getWavFile().getName(),
+                _destFile.getName());
+    }
+
+
+    /**
+     * Print the command rather than running it, for a dry run.
+     * 
+     * @param args the command.
+     */
+    void printCommand(String[] args)
+    {
+
+        System.out.println(String.format("Execing '%s'", getCommandArgs(args)));
+    }
+
+
+    /**
+     * Is this a dry run?
+     * 
+     * @return the dryRun.
+     */
+    public boolean isDryRun()
+    {
+
+        return _dryRun;
+    }
+
+
+    /**
+     * Get the track.
+     * 
+     * @return the track.
+     */
+    public Track getTrack()
+    {
+
+        return _track;
+    }
+
+
+    /**
+     * Get the encoder.
+     * 
+     * @return the encoder.
+     */
+    public Encoder getEncoder()
+    {
+
+        return _encoder;
+    }
+
+
+    /**
+     * Get the file encoded to before renaming to the destination.
+     * 
+     * @return the tempDest.
+     */
+    public File getTempDest()
+    {
+
+        return _tempDest;
+    }
+
+
+    /**
+     * Get the destFile.
+     * 
+     * @return the destFile.
+     */
+    public File getDestFile()
+    {
+
+        return _destFile;
+    }
+
+
+    /**
+     * 
+     * @param args
+     * @return
+     */
+    private String getCommandArgs(String[] args)
+    {
+        return Arrays.stream(args).collect(Collectors.joining(" "));
+    }
+}
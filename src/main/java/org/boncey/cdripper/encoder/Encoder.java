@@ -3,6 +3,7 @@ package org.boncey.cdripper.encoder;
 
 import org.boncey.cdripper.model.Track;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -11,32 +12,65 @@ import java.io.IOException;
  * @author Darren Greaves
  * @version $Id$ Copyright (c) 2010 Darren Greaves.
  */
-public interface Encoder extends Runnable
+public interface Encoder
 {
 
     /**
-     * Queue this track for encoding.
+     * The input name that tells an encode command to read the wav data from stdin.
+     */
+    String STDIN = "-";
+
+
+    /**
+     * Build the task to encode this track, ready to be run by a worker.
      * 
      * @param track the track to encode.
      * @param dryRun
+     * @return the task.
+     * @throws IOException if unable to interact with the file system.
      */
-    void queue(Track track, boolean dryRun);
+    EncodeTask createTask(Track track, boolean dryRun) throws IOException;
 
 
     /**
-     * Shutdown this Encoder.
+     * Has this track already been encoded, from an unchanged wav file with the same arguments?
+     * 
+     * @param track the track.
+     * @return true if the encoded file is up to date.
      */
-    void shutdown();
+    boolean isUpToDate(Track track);
 
 
     /**
-     * Are the {@link Encoder}s dependencies installed?
+     * Get the location encoded files are saved to.
      * 
-     * @return
-     * @throws IOException
-     * @throws InterruptedException
+     * @return the location.
+     */
+    File getLocation();
+
+
+    /**
+     * Get the maximum number of tracks to encode to this format at once.
+     * 
+     * @return the number of threads.
+     */
+    int getThreads();
+
+
+    /**
+     * Get the command that checks the dependencies are installed, it should exit successfully if they are.
+     * 
+     * @return the command, whose first argument is the binary, or empty if there are no dependencies.
+     */
+    String[] probeCommand();
+
+
+    /**
+     * Does this encoder need tracks ripped to FLAC decoding, rather than copying them?
+     * 
+     * @return true if FLAC tracks are decoded with {@link FlacDecoder} to encode them.
      */
-    boolean dependenciesInstalled() throws IOException, InterruptedException;
+    boolean decodesFlac();
 
 
     /**
@@ -45,4 +79,4 @@ public interface Encoder extends Runnable
      * @return
      */
     String command();
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package org.boncey.cdripper.encoder;
+
+
+import org.boncey.cdripper.process.CheckedStdout;
+import org.boncey.cdripper.process.RunningProcess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a track ripped to FLAC back to wav data, for the encoders that can't read FLAC themselves.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public final class FlacDecoder
+{
+
+    /**
+     * The decode command.
+     */
+    private static final String FLAC_CMD = "flac";
+
+
+    /**
+     * Private constructor, static methods only.
+     */
+    private FlacDecoder()
+    {
+
+    }
+
+
+    /**
+     * Start decoding a FLAC file.
+     *
+     * @param flacFile the FLAC file.
+     * @return the wav data, which fails at the end if the decode did.
+     * @throws IOException if unable to start the decoder.
+     */
+    public static InputStream decode(File flacFile) throws IOException
+    {
+
+        RunningProcess proc = RunningProcess.startReadingStdout(getCommand(flacFile));
+
+        return new CheckedStdout(proc, "decoding " + flacFile.getName());
+    }
+
+
+    /**
+     * Get the command that checks the decoder is installed.
+     *
+     * @return the command.
+     */
+    public static String[] probeCommand()
+    {
+
+        return new String[]
+        {
+                FLAC_CMD, "--version"
+        };
+    }
+
+
+    /**
+     * Get the command to decode a FLAC file to stdout.
+     *
+     * @param flacFile the FLAC file.
+     * @return the command.
+     */
+    static String[] getCommand(File flacFile)
+    {
+
+        return new String[]
+        {
+                FLAC_CMD, "--decode", "--stdout", "--silent", flacFile.getAbsolutePath()
+        };
+    }
+}
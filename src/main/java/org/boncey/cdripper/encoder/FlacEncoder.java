@@ -1,11 +1,9 @@
 package org.boncey.cdripper.encoder;
 
 
-import org.boncey.cdripper.Encoded;
 import org.boncey.cdripper.model.Track;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * For encoding an audio file to FLAC. Copyright (c) 2000-2005 Darren Greaves.
@@ -31,13 +29,12 @@ public class FlacEncoder extends AbstractEncoder
     /**
      * Public constructor.
      * 
-     * @param encoded the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    public FlacEncoder(Encoded encoded, File location)
+    public FlacEncoder(File location)
     {
 
-        super(encoded, location);
+        super(location);
     }
 
     @Override
@@ -83,18 +80,15 @@ public class FlacEncoder extends AbstractEncoder
 
     /**
      * {@inheritDoc}
-     * 
-     * @throws InterruptedException
-     * @throws IOException
      */
     @Override
-    public boolean dependenciesInstalled() throws IOException, InterruptedException
+    public String[] probeCommand()
     {
 
-        return exec(new String[]
+        return new String[]
         {
                 FLAC_CMD, "-v"
-        });
+        };
     }
 
 
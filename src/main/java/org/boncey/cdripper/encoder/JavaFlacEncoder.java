@@ -0,0 +1,209 @@
+package org.boncey.cdripper.encoder;
+
+
+import org.boncey.cdripper.encoder.flac.FlacOutputStream;
+import org.boncey.cdripper.model.Track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * For encoding an audio file to FLAC within this JVM, encoding the frames of each track in parallel rather than
+ * forking the flac binary.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class JavaFlacEncoder extends AbstractEncoder
+{
+
+    /**
+     * The name of this encoder, in place of a command.
+     */
+    private static final String COMMAND = "java-flac";
+
+
+    /**
+     * The file extension for encoded files.
+     */
+    private static final String EXT = ".flac";
+
+
+    /**
+     * Public constructor.
+     *
+     * @param location the location to save the files to.
+     */
+    public JavaFlacEncoder(File location)
+    {
+
+        super(location);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getTempFileSuffix()
+    {
+
+        return EXT;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getExt()
+    {
+
+        return EXT;
+    }
+
+
+    /**
+     * Describe the encode as a command, for dry runs and so a change of tags is re-encoded; it is never run.
+     *
+     * @param track the track to encode.
+     * @param encodedFilename the filename to encode to.
+     * @param wavFile the file to encode from.
+     * @return the description of the encode.
+     */
+    @Override
+    protected String[] getEncodeCommand(Track track, String encodedFilename, String wavFile)
+    {
+
+        List<String> args = new ArrayList<>();
+        args.add(COMMAND);
+        for (String comment : getComments(track))
+        {
+            args.add("--tag");
+            args.add(comment);
+        }
+        args.addAll(Arrays.asList("-o", encodedFilename, wavFile));
+
+        return args.toArray(new String[args.size()]);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean encode(EncodeTask task) throws IOException, InterruptedException
+    {
+
+        if (isCopy(task.getTrack()))
+        {
+            return super.encode(task);
+        }
+
+        try (OutputStream out = new FlacOutputStream(task.getTempDest(), getComments(task.getTrack())))
+        {
+            Files.copy(task.getTrack().getWavFile().toPath(), out);
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.err.println(String.format("Unable to encode %s: %s", task.getTrack().getWavFile(), e.getMessage()));
+
+            return false;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    EncodeSink startStreaming(EncodeTask task) throws IOException
+    {
+
+        FlacOutputStream out = new FlacOutputStream(task.getTempDest(), getComments(task.getTrack()));
+
+        return new EncodeSink()
+        {
+
+            @Override
+            public OutputStream getInput()
+            {
+
+                return out;
+            }
+
+
+            @Override
+            public boolean waitFor()
+            {
+
+                try
+                {
+                    // Already closed once the wav data is written, this reports any failure
+                    out.close();
+
+                    return true;
+                }
+                catch (IOException e)
+                {
+                    System.err.println(String.format("Unable to encode %s: %s", task.getTrack().getWavFile(), e.getMessage()));
+
+                    return false;
+                }
+            }
+
+
+            @Override
+            public void destroy()
+            {
+
+                out.abort();
+            }
+        };
+    }
+
+
+    /**
+     * Get the Vorbis comments, the same tags {@link FlacEncoder} sets.
+     *
+     * @param track the track to encode.
+     * @return the comments.
+     */
+    public static List<String> getComments(Track track)
+    {
+
+        return Arrays.asList("title=" + track.getTrackName(), "album=" + track.getAlbum(), "artist=" + track.getArtist(),
+                "tracknumber=" + track.getTrackNum());
+    }
+
+
+    /**
+     * There's nothing to install.
+     *
+     * @return no command.
+     */
+    @Override
+    public String[] probeCommand()
+    {
+
+        return new String[0];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String command()
+    {
+
+        return COMMAND;
+    }
+}
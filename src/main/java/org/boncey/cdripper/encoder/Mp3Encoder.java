@@ -1,11 +1,9 @@
 package org.boncey.cdripper.encoder;
 
 
-import org.boncey.cdripper.Encoded;
 import org.boncey.cdripper.model.Track;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * For encoding an audio file to MP3.
@@ -33,13 +31,12 @@ public class Mp3Encoder extends AbstractEncoder
     /**
      * Public constructor.
      * 
-     * @param encoded the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    public Mp3Encoder(Encoded encoded, File location)
+    public Mp3Encoder(File location)
     {
 
-        super(encoded, location);
+        super(location);
     }
 
     @Override
@@ -87,13 +84,13 @@ public class Mp3Encoder extends AbstractEncoder
      * {@inheritDoc}
      */
     @Override
-    public boolean dependenciesInstalled() throws IOException, InterruptedException
+    public String[] probeCommand()
     {
 
-        return exec(new String[]
+        return new String[]
         {
                 MP3_CMD, "--help"
-        });
+        };
     }
 
 
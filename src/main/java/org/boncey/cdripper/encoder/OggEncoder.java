@@ -1,11 +1,9 @@
 package org.boncey.cdripper.encoder;
 
 
-import org.boncey.cdripper.Encoded;
 import org.boncey.cdripper.model.Track;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * For encoding an audio file to OGG.
@@ -33,13 +31,12 @@ public class OggEncoder extends AbstractEncoder
     /**
      * Public constructor.
      * 
-     * @param encoded the class to notify once encoding is finished.
      * @param location the location to save the files to.
      */
-    public OggEncoder(Encoded encoded, File location)
+    public OggEncoder(File location)
     {
 
-        super(encoded, location);
+        super(location);
     }
 
     @Override
@@ -76,7 +73,7 @@ public class OggEncoder extends AbstractEncoder
         String[] args =
         {
                 OGG_CMD, "--quiet", "--quality=5", "--title=" + track.getTrackName(), "--album=" + track.getAlbum(), "--artist=" + track.getArtist(),
-                "--tracknum=" + track.getTrackNum(), "-n", encodedFilename, wavFile
+                "--tracknum=" + track.getTrackNum(), "-o", encodedFilename, wavFile
         };
 
         return args;
@@ -85,18 +82,15 @@ public class OggEncoder extends AbstractEncoder
 
     /**
      * {@inheritDoc}
-     * 
-     * @throws InterruptedException
-     * @throws IOException
      */
     @Override
-    public boolean dependenciesInstalled() throws IOException, InterruptedException
+    public String[] probeCommand()
     {
 
-        return exec(new String[]
+        return new String[]
         {
                 OGG_CMD, "-v"
-        });
+        };
     }
 
 
@@ -0,0 +1,73 @@
+package org.boncey.cdripper.encoder;
+
+
+import org.boncey.cdripper.process.ProcessResult;
+import org.boncey.cdripper.process.RunningProcess;
+
+import java.io.OutputStream;
+
+/**
+ * Streams the wav data to an encoder's stdin.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+class ProcessSink implements EncodeSink
+{
+
+    /**
+     * The encoder.
+     */
+    private final RunningProcess _proc;
+
+
+    /**
+     * Package constructor.
+     *
+     * @param proc the encoder, reading the wav data from stdin.
+     */
+    ProcessSink(RunningProcess proc)
+    {
+
+        _proc = proc;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream getInput()
+    {
+
+        return _proc.getStdin();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean waitFor() throws InterruptedException
+    {
+
+        ProcessResult result = _proc.waitFor();
+        if (!result.isSuccess())
+        {
+            result.reportFailure();
+        }
+
+        return result.isSuccess();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+
+        _proc.destroy();
+    }
+}
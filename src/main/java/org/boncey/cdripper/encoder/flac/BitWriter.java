@@ -0,0 +1,153 @@
+package org.boncey.cdripper.encoder.flac;
+
+
+import java.util.Arrays;
+
+/**
+ * Packs values into bytes, most significant bit first, into a buffer that is reused from one frame to the next.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+final class BitWriter
+{
+
+    /**
+     * The bytes written so far.
+     */
+    private byte[] _buffer;
+
+
+    /**
+     * The number of complete bytes in the buffer.
+     */
+    private int _length;
+
+
+    /**
+     * Bits not yet written to the buffer, in the lowest {@link #_count} bits.
+     */
+    private long _pending;
+
+
+    /**
+     * The number of bits pending, always less than 8 between calls.
+     */
+    private int _count;
+
+
+    /**
+     * Package constructor.
+     *
+     * @param capacity the initial size of the buffer, it grows as needed.
+     */
+    BitWriter(int capacity)
+    {
+
+        _buffer = new byte[capacity];
+    }
+
+
+    /**
+     * Empty the writer, keeping its buffer.
+     */
+    void reset()
+    {
+
+        _length = 0;
+        _pending = 0;
+        _count = 0;
+    }
+
+
+    /**
+     * Write the lowest bits of a value.
+     *
+     * @param bits the number of bits to write, at most 32.
+     * @param value the value, any higher bits are ignored.
+     */
+    void write(int bits, long value)
+    {
+
+        if (bits == 0)
+        {
+            return;
+        }
+
+        _pending = (_pending << bits) | (value & ((1L << bits) - 1));
+        _count += bits;
+        if (_length + 5 > _buffer.length)
+        {
+            _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+        }
+        while (_count >= 8)
+        {
+            _count -= 8;
+            _buffer[_length++] = (byte)(_pending >>> _count);
+        }
+    }
+
+
+    /**
+     * Write a Rice coded value.
+     *
+     * @param value the value, already folded to be non-negative.
+     * @param parameter the Rice parameter.
+     */
+    void writeRice(int value, int parameter)
+    {
+
+        int quotient = value >>> parameter;
+        if (quotient + 1 + parameter <= 32)
+        {
+            // The unary quotient's stop bit and the remainder in one write
+            write(quotient + 1 + parameter, (1L << parameter) | (value & ((1L << parameter) - 1)));
+            return;
+        }
+
+        while (quotient >= 32)
+        {
+            write(32, 0);
+            quotient -= 32;
+        }
+        write(quotient + 1, 1);
+        write(parameter, value);
+    }
+
+
+    /**
+     * Pad with zero bits to the next byte boundary.
+     */
+    void alignToByte()
+    {
+
+        if (_count > 0)
+        {
+            write(8 - _count, 0);
+        }
+    }
+
+
+    /**
+     * Get the buffer, valid up to {@link #length()}.
+     *
+     * @return the buffer.
+     */
+    byte[] buffer()
+    {
+
+        return _buffer;
+    }
+
+
+    /**
+     * Get the number of complete bytes written.
+     *
+     * @return the length.
+     */
+    int length()
+    {
+
+        return _length;
+    }
+}
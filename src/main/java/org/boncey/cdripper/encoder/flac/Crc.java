@@ -0,0 +1,89 @@
+package org.boncey.cdripper.encoder.flac;
+
+
+/**
+ * The CRC-8 that protects each FLAC frame header and the CRC-16 that protects each whole frame.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+final class Crc
+{
+
+    /**
+     * CRC-8 with polynomial x^8 + x^2 + x + 1, for each byte value.
+     */
+    private static final int[] CRC8 = new int[256];
+
+
+    /**
+     * CRC-16 with polynomial x^16 + x^15 + x^2 + 1, for each byte value.
+     */
+    private static final int[] CRC16 = new int[256];
+
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+            {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xFF;
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+
+    /**
+     * Private constructor, static methods only.
+     */
+    private Crc()
+    {
+
+    }
+
+
+    /**
+     * Calculate the CRC-8 of some bytes.
+     *
+     * @param bytes the bytes.
+     * @param length the number of bytes, from the start.
+     * @return the CRC.
+     */
+    static int crc8(byte[] bytes, int length)
+    {
+
+        int crc = 0;
+        for (int i = 0; i < length; i++)
+        {
+            crc = CRC8[(crc ^ bytes[i]) & 0xFF];
+        }
+
+        return crc;
+    }
+
+
+    /**
+     * Calculate the CRC-16 of some bytes.
+     *
+     * @param bytes the bytes.
+     * @param length the number of bytes, from the start.
+     * @return the CRC.
+     */
+    static int crc16(byte[] bytes, int length)
+    {
+
+        int crc = 0;
+        for (int i = 0; i < length; i++)
+        {
+            crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+        }
+
+        return crc;
+    }
+}
@@ -0,0 +1,851 @@
+package org.boncey.cdripper.encoder.flac;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encodes the wav data written to it as a FLAC file, without running the flac binary.
+ *
+ * Samples are collected a batch of frames at a time, and as FLAC frames are independent the frames of each batch are
+ * encoded in parallel on a shared fork/join pool, then written in order. The sample and frame buffers are allocated
+ * once per stream and reused for every batch. The STREAMINFO block, with the MD5 of the audio and the total number of
+ * samples, is rewritten when the stream is closed, so the wav header's lengths don't need to be right.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class FlacOutputStream extends OutputStream
+{
+
+    /**
+     * The number of samples in each frame, as the flac binary uses.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+
+    /**
+     * The number of frames collected before encoding them together.
+     */
+    private static final int BATCH_FRAMES = 32;
+
+
+    /**
+     * The most wav header to read looking for the data chunk.
+     */
+    private static final int MAX_HEADER = 1024 * 1024;
+
+
+    /**
+     * Where the STREAMINFO block's contents start, after the marker and block header.
+     */
+    private static final int STREAMINFO_OFFSET = 8;
+
+
+    /**
+     * The length of the STREAMINFO block.
+     */
+    private static final int STREAMINFO_LENGTH = 34;
+
+
+    /**
+     * The marker at the start of a FLAC file.
+     */
+    private static final String MARKER = "fLaC";
+
+
+    /**
+     * The metadata block type of the Vorbis comments.
+     */
+    private static final int VORBIS_COMMENT = 4;
+
+
+    /**
+     * The metadata block type of padding.
+     */
+    private static final int PADDING = 1;
+
+
+    /**
+     * The flag in a metadata block header marking the last block.
+     */
+    private static final int LAST_BLOCK = 0x80000000;
+
+
+    /**
+     * The vendor string in the Vorbis comments.
+     */
+    private static final String VENDOR = "cdripper";
+
+
+    /**
+     * Encodes the frames of every stream.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+
+    /**
+     * Each thread's frame encoder, keeping its scratch buffers between frames.
+     */
+    private static final ThreadLocal<FrameEncoder> ENCODERS = ThreadLocal.withInitial(FrameEncoder::new);
+
+
+    /**
+     * The FLAC file.
+     */
+    private final FileOutputStream _out;
+
+
+    /**
+     * The Vorbis comments, as 'name=value'.
+     */
+    private final List<String> _comments;
+
+
+    /**
+     * The MD5 of the audio, as signed little-endian samples.
+     */
+    private final MessageDigest _md5;
+
+
+    /**
+     * The wav header read so far, null once the data chunk has been found.
+     */
+    private ByteArrayOutputStream _header = new ByteArrayOutputStream();
+
+
+    /**
+     * The format of the audio, null until the wav header has been read.
+     */
+    private StreamFormat _format;
+
+
+    /**
+     * The bytes of the data chunk still to come, {@link Long#MAX_VALUE} if not known.
+     */
+    private long _dataRemaining;
+
+
+    /**
+     * The samples of each channel for the current batch.
+     */
+    private int[][] _samples;
+
+
+    /**
+     * The number of samples of each channel in the current batch.
+     */
+    private int _filled;
+
+
+    /**
+     * Each frame of the current batch, encoded.
+     */
+    private BitWriter[] _frames;
+
+
+    /**
+     * A sample frame split across writes.
+     */
+    private byte[] _carry;
+
+
+    /**
+     * The number of bytes in {@link #_carry}.
+     */
+    private int _carryLength;
+
+
+    /**
+     * The 8 bit audio converted to signed for the MD5.
+     */
+    private byte[] _signed = new byte[0];
+
+
+    /**
+     * The number of samples of each channel encoded.
+     */
+    private long _totalSamples;
+
+
+    /**
+     * The number of the first frame of the current batch.
+     */
+    private long _frameNumber;
+
+
+    /**
+     * The smallest frame written.
+     */
+    private int _minFrameSize = Integer.MAX_VALUE;
+
+
+    /**
+     * The largest frame written.
+     */
+    private int _maxFrameSize;
+
+
+    /**
+     * Why the stream failed, null if it hasn't.
+     */
+    private IOException _failure;
+
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private boolean _closed;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param file the FLAC file to write.
+     * @param comments the Vorbis comments, as 'name=value'.
+     * @throws IOException if unable to create the file.
+     */
+    public FlacOutputStream(File file, List<String> comments) throws IOException
+    {
+
+        try
+        {
+            _md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+
+        _comments = comments;
+        _out = new FileOutputStream(file);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+
+        if (_failure != null)
+        {
+            throw _failure;
+        }
+        if (_closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        try
+        {
+            int offset = off;
+            int length = len;
+            if (_format == null)
+            {
+                int consumed = readHeader(b, offset, length);
+                offset += consumed;
+                length -= consumed;
+                if (_format == null)
+                {
+                    return;
+                }
+            }
+
+            // Ignore any chunks after the data
+            length = (int)Math.min(length, _dataRemaining);
+            _dataRemaining -= length;
+
+            int frameBytes = _carry.length;
+            int capacity = _samples[0].length;
+            while (length > 0)
+            {
+                if (_carryLength > 0 || length < frameBytes)
+                {
+                    int copied = Math.min(length, frameBytes - _carryLength);
+                    System.arraycopy(b, offset, _carry, _carryLength, copied);
+                    _carryLength += copied;
+                    offset += copied;
+                    length -= copied;
+                    if (_carryLength == frameBytes)
+                    {
+                        decode(_carry, 0, 1);
+                        _carryLength = 0;
+                    }
+                }
+                else
+                {
+                    int frames = Math.min(length / frameBytes, capacity - _filled);
+                    decode(b, offset, frames);
+                    offset += frames * frameBytes;
+                    length -= frames * frameBytes;
+                }
+
+                if (_filled == capacity)
+                {
+                    encodeBatch();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            _failure = e;
+            throw e;
+        }
+    }
+
+
+    /**
+     * Encode whatever is left, then rewrite the STREAMINFO block and close the file.
+     *
+     * @throws IOException if the stream failed or the file couldn't be written, also thrown if closed again.
+     */
+    @Override
+    public void close() throws IOException
+    {
+
+        if (!_closed)
+        {
+            _closed = true;
+            try
+            {
+                if (_failure == null)
+                {
+                    if (_format == null)
+                    {
+                        throw new IOException("No wav data found");
+                    }
+                    if (_filled > 0)
+                    {
+                        encodeBatch();
+                    }
+                    writeStreamInfo();
+                }
+            }
+            catch (IOException e)
+            {
+                _failure = e;
+            }
+            finally
+            {
+                _out.close();
+            }
+        }
+
+        if (_failure != null)
+        {
+            // A new exception, as the failure may already have been thrown by a write
+            throw new IOException(_failure.getMessage(), _failure);
+        }
+    }
+
+
+    /**
+     * Stop encoding and close the file, leaving it incomplete.
+     */
+    public void abort()
+    {
+
+        if (_failure == null)
+        {
+            _failure = new IOException("Encoding aborted");
+        }
+        if (!_closed)
+        {
+            _closed = true;
+            try
+            {
+                _out.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore, the file is being abandoned
+            }
+        }
+    }
+
+
+    /**
+     * Read the wav header, writing the FLAC metadata once the data chunk is found.
+     *
+     * @param b the bytes written.
+     * @param off the first byte.
+     * @param len the number of bytes.
+     * @return the number of bytes that were header, the rest are audio.
+     * @throws IOException if the header isn't a wav file this can encode.
+     */
+    private int readHeader(byte[] b, int off, int len) throws IOException
+    {
+
+        _header.write(b, off, len);
+        byte[] header = _header.toByteArray();
+        int dataOffset = parseHeader(ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN));
+        if (dataOffset < 0)
+        {
+            if (header.length > MAX_HEADER)
+            {
+                throw new IOException("No data chunk found in wav header");
+            }
+
+            return len;
+        }
+
+        _header = null;
+        _samples = new int[_format._channels][BLOCK_SIZE * BATCH_FRAMES];
+        _frames = new BitWriter[BATCH_FRAMES];
+        for (int i = 0; i < BATCH_FRAMES; i++)
+        {
+            _frames[i] = new BitWriter(BLOCK_SIZE * _format._channels * _format._bytesPerSample);
+        }
+        _carry = new byte[_format._channels * _format._bytesPerSample];
+        writeMetadata();
+
+        return len - (header.length - dataOffset);
+    }
+
+
+    /**
+     * Parse the wav header, setting the format and the length of the data.
+     *
+     * @param header the header read so far.
+     * @return the offset of the audio data, or -1 if more header is needed.
+     * @throws IOException if it's not a wav file this can encode.
+     */
+    private int parseHeader(ByteBuffer header) throws IOException
+    {
+
+        if (header.limit() < 12)
+        {
+            return -1;
+        }
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157)
+        {
+            throw new IOException("Not a RIFF WAVE file");
+        }
+
+        int pos = 12;
+        while (pos + 8 <= header.limit())
+        {
+            int id = header.getInt(pos);
+            long size = header.getInt(pos + 4) & 0xFFFFFFFFL;
+            int data = pos + 8;
+            if (id == 0x20746D66)
+            {
+                // 'fmt ', 40 bytes if it's WAVE_FORMAT_EXTENSIBLE
+                if (data + 16 > header.limit() || header.getShort(data) == (short)0xFFFE && data + 26 > header.limit())
+                {
+                    return -1;
+                }
+
+                int audioFormat = header.getShort(data) & 0xFFFF;
+                if (audioFormat == 0xFFFE)
+                {
+                    audioFormat = header.getShort(data + 24) & 0xFFFF;
+                }
+                if (audioFormat != 1)
+                {
+                    throw new IOException(String.format("Unable to encode wav format %d, only PCM", audioFormat));
+                }
+                _format = new StreamFormat(header.getInt(data + 4), header.getShort(data + 2) & 0xFFFF, header.getShort(data + 14) & 0xFFFF);
+            }
+            else if (id == 0x61746164)
+            {
+                // 'data', a header written before the length was known may say 0 or the maximum
+                if (_format == null)
+                {
+                    throw new IOException("No fmt chunk before the wav data");
+                }
+                _dataRemaining = size == 0 || size == 0xFFFFFFFFL ? Long.MAX_VALUE : size;
+
+                return data;
+            }
+
+            long next = data + size + (size & 1);
+            if (next > Integer.MAX_VALUE)
+            {
+                throw new IOException("No data chunk found in wav header");
+            }
+            pos = (int)next;
+        }
+
+        // Forget a format parsed from an incomplete header, it will be parsed again
+        _format = null;
+
+        return -1;
+    }
+
+
+    /**
+     * Decode whole sample frames into the batch.
+     *
+     * @param b the wav data.
+     * @param off the first byte.
+     * @param frames the number of sample frames.
+     */
+    private void decode(byte[] b, int off, int frames)
+    {
+
+        int channels = _format._channels;
+        int length = frames * channels * _format._bytesPerSample;
+        int p = off;
+        switch (_format._bitsPerSample)
+        {
+            case 8:
+                if (_signed.length < length)
+                {
+                    _signed = new byte[length];
+                }
+                for (int i = 0; i < frames; i++)
+                {
+                    for (int c = 0; c < channels; c++)
+                    {
+                        _signed[p - off] = (byte)(b[p] ^ 0x80);
+                        _samples[c][_filled + i] = (b[p] & 0xFF) - 128;
+                        p++;
+                    }
+                }
+                _md5.update(_signed, 0, length);
+                break;
+            case 16:
+                for (int i = 0; i < frames; i++)
+                {
+                    for (int c = 0; c < channels; c++)
+                    {
+                        _samples[c][_filled + i] = (b[p] & 0xFF) | (b[p + 1] << 8);
+                        p += 2;
+                    }
+                }
+                _md5.update(b, off, length);
+                break;
+            default:
+                for (int i = 0; i < frames; i++)
+                {
+                    for (int c = 0; c < channels; c++)
+                    {
+                        _samples[c][_filled + i] = (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8 | (b[p + 2] << 16);
+                        p += 3;
+                    }
+                }
+                _md5.update(b, off, length);
+        }
+
+        _filled += frames;
+    }
+
+
+    /**
+     * Encode the batch's frames in parallel and write them in order.
+     *
+     * @throws IOException if unable to write the frames.
+     */
+    private void encodeBatch() throws IOException
+    {
+
+        int frames = (_filled + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        POOL.invoke(new EncodeFrames(0, frames));
+
+        for (int i = 0; i < frames; i++)
+        {
+            BitWriter frame = _frames[i];
+            _out.write(frame.buffer(), 0, frame.length());
+            _minFrameSize = Math.min(_minFrameSize, frame.length());
+            _maxFrameSize = Math.max(_maxFrameSize, frame.length());
+        }
+
+        _frameNumber += frames;
+        _totalSamples += _filled;
+        _filled = 0;
+    }
+
+
+    /**
+     * Write the FLAC marker, a STREAMINFO block to be filled in on close, and the Vorbis comments.
+     *
+     * @throws IOException if unable to write the metadata.
+     */
+    private void writeMetadata() throws IOException
+    {
+
+        byte[] comments = commentsBlock(_comments);
+        ByteBuffer metadata = ByteBuffer.allocate(4 + 4 + STREAMINFO_LENGTH + comments.length);
+        metadata.put(MARKER.getBytes(StandardCharsets.US_ASCII));
+        metadata.putInt(STREAMINFO_LENGTH);
+        metadata.position(metadata.position() + STREAMINFO_LENGTH);
+        metadata.put(comments);
+        _out.write(metadata.array());
+    }
+
+
+    /**
+     * Replace the Vorbis comments of a FLAC file written by this class, e.g. to tag a track ripped before its CD was
+     * looked up. The file is copied with the new comments and renamed over the original, the audio isn't re-encoded.
+     *
+     * @param file the FLAC file.
+     * @param comments the Vorbis comments, as 'name=value'.
+     * @throws IOException if the file isn't a FLAC file or can't be rewritten.
+     */
+    public static void writeComments(File file, List<String> comments) throws IOException
+    {
+
+        File tempFile = File.createTempFile("tag", null, file.getAbsoluteFile().getParentFile());
+        try
+        {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE))
+            {
+                ByteBuffer marker = ByteBuffer.allocate(4);
+                readFully(in, marker, 0);
+                if (!MARKER.equals(new String(marker.array(), StandardCharsets.US_ASCII)))
+                {
+                    throw new IOException(String.format("%s is not a FLAC file", file));
+                }
+                out.write(ByteBuffer.wrap(marker.array()));
+
+                // Keep every block but the old comments and any padding, with the new comments last
+                long position = marker.capacity();
+                boolean last = false;
+                while (!last)
+                {
+                    ByteBuffer header = ByteBuffer.allocate(4);
+                    readFully(in, header, position);
+                    int blockHeader = header.getInt(0);
+                    last = (blockHeader & LAST_BLOCK) != 0;
+                    int type = (blockHeader >>> 24) & 0x7F;
+                    int length = blockHeader & 0xFFFFFF;
+                    if (type != VORBIS_COMMENT && type != PADDING)
+                    {
+                        header.putInt(0, blockHeader & ~LAST_BLOCK);
+                        header.rewind();
+                        out.write(header);
+                        transferFully(in, position + 4, length, out);
+                    }
+                    position += 4 + length;
+                }
+
+                out.write(ByteBuffer.wrap(commentsBlock(comments)));
+                transferFully(in, position, in.size() - position, out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+
+
+    /**
+     * Build a Vorbis comments metadata block, to be the last block.
+     *
+     * @param comments the Vorbis comments, as 'name=value'.
+     * @return the block, with its header.
+     * @throws IOException never.
+     */
+    private static byte[] commentsBlock(List<String> comments) throws IOException
+    {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeLittleEndian(body, VENDOR.getBytes(StandardCharsets.UTF_8));
+        body.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(comments.size()).array());
+        for (String comment : comments)
+        {
+            writeLittleEndian(body, comment.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(4 + body.size());
+        block.putInt(LAST_BLOCK | VORBIS_COMMENT << 24 | body.size());
+        block.put(body.toByteArray());
+
+        return block.array();
+    }
+
+
+    /**
+     * Read until the buffer is full.
+     *
+     * @param in the file to read.
+     * @param buffer the buffer to fill.
+     * @param position where to read from.
+     * @throws IOException if the file ends first.
+     */
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException
+    {
+
+        while (buffer.hasRemaining())
+        {
+            int read = in.read(buffer, position + buffer.position());
+            if (read == -1)
+            {
+                throw new IOException("The FLAC file is truncated");
+            }
+        }
+    }
+
+
+    /**
+     * Copy part of one file to the end of another.
+     *
+     * @param in the file to copy from.
+     * @param position where to copy from.
+     * @param length how much to copy.
+     * @param out the file to copy to.
+     * @throws IOException if the file ends first, or unable to write.
+     */
+    private static void transferFully(FileChannel in, long position, long length, FileChannel out) throws IOException
+    {
+
+        long copied = 0;
+        while (copied < length)
+        {
+            long transferred = in.transferTo(position + copied, length - copied, out);
+            if (transferred <= 0)
+            {
+                throw new IOException("The FLAC file is truncated");
+            }
+            copied += transferred;
+        }
+    }
+
+
+    /**
+     * Write a length prefixed string, the length little-endian as Vorbis comments are.
+     *
+     * @param out where to write it.
+     * @param bytes the string.
+     * @throws IOException never.
+     */
+    private static void writeLittleEndian(ByteArrayOutputStream out, byte[] bytes) throws IOException
+    {
+
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length).array());
+        out.write(bytes);
+    }
+
+
+    /**
+     * Rewrite the STREAMINFO block now the totals are known.
+     *
+     * @throws IOException if unable to write it.
+     */
+    private void writeStreamInfo() throws IOException
+    {
+
+        ByteBuffer info = ByteBuffer.allocate(STREAMINFO_LENGTH);
+        info.putShort((short)BLOCK_SIZE);
+        info.putShort((short)BLOCK_SIZE);
+        putInt24(info, _maxFrameSize == 0 ? 0 : _minFrameSize);
+        putInt24(info, _maxFrameSize);
+        info.putLong((long)_format._sampleRate << 44 | (long)(_format._channels - 1) << 41 | (long)(_format._bitsPerSample - 1) << 36
+                | _totalSamples & 0xFFFFFFFFFL);
+        info.put(_md5.digest());
+        info.flip();
+
+        FileChannel channel = _out.getChannel();
+        long position = STREAMINFO_OFFSET;
+        while (info.hasRemaining())
+        {
+            position += channel.write(info, position);
+        }
+    }
+
+
+    /**
+     * Put a 24 bit value.
+     *
+     * @param buffer where to put it.
+     * @param value the value.
+     */
+    private static void putInt24(ByteBuffer buffer, int value)
+    {
+
+        buffer.put((byte)(value >>> 16));
+        buffer.put((byte)(value >>> 8));
+        buffer.put((byte)value);
+    }
+
+
+    /**
+     * Encodes a range of the batch's frames, splitting it until each task is a single frame.
+     */
+    private final class EncodeFrames extends RecursiveAction
+    {
+
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+
+        /**
+         * The first frame.
+         */
+        private final int _from;
+
+
+        /**
+         * After the last frame.
+         */
+        private final int _to;
+
+
+        /**
+         * Private constructor.
+         *
+         * @param from the first frame.
+         * @param to after the last frame.
+         */
+        private EncodeFrames(int from, int to)
+        {
+
+            _from = from;
+            _to = to;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute()
+        {
+
+            if (_to - _from > 1)
+            {
+                int middle = (_from + _to) >>> 1;
+                invokeAll(new EncodeFrames(_from, middle), new EncodeFrames(middle, _to));
+                return;
+            }
+
+            int offset = _from * BLOCK_SIZE;
+            int blockSize = Math.min(BLOCK_SIZE, _filled - offset);
+            ENCODERS.get().encode(_samples, offset, blockSize, _frameNumber + _from, _format, _frames[_from]);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package org.boncey.cdripper.encoder.flac;
+
+
+import java.util.Arrays;
+
+/**
+ * Encodes a single FLAC frame with fixed predictors and partitioned Rice coding.
+ *
+ * Every channel is tried with each fixed predictor order, and stereo is also tried as left/side, right/side and
+ * mid/side, keeping whichever is estimated smallest. The scratch buffers are kept between frames, so each thread should
+ * have its own FrameEncoder.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+final class FrameEncoder
+{
+
+    /**
+     * The highest fixed predictor order.
+     */
+    private static final int MAX_FIXED_ORDER = 4;
+
+
+    /**
+     * The highest Rice partition order tried.
+     */
+    private static final int MAX_PARTITION_ORDER = 8;
+
+
+    /**
+     * The highest Rice parameter that fits the 4 bit parameter field, 15 is reserved.
+     */
+    private static final int MAX_RICE_PARAMETER = 14;
+
+
+    /**
+     * The highest Rice parameter that fits the 5 bit parameter field, 31 is reserved.
+     */
+    private static final int MAX_RICE2_PARAMETER = 30;
+
+
+    /**
+     * Subframe type for a block of identical samples.
+     */
+    private static final int SUBFRAME_CONSTANT = 0;
+
+
+    /**
+     * Subframe type for unencoded samples.
+     */
+    private static final int SUBFRAME_VERBATIM = 1;
+
+
+    /**
+     * Subframe type for a fixed predictor, or'ed with the order.
+     */
+    private static final int SUBFRAME_FIXED = 8;
+
+
+    /**
+     * Channel assignment for left and side channels.
+     */
+    private static final int LEFT_SIDE = 8;
+
+
+    /**
+     * Channel assignment for side and right channels.
+     */
+    private static final int RIGHT_SIDE = 9;
+
+
+    /**
+     * Channel assignment for mid and side channels.
+     */
+    private static final int MID_SIDE = 10;
+
+
+    /**
+     * The side channel of a stereo block.
+     */
+    private int[] _side = new int[0];
+
+
+    /**
+     * The mid channel of a stereo block.
+     */
+    private int[] _mid = new int[0];
+
+
+    /**
+     * The residual of the predictor being encoded, folded to be non-negative.
+     */
+    private int[] _residual = new int[0];
+
+
+    /**
+     * The sum of the folded residual in each of the finest partitions, then merged into coarser ones.
+     */
+    private final long[] _partitionSums = new long[1 << MAX_PARTITION_ORDER];
+
+
+    /**
+     * The sum of the residual's magnitude for each fixed predictor order.
+     */
+    private final long[] _orderSums = new long[MAX_FIXED_ORDER + 1];
+
+
+    /**
+     * The best predictor order for the signal last estimated.
+     */
+    private int _order;
+
+
+    /**
+     * Encode a frame.
+     *
+     * @param samples the samples of each channel.
+     * @param offset the frame's first sample.
+     * @param blockSize the number of samples in the frame.
+     * @param frameNumber the frame's number from the start of the stream.
+     * @param format the stream's format.
+     * @param out where to write the frame, reset first.
+     */
+    void encode(int[][] samples, int offset, int blockSize, long frameNumber, StreamFormat format, BitWriter out)
+    {
+
+        ensureCapacity(blockSize);
+        out.reset();
+
+        int channels = samples.length;
+        int bps = format._bitsPerSample;
+        int assignment = channels - 1;
+        if (channels == 2)
+        {
+            int[] left = samples[0];
+            int[] right = samples[1];
+            for (int i = 0; i < blockSize; i++)
+            {
+                int l = left[offset + i];
+                int r = right[offset + i];
+                _side[i] = l - r;
+                _mid[i] = (l + r) >> 1;
+            }
+
+            long leftBits = estimate(left, offset, blockSize, bps);
+            long rightBits = estimate(right, offset, blockSize, bps);
+            long sideBits = estimate(_side, 0, blockSize, bps + 1);
+            long midBits = estimate(_mid, 0, blockSize, bps);
+
+            long best = leftBits + rightBits;
+            if (leftBits + sideBits < best)
+            {
+                best = leftBits + sideBits;
+                assignment = LEFT_SIDE;
+            }
+            if (rightBits + sideBits < best)
+            {
+                best = rightBits + sideBits;
+                assignment = RIGHT_SIDE;
+            }
+            if (midBits + sideBits < best)
+            {
+                assignment = MID_SIDE;
+            }
+        }
+
+        writeHeader(blockSize, frameNumber, assignment, format, out);
+        switch (assignment)
+        {
+            case LEFT_SIDE:
+                writeSubframe(samples[0], offset, blockSize, bps, out);
+                writeSubframe(_side, 0, blockSize, bps + 1, out);
+                break;
+            case RIGHT_SIDE:
+                writeSubframe(_side, 0, blockSize, bps + 1, out);
+                writeSubframe(samples[1], offset, blockSize, bps, out);
+                break;
+            case MID_SIDE:
+                writeSubframe(_mid, 0, blockSize, bps, out);
+                writeSubframe(_side, 0, blockSize, bps + 1, out);
+                break;
+            default:
+                for (int[] channel : samples)
+                {
+                    writeSubframe(channel, offset, blockSize, bps, out);
+                }
+        }
+
+        out.alignToByte();
+        out.write(16, Crc.crc16(out.buffer(), out.length()));
+    }
+
+
+    /**
+     * Write the frame header and its CRC-8.
+     *
+     * @param blockSize the number of samples in the frame.
+     * @param frameNumber the frame's number.
+     * @param assignment the channel assignment.
+     * @param format the stream's format.
+     * @param out where to write the header.
+     */
+    private void writeHeader(int blockSize, long frameNumber, int assignment, StreamFormat format, BitWriter out)
+    {
+
+        int blockSizeCode;
+        if (blockSize == 4096)
+        {
+            blockSizeCode = 12;
+        }
+        else if (blockSize <= 256)
+        {
+            blockSizeCode = 6;
+        }
+        else
+        {
+            blockSizeCode = 7;
+        }
+
+        // Sync code, reserved bit, fixed block size
+        out.write(14, 0x3FFE);
+        out.write(1, 0);
+        out.write(1, 0);
+        out.write(4, blockSizeCode);
+        out.write(4, format._sampleRateCode);
+        out.write(4, assignment);
+        out.write(3, format._sampleSizeCode);
+        out.write(1, 0);
+        writeUtf8(frameNumber, out);
+        if (blockSizeCode == 6)
+        {
+            out.write(8, blockSize - 1);
+        }
+        else if (blockSizeCode == 7)
+        {
+            out.write(16, blockSize - 1);
+        }
+        out.write(8, Crc.crc8(out.buffer(), out.length()));
+    }
+
+
+    /**
+     * Write the frame number in FLAC's extended UTF-8 coding.
+     *
+     * @param value the frame number.
+     * @param out where to write it.
+     */
+    private void writeUtf8(long value, BitWriter out)
+    {
+
+        if (value < 0x80)
+        {
+            out.write(8, value);
+            return;
+        }
+
+        int bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4 : value < 0x4000000 ? 5 : 6;
+        int shift = (bytes - 1) * 6;
+        out.write(8, (0xFF00 >> bytes) & 0xFF | (value >>> shift));
+        while (shift > 0)
+        {
+            shift -= 6;
+            out.write(8, 0x80 | (value >>> shift) & 0x3F);
+        }
+    }
+
+
+    /**
+     * Estimate the bits needed to encode a signal with its best fixed predictor, setting {@link #_order}.
+     *
+     * @param data the signal.
+     * @param offset the first sample.
+     * @param n the number of samples.
+     * @param bps the bits per sample of the signal.
+     * @return the estimated bits.
+     */
+    private long estimate(int[] data, int offset, int n, int bps)
+    {
+
+        long verbatim = (long)n * bps;
+        if (n <= MAX_FIXED_ORDER)
+        {
+            _order = -1;
+            return verbatim;
+        }
+
+        // Sum the magnitude of the residual of every order at once, each is the difference of the one before
+        long[] sums = _orderSums;
+        Arrays.fill(sums, 0);
+        int end = offset + n;
+        int a = data[offset + 3];
+        int b = a - data[offset + 2];
+        int c = b - (data[offset + 2] - data[offset + 1]);
+        int d = c - (data[offset + 2] - 2 * data[offset + 1] + data[offset]);
+        for (int i = offset + MAX_FIXED_ORDER; i < end; i++)
+        {
+            int e0 = data[i];
+            int e1 = e0 - a;
+            int e2 = e1 - b;
+            int e3 = e2 - c;
+            int e4 = e3 - d;
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            sums[2] += Math.abs(e2);
+            sums[3] += Math.abs(e3);
+            sums[4] += Math.abs(e4);
+            a = e0;
+            b = e1;
+            c = e2;
+            d = e3;
+        }
+
+        int order = 0;
+        for (int i = 1; i <= MAX_FIXED_ORDER; i++)
+        {
+            if (sums[i] < sums[order])
+            {
+                order = i;
+            }
+        }
+
+        // The residual is folded, doubling it, and Rice coded
+        int count = n - MAX_FIXED_ORDER;
+        long folded = sums[order] * 2;
+        int parameter = riceParameter(folded, count, MAX_RICE2_PARAMETER);
+        long bits = (long)order * bps + 6 + 4 + (long)n * (parameter + 1) + (folded >> parameter) * n / count;
+
+        _order = bits < verbatim ? order : -1;
+
+        return Math.min(bits, verbatim);
+    }
+
+
+    /**
+     * Write a subframe for one channel.
+     *
+     * @param data the channel's samples.
+     * @param offset the first sample.
+     * @param n the number of samples.
+     * @param bps the bits per sample of the channel.
+     * @param out where to write the subframe.
+     */
+    private void writeSubframe(int[] data, int offset, int n, int bps, BitWriter out)
+    {
+
+        boolean constant = true;
+        for (int i = offset + 1; i < offset + n && constant; i++)
+        {
+            constant = data[i] == data[offset];
+        }
+        if (constant)
+        {
+            writeSubframeHeader(SUBFRAME_CONSTANT, out);
+            out.write(bps, data[offset]);
+            return;
+        }
+
+        estimate(data, offset, n, bps);
+        if (_order < 0)
+        {
+            writeSubframeHeader(SUBFRAME_VERBATIM, out);
+            for (int i = offset; i < offset + n; i++)
+            {
+                out.write(bps, data[i]);
+            }
+            return;
+        }
+
+        int order = _order;
+        writeSubframeHeader(SUBFRAME_FIXED | order, out);
+        for (int i = offset; i < offset + order; i++)
+        {
+            out.write(bps, data[i]);
+        }
+
+        int count = n - order;
+        for (int i = 0; i < count; i++)
+        {
+            int j = offset + order + i;
+            int residual;
+            switch (order)
+            {
+                case 0:
+                    residual = data[j];
+                    break;
+                case 1:
+                    residual = data[j] - data[j - 1];
+                    break;
+                case 2:
+                    residual = data[j] - 2 * data[j - 1] + data[j - 2];
+                    break;
+                case 3:
+                    residual = data[j] - 3 * data[j - 1] + 3 * data[j - 2] - data[j - 3];
+                    break;
+                default:
+                    residual = data[j] - 4 * data[j - 1] + 6 * data[j - 2] - 4 * data[j - 3] + data[j - 4];
+            }
+            _residual[i] = (residual << 1) ^ (residual >> 31);
+        }
+
+        writeResidual(n, order, out);
+    }
+
+
+    /**
+     * Write the folded residual in {@link #_residual} with the cheapest partition order and Rice parameters.
+     *
+     * @param n the number of samples in the block.
+     * @param order the predictor order.
+     * @param out where to write the residual.
+     */
+    private void writeResidual(int n, int order, BitWriter out)
+    {
+
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER && (n & (1 << maxPartitionOrder + 1) - 1) == 0 && (n >> maxPartitionOrder + 1) > order)
+        {
+            maxPartitionOrder++;
+        }
+
+        // Sum the finest partitions, then merge pairs for each coarser order
+        int partitions = 1 << maxPartitionOrder;
+        int partitionSize = n >> maxPartitionOrder;
+        int index = 0;
+        for (int p = 0; p < partitions; p++)
+        {
+            int end = (p + 1) * partitionSize - order;
+            long sum = 0;
+            while (index < end)
+            {
+                sum += _residual[index++];
+            }
+            _partitionSums[p] = sum;
+        }
+
+        boolean rice2 = false;
+        int bestOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--)
+        {
+            if (partitionOrder < maxPartitionOrder)
+            {
+                for (int p = 0; p < 1 << partitionOrder; p++)
+                {
+                    _partitionSums[p] = _partitionSums[2 * p] + _partitionSums[2 * p + 1];
+                }
+            }
+
+            long bits = 0;
+            boolean needsRice2 = false;
+            int size = n >> partitionOrder;
+            for (int p = 0; p < 1 << partitionOrder; p++)
+            {
+                int count = p == 0 ? size - order : size;
+                int parameter = riceParameter(_partitionSums[p], count, MAX_RICE2_PARAMETER);
+                needsRice2 |= parameter > MAX_RICE_PARAMETER;
+                bits += 4 + (long)count * (parameter + 1) + (_partitionSums[p] >> parameter);
+            }
+            if (needsRice2)
+            {
+                bits += 1L << partitionOrder;
+            }
+
+            if (bits <= bestBits)
+            {
+                bestBits = bits;
+                bestOrder = partitionOrder;
+                rice2 = needsRice2;
+            }
+        }
+
+        // The sums were merged away, so recalculate them for the chosen order
+        int size = n >> bestOrder;
+        int maxParameter = rice2 ? MAX_RICE2_PARAMETER : MAX_RICE_PARAMETER;
+        out.write(2, rice2 ? 1 : 0);
+        out.write(4, bestOrder);
+        index = 0;
+        for (int p = 0; p < 1 << bestOrder; p++)
+        {
+            int start = index;
+            int end = (p + 1) * size - order;
+            long sum = 0;
+            while (index < end)
+            {
+                sum += _residual[index++];
+            }
+
+            int parameter = riceParameter(sum, end - start, maxParameter);
+            out.write(rice2 ? 5 : 4, parameter);
+            for (int i = start; i < end; i++)
+            {
+                out.writeRice(_residual[i], parameter);
+            }
+        }
+    }
+
+
+    /**
+     * Write a subframe header, with no wasted bits.
+     *
+     * @param type the subframe type.
+     * @param out where to write it.
+     */
+    private void writeSubframeHeader(int type, BitWriter out)
+    {
+
+        out.write(1, 0);
+        out.write(6, type);
+        out.write(1, 0);
+    }
+
+
+    /**
+     * Choose the Rice parameter for a partition, near the log of its mean.
+     *
+     * @param sum the sum of the partition's folded residual.
+     * @param count the number of samples in the partition.
+     * @param max the highest parameter allowed.
+     * @return the parameter.
+     */
+    private static int riceParameter(long sum, int count, int max)
+    {
+
+        if (count == 0 || sum < count)
+        {
+            return 0;
+        }
+
+        int parameter = 63 - Long.numberOfLeadingZeros(sum / count);
+
+        return Math.min(parameter, max);
+    }
+
+
+    /**
+     * Grow the scratch buffers to hold a block.
+     *
+     * @param blockSize the number of samples in the block.
+     */
+    private void ensureCapacity(int blockSize)
+    {
+
+        if (_residual.length < blockSize)
+        {
+            _side = new int[blockSize];
+            _mid = new int[blockSize];
+            _residual = new int[blockSize];
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.boncey.cdripper.encoder.flac;
+
+
+import java.io.IOException;
+
+/**
+ * The format of the PCM audio being encoded, and how it's described in each frame header.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+final class StreamFormat
+{
+
+    /**
+     * The samples per second.
+     */
+    final int _sampleRate;
+
+
+    /**
+     * The number of channels.
+     */
+    final int _channels;
+
+
+    /**
+     * The bits per sample.
+     */
+    final int _bitsPerSample;
+
+
+    /**
+     * The bytes each sample takes in the wav data.
+     */
+    final int _bytesPerSample;
+
+
+    /**
+     * The frame header's sample rate code, 0 to use the STREAMINFO's.
+     */
+    final int _sampleRateCode;
+
+
+    /**
+     * The frame header's sample size code.
+     */
+    final int _sampleSizeCode;
+
+
+    /**
+     * Package constructor.
+     *
+     * @param sampleRate the samples per second.
+     * @param channels the number of channels.
+     * @param bitsPerSample the bits per sample.
+     * @throws IOException if FLAC or this encoder can't encode the format.
+     */
+    StreamFormat(int sampleRate, int channels, int bitsPerSample) throws IOException
+    {
+
+        if (channels < 1 || channels > 8)
+        {
+            throw new IOException(String.format("Unable to encode %d channels", channels));
+        }
+        if (sampleRate < 1 || sampleRate > 655350)
+        {
+            throw new IOException(String.format("Unable to encode a sample rate of %d", sampleRate));
+        }
+
+        switch (bitsPerSample)
+        {
+            case 8:
+                _sampleSizeCode = 1;
+                break;
+            case 16:
+                _sampleSizeCode = 4;
+                break;
+            case 24:
+                _sampleSizeCode = 6;
+                break;
+            default:
+                throw new IOException(String.format("Unable to encode %d bits per sample", bitsPerSample));
+        }
+
+        switch (sampleRate)
+        {
+            case 88200:
+                _sampleRateCode = 1;
+                break;
+            case 176400:
+                _sampleRateCode = 2;
+                break;
+            case 192000:
+                _sampleRateCode = 3;
+                break;
+            case 8000:
+                _sampleRateCode = 4;
+                break;
+            case 16000:
+                _sampleRateCode = 5;
+                break;
+            case 22050:
+                _sampleRateCode = 6;
+                break;
+            case 24000:
+                _sampleRateCode = 7;
+                break;
+            case 32000:
+                _sampleRateCode = 8;
+                break;
+            case 44100:
+                _sampleRateCode = 9;
+                break;
+            case 48000:
+                _sampleRateCode = 10;
+                break;
+            case 96000:
+                _sampleRateCode = 11;
+                break;
+            default:
+                _sampleRateCode = 0;
+        }
+
+        _sampleRate = sampleRate;
+        _channels = channels;
+        _bitsPerSample = bitsPerSample;
+        _bytesPerSample = bitsPerSample / 8;
+    }
+}
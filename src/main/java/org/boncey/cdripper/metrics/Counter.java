@@ -0,0 +1,105 @@
+package org.boncey.cdripper.metrics;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up, such as encodes finished or bytes written.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class Counter extends Metric
+{
+
+    /**
+     * The count, cheap to update from many workers at once.
+     */
+    private final LongAdder _count = new LongAdder();
+
+
+    /**
+     * Package constructor, see {@link MetricsRegistry#counter(String, String, String...)}.
+     *
+     * @param name the metric's name.
+     * @param help what the metric counts.
+     * @param labels the labels, as alternating names and values.
+     */
+    Counter(String name, String help, String... labels)
+    {
+
+        super(name, help, labels);
+    }
+
+
+    /**
+     * Add one to the count.
+     */
+    public void inc()
+    {
+
+        _count.increment();
+    }
+
+
+    /**
+     * Add to the count.
+     *
+     * @param amount the amount to add, must not be negative.
+     */
+    public void add(long amount)
+    {
+
+        if (amount < 0)
+        {
+            throw new IllegalArgumentException(String.format("Counter %s can't go down by %d", getName(), amount));
+        }
+
+        _count.add(amount);
+    }
+
+
+    /**
+     * Get the count.
+     *
+     * @return the count.
+     */
+    public long get()
+    {
+
+        return _count.sum();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getType()
+    {
+
+        return "counter";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writePrometheus(StringBuilder out)
+    {
+
+        writeSample(out, "", null, null, Long.toString(get()));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writeJson(StringBuilder out)
+    {
+
+        out.append(", \"value\": ").append(get());
+    }
+}
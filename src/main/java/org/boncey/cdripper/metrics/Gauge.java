@@ -0,0 +1,80 @@
+package org.boncey.cdripper.metrics;
+
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value that can go up and down, such as the queue depth, read whenever the metrics are exported.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class Gauge extends Metric
+{
+
+    /**
+     * Reads the current value.
+     */
+    private final DoubleSupplier _value;
+
+
+    /**
+     * Package constructor, see {@link MetricsRegistry#gauge(String, String, DoubleSupplier, String...)}.
+     *
+     * @param name the metric's name.
+     * @param help what the metric measures.
+     * @param value reads the current value.
+     * @param labels the labels, as alternating names and values.
+     */
+    Gauge(String name, String help, DoubleSupplier value, String... labels)
+    {
+
+        super(name, help, labels);
+        _value = value;
+    }
+
+
+    /**
+     * Get the current value.
+     *
+     * @return the value.
+     */
+    public double get()
+    {
+
+        return _value.getAsDouble();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getType()
+    {
+
+        return "gauge";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writePrometheus(StringBuilder out)
+    {
+
+        writeSample(out, "", null, null, format(get()));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writeJson(StringBuilder out)
+    {
+
+        out.append(", \"value\": ").append(formatJson(get()));
+    }
+}
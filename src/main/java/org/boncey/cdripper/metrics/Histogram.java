@@ -0,0 +1,176 @@
+package org.boncey.cdripper.metrics;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations, such as encode durations, into fixed buckets so their distribution can be seen.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class Histogram extends Metric
+{
+
+    /**
+     * The inclusive upper bound of each bucket, in ascending order.
+     */
+    private final double[] _bounds;
+
+
+    /**
+     * The observations in each bucket, plus one for those above the last bound.
+     */
+    private final LongAdder[] _buckets;
+
+
+    /**
+     * The sum of all observations.
+     */
+    private final DoubleAdder _sum = new DoubleAdder();
+
+
+    /**
+     * Package constructor, see {@link MetricsRegistry#histogram(String, String, double[], String...)}.
+     *
+     * @param name the metric's name.
+     * @param help what the metric measures.
+     * @param bounds the inclusive upper bound of each bucket, in ascending order.
+     * @param labels the labels, as alternating names and values.
+     */
+    Histogram(String name, String help, double[] bounds, String... labels)
+    {
+
+        super(name, help, labels);
+        for (int i = 1; i < bounds.length; i++)
+        {
+            if (bounds[i] <= bounds[i - 1])
+            {
+                throw new IllegalArgumentException(String.format("Buckets for %s must be in ascending order", name));
+            }
+        }
+
+        _bounds = bounds.clone();
+        _buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < _buckets.length; i++)
+        {
+            _buckets[i] = new LongAdder();
+        }
+    }
+
+
+    /**
+     * Record an observation.
+     *
+     * @param value the value observed.
+     */
+    public void observe(double value)
+    {
+
+        int bucket = 0;
+        while (bucket < _bounds.length && value > _bounds[bucket])
+        {
+            bucket++;
+        }
+
+        _buckets[bucket].increment();
+        _sum.add(value);
+    }
+
+
+    /**
+     * Record a duration, in seconds.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void observeNanos(long nanos)
+    {
+
+        observe((double)nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+
+    /**
+     * Get the number of observations.
+     *
+     * @return the count.
+     */
+    public long getCount()
+    {
+
+        long count = 0;
+        for (LongAdder bucket : _buckets)
+        {
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Get the sum of all observations.
+     *
+     * @return the sum.
+     */
+    public double getSum()
+    {
+
+        return _sum.sum();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getType()
+    {
+
+        return "histogram";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writePrometheus(StringBuilder out)
+    {
+
+        // Prometheus buckets are cumulative
+        long cumulative = 0;
+        for (int i = 0; i < _bounds.length; i++)
+        {
+            cumulative += _buckets[i].sum();
+            writeSample(out, "_bucket", "le", format(_bounds[i]), Long.toString(cumulative));
+        }
+        cumulative += _buckets[_bounds.length].sum();
+        writeSample(out, "_bucket", "le", "+Inf", Long.toString(cumulative));
+        writeSample(out, "_sum", null, null, format(getSum()));
+        writeSample(out, "_count", null, null, Long.toString(cumulative));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writeJson(StringBuilder out)
+    {
+
+        long count = getCount();
+        double sum = getSum();
+        out.append(", \"count\": ").append(count).append(", \"sum\": ").append(formatJson(sum));
+        out.append(", \"mean\": ").append(count == 0 ? "null" : formatJson(sum / count)).append(", \"buckets\": {");
+
+        // Unlike Prometheus, each bucket holds only its own observations
+        for (int i = 0; i < _bounds.length; i++)
+        {
+            out.append(quote(format(_bounds[i]))).append(": ").append(_buckets[i].sum()).append(", ");
+        }
+        out.append("\"+Inf\": ").append(_buckets[_bounds.length].sum()).append('}');
+    }
+}
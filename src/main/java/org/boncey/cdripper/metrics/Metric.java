@@ -0,0 +1,247 @@
+package org.boncey.cdripper.metrics;
+
+
+/**
+ * A single named series, identified by its name and labels, that can write itself in the Prometheus text format and
+ * as JSON.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public abstract class Metric
+{
+
+    /**
+     * The metric's name.
+     */
+    private final String _name;
+
+
+    /**
+     * What the metric measures.
+     */
+    private final String _help;
+
+
+    /**
+     * The labels, as alternating names and values.
+     */
+    private final String[] _labels;
+
+
+    /**
+     * Package constructor.
+     *
+     * @param name the metric's name.
+     * @param help what the metric measures.
+     * @param labels the labels, as alternating names and values.
+     */
+    Metric(String name, String help, String... labels)
+    {
+
+        if (labels.length % 2 != 0)
+        {
+            throw new IllegalArgumentException(String.format("Labels for %s must be name and value pairs", name));
+        }
+
+        _name = name;
+        _help = help;
+        _labels = labels.clone();
+    }
+
+
+    /**
+     * Get the name.
+     *
+     * @return the name.
+     */
+    public String getName()
+    {
+
+        return _name;
+    }
+
+
+    /**
+     * Get the help.
+     *
+     * @return the help.
+     */
+    public String getHelp()
+    {
+
+        return _help;
+    }
+
+
+    /**
+     * Get the Prometheus type of the metric.
+     *
+     * @return the type.
+     */
+    public abstract String getType();
+
+
+    /**
+     * Write the metric's samples in the Prometheus text format.
+     *
+     * @param out where to write the samples.
+     */
+    abstract void writePrometheus(StringBuilder out);
+
+
+    /**
+     * Write the metric's values as JSON object members, following its name and labels.
+     *
+     * @param out where to write the values.
+     */
+    abstract void writeJson(StringBuilder out);
+
+
+    /**
+     * Write a single Prometheus sample of this metric.
+     *
+     * @param out where to write the sample.
+     * @param suffix appended to the metric's name.
+     * @param extraLabel an additional label name, or null.
+     * @param extraValue the additional label's value.
+     * @param value the sample's value.
+     */
+    void writeSample(StringBuilder out, String suffix, String extraLabel, String extraValue, String value)
+    {
+
+        out.append(_name).append(suffix);
+        if (_labels.length > 0 || extraLabel != null)
+        {
+            out.append('{');
+            for (int i = 0; i < _labels.length; i += 2)
+            {
+                appendLabel(out, _labels[i], _labels[i + 1]);
+                out.append(',');
+            }
+            if (extraLabel != null)
+            {
+                appendLabel(out, extraLabel, extraValue);
+            }
+            else
+            {
+                out.setLength(out.length() - 1);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+
+    /**
+     * Write the metric's name, type and labels as JSON object members.
+     *
+     * @param out where to write the members.
+     */
+    void writeJsonHeader(StringBuilder out)
+    {
+
+        out.append("\"name\": ").append(quote(_name)).append(", \"type\": ").append(quote(getType())).append(", \"labels\": {");
+        for (int i = 0; i < _labels.length; i += 2)
+        {
+            if (i > 0)
+            {
+                out.append(", ");
+            }
+            out.append(quote(_labels[i])).append(": ").append(quote(_labels[i + 1]));
+        }
+        out.append('}');
+    }
+
+
+    /**
+     * Get the key that identifies this series among all others.
+     *
+     * @return the key.
+     */
+    String getKey()
+    {
+
+        return key(_name, _labels);
+    }
+
+
+    /**
+     * Get the key that identifies a series.
+     *
+     * @param name the series' name.
+     * @param labels the series' labels.
+     * @return the key, sorting the series of each name together.
+     */
+    static String key(String name, String... labels)
+    {
+
+        return name + ' ' + String.join("\u0000", labels);
+    }
+
+
+    /**
+     * Format a value for Prometheus.
+     *
+     * @param value the value.
+     * @return the formatted value.
+     */
+    static String format(double value)
+    {
+
+        if (Double.isNaN(value))
+        {
+            return "NaN";
+        }
+        if (Double.isInfinite(value))
+        {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        {
+            return Long.toString((long)value);
+        }
+
+        return Double.toString(value);
+    }
+
+
+    /**
+     * Format a value for JSON, which has no NaN or infinity.
+     *
+     * @param value the value.
+     * @return the formatted value.
+     */
+    static String formatJson(double value)
+    {
+
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : format(value);
+    }
+
+
+    /**
+     * Quote a JSON string.
+     *
+     * @param value the string.
+     * @return the quoted string.
+     */
+    static String quote(String value)
+    {
+
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+
+    /**
+     * Write a Prometheus label.
+     *
+     * @param out where to write the label.
+     * @param name the label's name.
+     * @param value the label's value.
+     */
+    private static void appendLabel(StringBuilder out, String name, String value)
+    {
+
+        out.append(name).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+}
@@ -0,0 +1,223 @@
+package org.boncey.cdripper.metrics;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics to a Prometheus text file every so often, for the node exporter's textfile collector to scrape,
+ * and a JSON summary when the JVM exits.
+ *
+ * Both files are written to a temporary file then renamed, so they are never read half written.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class MetricsExporter
+{
+
+    /**
+     * The default number of seconds between writes of the text file.
+     */
+    public static final long DEFAULT_INTERVAL = 15;
+
+
+    /**
+     * The metrics to export.
+     */
+    private final MetricsRegistry _registry;
+
+
+    /**
+     * When the exporter was created, for the summary.
+     */
+    private final long _started;
+
+
+    /**
+     * The Prometheus text file to write, null if not wanted.
+     */
+    private File _textFile;
+
+
+    /**
+     * The JSON summary to write at exit, null if not wanted.
+     */
+    private File _summaryFile;
+
+
+    /**
+     * The number of seconds between writes of the text file.
+     */
+    private long _interval = DEFAULT_INTERVAL;
+
+
+    /**
+     * Writes the text file every interval.
+     */
+    private ScheduledExecutorService _timer;
+
+
+    /**
+     * Whether the final files have been written.
+     */
+    private boolean _stopped;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param registry the metrics to export.
+     */
+    public MetricsExporter(MetricsRegistry registry)
+    {
+
+        _registry = registry;
+        _started = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Write the metrics in the Prometheus text format, the node exporter only reads files ending in .prom.
+     *
+     * @param textFile the file to write, null not to.
+     */
+    public void setTextFile(File textFile)
+    {
+
+        _textFile = textFile;
+    }
+
+
+    /**
+     * Write a JSON summary of the metrics when the JVM exits.
+     *
+     * @param summaryFile the file to write, null not to.
+     */
+    public void setSummaryFile(File summaryFile)
+    {
+
+        _summaryFile = summaryFile;
+    }
+
+
+    /**
+     * Set how often to write the text file.
+     *
+     * @param interval the number of seconds between writes.
+     */
+    public void setInterval(long interval)
+    {
+
+        if (interval < 1)
+        {
+            throw new IllegalArgumentException("Need an interval of at least one second, not " + interval);
+        }
+
+        _interval = interval;
+    }
+
+
+    /**
+     * Start writing the text file and arrange for the final files to be written when the JVM exits.
+     */
+    public void start()
+    {
+
+        if (_textFile != null)
+        {
+            _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            _timer.scheduleAtFixedRate(this::writeTextFile, 0, _interval, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "metrics-summary"));
+    }
+
+
+    /**
+     * Stop writing the text file, then write it and the summary one last time.
+     */
+    public synchronized void stop()
+    {
+
+        if (_stopped)
+        {
+            return;
+        }
+        _stopped = true;
+
+        if (_timer != null)
+        {
+            _timer.shutdownNow();
+        }
+        writeTextFile();
+
+        if (_summaryFile != null)
+        {
+            String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new Date());
+            // Always a decimal point, whatever the locale, or it's not valid JSON
+            String summary = String.format(Locale.ROOT, "{%n  \"finished\": \"%s\",%n  \"durationSeconds\": %.3f,%n  \"metrics\": %s%n}%n", timestamp,
+                    (System.currentTimeMillis() - _started) / 1000.0, _registry.toJson().replace("\n", "\n  "));
+            write(_summaryFile, summary);
+        }
+    }
+
+
+    /**
+     * Write the Prometheus text file, if wanted.
+     */
+    private void writeTextFile()
+    {
+
+        if (_textFile != null)
+        {
+            write(_textFile, _registry.toPrometheus());
+        }
+    }
+
+
+    /**
+     * Replace a file's contents in one step.
+     *
+     * @param file the file.
+     * @param contents the new contents.
+     */
+    private void write(File file, String contents)
+    {
+
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        try
+        {
+            tempFile.getParentFile().mkdirs();
+            Files.write(tempFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+            try
+            {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            // Not worth stopping the encodes for
+            System.err.println(String.format("Unable to write metrics to %s: %s", file, e.getMessage()));
+            tempFile.delete();
+        }
+    }
+}
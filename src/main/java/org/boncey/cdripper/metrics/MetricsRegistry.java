@@ -0,0 +1,142 @@
+package org.boncey.cdripper.metrics;
+
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds every metric so they can be exported together.
+ *
+ * Each series is created once, by name and labels, and the same instance is returned to anyone asking for it again.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class MetricsRegistry
+{
+
+    /**
+     * The metrics, sorted so the series of each name are written together.
+     */
+    private final ConcurrentMap<String, Metric> _metrics = new ConcurrentSkipListMap<>();
+
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name the metric's name.
+     * @param help what the metric counts.
+     * @param labels the labels, as alternating names and values.
+     * @return the counter.
+     */
+    public Counter counter(String name, String help, String... labels)
+    {
+
+        return register(Counter.class, Metric.key(name, labels), () -> new Counter(name, help, labels));
+    }
+
+
+    /**
+     * Get or create a gauge.
+     *
+     * @param name the metric's name.
+     * @param help what the metric measures.
+     * @param value reads the current value, not replaced if the gauge already exists.
+     * @param labels the labels, as alternating names and values.
+     * @return the gauge.
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier value, String... labels)
+    {
+
+        return register(Gauge.class, Metric.key(name, labels), () -> new Gauge(name, help, value, labels));
+    }
+
+
+    /**
+     * Get or create a histogram.
+     *
+     * @param name the metric's name.
+     * @param help what the metric measures.
+     * @param bounds the inclusive upper bound of each bucket, in ascending order.
+     * @param labels the labels, as alternating names and values.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name, String help, double[] bounds, String... labels)
+    {
+
+        return register(Histogram.class, Metric.key(name, labels), () -> new Histogram(name, help, bounds, labels));
+    }
+
+
+    /**
+     * Write every metric in the Prometheus text format.
+     *
+     * @return the metrics.
+     */
+    public String toPrometheus()
+    {
+
+        StringBuilder out = new StringBuilder();
+        String family = null;
+        for (Metric metric : _metrics.values())
+        {
+            if (!metric.getName().equals(family))
+            {
+                family = metric.getName();
+                out.append("# HELP ").append(family).append(' ').append(metric.getHelp().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+                out.append("# TYPE ").append(family).append(' ').append(metric.getType()).append('\n');
+            }
+            metric.writePrometheus(out);
+        }
+
+        return out.toString();
+    }
+
+
+    /**
+     * Write every metric as a JSON array.
+     *
+     * @return the metrics.
+     */
+    public String toJson()
+    {
+
+        StringBuilder out = new StringBuilder("[");
+        String separator = "\n";
+        for (Metric metric : _metrics.values())
+        {
+            out.append(separator).append("  {");
+            metric.writeJsonHeader(out);
+            metric.writeJson(out);
+            out.append('}');
+            separator = ",\n";
+        }
+        out.append("\n]");
+
+        return out.toString();
+    }
+
+
+    /**
+     * Get or create a metric.
+     *
+     * @param type the metric's class.
+     * @param key the key identifying the series.
+     * @param factory creates the metric if it doesn't exist.
+     * @param <T> the metric's class.
+     * @return the metric.
+     */
+    private <T extends Metric> T register(Class<T> type, String key, Supplier<T> factory)
+    {
+
+        Metric metric = _metrics.computeIfAbsent(key, k -> factory.get());
+        if (!type.isInstance(metric))
+        {
+            throw new IllegalArgumentException(String.format("%s is already registered as a %s", metric.getName(), metric.getType()));
+        }
+
+        return type.cast(metric);
+    }
+}
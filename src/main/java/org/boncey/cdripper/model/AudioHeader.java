@@ -0,0 +1,446 @@
+package org.boncey.cdripper.model;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The format and length of the audio in a wav or FLAC file, read from its RIFF header or STREAMINFO block without
+ * reading the audio.
+ *
+ * The start of the file is read into a buffer that each thread reuses, rippers only put a few small chunks before
+ * the audio so the header is well within it. Nothing is allocated or mapped per file, which matters when a scan reads
+ * thousands of them.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public final class AudioHeader
+{
+
+    /**
+     * The bytes per second of CD audio, 44.1kHz 16 bit stereo, assumed if the header can't be read.
+     */
+    public static final int CD_BYTE_RATE = 44100 * 2 * 2;
+
+
+    /**
+     * How much of the file to read looking for the data chunk.
+     */
+    private static final int MAX_HEADER = 64 * 1024;
+
+
+    /**
+     * Each thread's buffer to read the start of the file into.
+     */
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_HEADER));
+
+
+    /**
+     * The size of a chunk's id and length.
+     */
+    private static final int CHUNK_HEADER = 8;
+
+
+    /**
+     * The 'fLaC' marker, as a big-endian int.
+     */
+    private static final int FLAC = 0x664C6143;
+
+
+    /**
+     * The length of a FLAC STREAMINFO block.
+     */
+    private static final int STREAMINFO_LENGTH = 34;
+
+
+    /**
+     * The 'RIFF' id, as a little-endian int.
+     */
+    private static final int RIFF = 0x46464952;
+
+
+    /**
+     * The 'WAVE' id, as a little-endian int.
+     */
+    private static final int WAVE = 0x45564157;
+
+
+    /**
+     * The 'fmt ' id, as a little-endian int.
+     */
+    private static final int FMT = 0x20746D66;
+
+
+    /**
+     * The 'data' id, as a little-endian int.
+     */
+    private static final int DATA = 0x61746164;
+
+
+    /**
+     * PCM audio.
+     */
+    private static final int FORMAT_PCM = 1;
+
+
+    /**
+     * The format is given by the sub-format of the extensible fmt chunk.
+     */
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+
+    /**
+     * The audio format, {@link #FORMAT_PCM} for PCM.
+     */
+    private final int _format;
+
+
+    /**
+     * The number of channels.
+     */
+    private final int _channels;
+
+
+    /**
+     * The samples per second.
+     */
+    private final int _sampleRate;
+
+
+    /**
+     * The bits per sample.
+     */
+    private final int _bitsPerSample;
+
+
+    /**
+     * The length of the audio according to the data chunk.
+     */
+    private final long _dataLength;
+
+
+    /**
+     * The length of the audio actually in the file, compressed if it's FLAC.
+     */
+    private final long _available;
+
+
+    /**
+     * Whether the audio is FLAC, so its length in the file isn't the length of the samples.
+     */
+    private final boolean _compressed;
+
+
+    /**
+     * Private constructor, see {@link #read(File)}.
+     *
+     * @param format the audio format.
+     * @param channels the number of channels.
+     * @param sampleRate the samples per second.
+     * @param bitsPerSample the bits per sample.
+     * @param dataLength the length of the audio according to the data chunk.
+     * @param available the length of the audio actually in the file.
+     * @param compressed whether the audio is FLAC.
+     */
+    private AudioHeader(int format, int channels, int sampleRate, int bitsPerSample, long dataLength, long available, boolean compressed)
+    {
+
+        _format = format;
+        _channels = channels;
+        _sampleRate = sampleRate;
+        _bitsPerSample = bitsPerSample;
+        _dataLength = dataLength;
+        _available = available;
+        _compressed = compressed;
+    }
+
+
+    /**
+     * Read a wav or FLAC file's header.
+     *
+     * @param audioFile the wav or FLAC file.
+     * @return the header.
+     * @throws IOException if the file can't be read or isn't a wav or FLAC file.
+     */
+    public static AudioHeader read(File audioFile) throws IOException
+    {
+
+        try (FileChannel channel = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ))
+        {
+            long length = channel.size();
+            ByteBuffer header = HEADER_BUFFER.get();
+            header.clear();
+            header.order(ByteOrder.BIG_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) != -1)
+            {
+                // A read may return less than asked for, keep going until the buffer is full or the file ends
+            }
+            header.flip();
+
+            if (header.limit() >= 4 && header.getInt(0) == FLAC)
+            {
+                return parseFlac(header, length);
+            }
+            header.order(ByteOrder.LITTLE_ENDIAN);
+
+            return parse(header, length);
+        }
+    }
+
+
+    /**
+     * Read the number of seconds of audio in a wav or FLAC file.
+     *
+     * If the header can't be parsed, the length is estimated from the file's size as CD audio.
+     *
+     * @param audioFile the wav or FLAC file.
+     * @return the duration in seconds, 0 if the file can't be read.
+     */
+    public static double readDuration(File audioFile)
+    {
+
+        try
+        {
+            AudioHeader header = read(audioFile);
+            if (header._compressed)
+            {
+                return header.getSampleRate() == 0 ? 0 : (double)header.getSampleCount() / header.getSampleRate();
+            }
+            if (header.getByteRate() > 0)
+            {
+                // A header written before the length was known may be zero or too large
+                long length = header._dataLength == 0 || header._dataLength > header._available ? header._available : header._dataLength;
+
+                return (double)length / header.getByteRate();
+            }
+        }
+        catch (IOException e)
+        {
+            // Estimated below
+        }
+
+        return (double)Math.max(0, audioFile.length() - 44) / CD_BYTE_RATE;
+    }
+
+
+    /**
+     * Parse a wav file's header.
+     *
+     * @param header the start of the file.
+     * @param length the length of the whole file.
+     * @return the header.
+     * @throws IOException if it isn't a wav file.
+     */
+    private static AudioHeader parse(ByteBuffer header, long length) throws IOException
+    {
+
+        if (header.limit() < 12 || header.getInt(0) != RIFF || header.getInt(8) != WAVE)
+        {
+            throw new IOException("Not a RIFF WAVE file");
+        }
+
+        int format = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+        long pos = 12;
+        while (pos + CHUNK_HEADER <= header.limit())
+        {
+            int id = header.getInt((int)pos);
+            long size = header.getInt((int)pos + 4) & 0xFFFFFFFFL;
+            int data = (int)pos + CHUNK_HEADER;
+            if (id == FMT)
+            {
+                if (size < 16 || data + 16 > header.limit())
+                {
+                    throw new IOException("Truncated fmt chunk");
+                }
+
+                format = header.getShort(data) & 0xFFFF;
+                if (format == FORMAT_EXTENSIBLE && size >= 26 && data + 26 <= header.limit())
+                {
+                    format = header.getShort(data + 24) & 0xFFFF;
+                }
+                channels = header.getShort(data + 2) & 0xFFFF;
+                sampleRate = header.getInt(data + 4);
+                bitsPerSample = header.getShort(data + 14) & 0xFFFF;
+            }
+            else if (id == DATA)
+            {
+                if (format < 0)
+                {
+                    throw new IOException("No fmt chunk before the data chunk");
+                }
+
+                return new AudioHeader(format, channels, sampleRate, bitsPerSample, size, length - data, false);
+            }
+
+            // Chunks are padded to an even length
+            pos = data + size + (size & 1);
+        }
+
+        throw new IOException(String.format("No data chunk in the first %d bytes", Math.min(length, MAX_HEADER)));
+    }
+
+
+    /**
+     * Parse a FLAC file's STREAMINFO block, and find where the metadata ends.
+     *
+     * @param header the start of the file.
+     * @param length the length of the whole file.
+     * @return the header.
+     * @throws IOException if the STREAMINFO block is missing.
+     */
+    private static AudioHeader parseFlac(ByteBuffer header, long length) throws IOException
+    {
+
+        if (header.limit() < 8 + STREAMINFO_LENGTH || (header.get(4) & 0x7F) != 0)
+        {
+            throw new IOException("No FLAC STREAMINFO block");
+        }
+
+        // Sample rate (20 bits), channels - 1 (3), bits per sample - 1 (5) and total samples (36)
+        long info = header.getLong(18);
+        int sampleRate = (int)(info >>> 44);
+        int channels = (int)(info >>> 41 & 0x7) + 1;
+        int bitsPerSample = (int)(info >>> 36 & 0x1F) + 1;
+        long samples = info & 0xFFFFFFFFFL;
+
+        // Metadata blocks, each flagged if it's the last
+        long pos = 4;
+        boolean last = false;
+        while (!last && pos + 4 <= header.limit())
+        {
+            int blockHeader = header.getInt((int)pos);
+            last = blockHeader < 0;
+            pos += 4 + (blockHeader & 0xFFFFFF);
+        }
+
+        long blockAlign = (long)channels * ((bitsPerSample + 7) / 8);
+
+        return new AudioHeader(FORMAT_PCM, channels, sampleRate, bitsPerSample, samples * blockAlign, Math.max(0, length - pos), true);
+    }
+
+
+    /**
+     * Check the file holds as much CD audio as its header says, so a truncated or empty rip isn't encoded.
+     *
+     * @throws IOException describing what's wrong.
+     */
+    public void checkCdAudio() throws IOException
+    {
+
+        if (!isCdAudio())
+        {
+            throw new IOException(String.format("Not CD audio, %s %d Hz %d bit %d channels", _format == FORMAT_PCM ? "PCM" : "format " + _format,
+                    _sampleRate, _bitsPerSample, _channels));
+        }
+        if (_compressed && _dataLength == 0 && _available > 0)
+        {
+            throw new IOException("The STREAMINFO block has no sample count");
+        }
+        if (_dataLength == 0 || _available == 0)
+        {
+            throw new IOException("No audio");
+        }
+        if (!_compressed && _dataLength > _available)
+        {
+            throw new IOException(String.format("Truncated, the header has %d bytes of audio but the file only %d", _dataLength, _available));
+        }
+        if (!_compressed && _dataLength % getBlockAlign() != 0)
+        {
+            throw new IOException(String.format("%d bytes of audio isn't a whole number of samples", _dataLength));
+        }
+    }
+
+
+    /**
+     * Is this 44.1kHz 16 bit stereo PCM?
+     *
+     * @return whether it's CD audio.
+     */
+    public boolean isCdAudio()
+    {
+
+        return _format == FORMAT_PCM && _sampleRate == 44100 && _bitsPerSample == 16 && _channels == 2;
+    }
+
+
+    /**
+     * Get the samples per second.
+     *
+     * @return the sample rate.
+     */
+    public int getSampleRate()
+    {
+
+        return _sampleRate;
+    }
+
+
+    /**
+     * Get the number of channels.
+     *
+     * @return the channels.
+     */
+    public int getChannels()
+    {
+
+        return _channels;
+    }
+
+
+    /**
+     * Get the bits per sample.
+     *
+     * @return the bits per sample.
+     */
+    public int getBitsPerSample()
+    {
+
+        return _bitsPerSample;
+    }
+
+
+    /**
+     * Get the number of samples of each channel, according to the data chunk.
+     *
+     * @return the sample count.
+     */
+    public long getSampleCount()
+    {
+
+        int blockAlign = getBlockAlign();
+
+        return blockAlign == 0 ? 0 : _dataLength / blockAlign;
+    }
+
+
+    /**
+     * Get the bytes of each sample of every channel.
+     *
+     * @return the block align.
+     */
+    private int getBlockAlign()
+    {
+
+        return _channels * ((_bitsPerSample + 7) / 8);
+    }
+
+
+    /**
+     * Get the bytes of audio per second.
+     *
+     * @return the byte rate.
+     */
+    private long getByteRate()
+    {
+
+        return (long)getBlockAlign() * _sampleRate;
+    }
+}
@@ -0,0 +1,188 @@
+package org.boncey.cdripper.model;
+
+
+import java.util.Arrays;
+
+/**
+ * A CD's table of contents, the start of each track and of the lead-out in frames, and the freedb disc ID computed
+ * from it.
+ *
+ * freedb counts every track, so an Enhanced CD's data track, which follows the audio tracks in a session of its own,
+ * is included along with the real lead-out. Only the audio tracks before it are ripped.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public final class DiscToc
+{
+
+    /**
+     * The frames (sectors) per second of CD audio.
+     */
+    public static final int FRAMES_PER_SECOND = 75;
+
+
+    /**
+     * The two second pre-gap before the first track, which freedb includes in every offset.
+     */
+    public static final int LEAD_IN = 2 * FRAMES_PER_SECOND;
+
+
+    /**
+     * The start of each track, in frames including the lead-in.
+     */
+    private final int[] _offsets;
+
+
+    /**
+     * The start of the lead-out, in frames including the lead-in.
+     */
+    private final int _leadOut;
+
+
+    /**
+     * The number of audio tracks, the tracks after them are data.
+     */
+    private final int _audioTracks;
+
+
+    /**
+     * Public constructor, for a disc of audio tracks only.
+     *
+     * @param offsets the start of each track, in frames including the lead-in.
+     * @param leadOut the start of the lead-out, in frames including the lead-in.
+     * @throws IllegalArgumentException if there are no tracks or the offsets aren't in order.
+     */
+    public DiscToc(int[] offsets, int leadOut)
+    {
+
+        this(offsets, leadOut, offsets.length);
+    }
+
+
+    /**
+     * Public constructor.
+     *
+     * @param offsets the start of each track, in frames including the lead-in.
+     * @param leadOut the start of the lead-out, in frames including the lead-in.
+     * @param audioTracks the number of audio tracks, the tracks after them are data.
+     * @throws IllegalArgumentException if there are no audio tracks or the offsets aren't in order.
+     */
+    public DiscToc(int[] offsets, int leadOut, int audioTracks)
+    {
+
+        if (offsets.length == 0 || audioTracks < 1)
+        {
+            throw new IllegalArgumentException("The disc has no tracks");
+        }
+        if (audioTracks > offsets.length)
+        {
+            throw new IllegalArgumentException(String.format("The disc has %d audio tracks but only %d tracks", audioTracks, offsets.length));
+        }
+        for (int i = 0; i < offsets.length; i++)
+        {
+            int next = (i + 1 < offsets.length) ? offsets[i + 1] : leadOut;
+            if (offsets[i] < 0 || offsets[i] >= next)
+            {
+                throw new IllegalArgumentException(String.format("Track %d's offset %d is out of order", i + 1, offsets[i]));
+            }
+        }
+
+        _offsets = offsets.clone();
+        _leadOut = leadOut;
+        _audioTracks = audioTracks;
+    }
+
+
+    /**
+     * Get the number of tracks, including any data tracks.
+     *
+     * @return the number of tracks.
+     */
+    public int getTrackCount()
+    {
+
+        return _offsets.length;
+    }
+
+
+    /**
+     * Get the number of audio tracks, the tracks to rip.
+     *
+     * @return the number of audio tracks.
+     */
+    public int getAudioTrackCount()
+    {
+
+        return _audioTracks;
+    }
+
+
+    /**
+     * Get the start of each track.
+     *
+     * @return the offsets, in frames including the lead-in.
+     */
+    public int[] getOffsets()
+    {
+
+        return _offsets.clone();
+    }
+
+
+    /**
+     * Get the start of the lead-out.
+     *
+     * @return the lead-out, in frames including the lead-in.
+     */
+    public int getLeadOut()
+    {
+
+        return _leadOut;
+    }
+
+
+    /**
+     * Get the length of the disc, as freedb counts it.
+     *
+     * @return the seconds from the start of the disc to the lead-out, including the lead-in.
+     */
+    public int getSeconds()
+    {
+
+        return _leadOut / FRAMES_PER_SECOND;
+    }
+
+
+    /**
+     * Get the freedb disc ID, a checksum of the tracks' start times, the disc's length in seconds and the track count.
+     *
+     * @return the disc ID, as 8 lower case hex digits.
+     */
+    public String getDiscId()
+    {
+
+        int checksum = 0;
+        for (int offset : _offsets)
+        {
+            for (int seconds = offset / FRAMES_PER_SECOND; seconds > 0; seconds /= 10)
+            {
+                checksum += seconds % 10;
+            }
+        }
+        int length = getSeconds() - _offsets[0] / FRAMES_PER_SECOND;
+
+        return String.format("%08x", ((checksum % 0xff) << 24) | (length << 8) | _offsets.length);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+
+        return String.format("%s %s %d", getDiscId(), Arrays.toString(_offsets), _leadOut);
+    }
+}
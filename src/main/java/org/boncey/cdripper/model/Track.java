@@ -2,40 +2,61 @@ package org.boncey.cdripper.model;
 
 
 import java.io.File;
+import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Track info. Copyright (c) 2000-2005 Darren Greaves.
+ * Track info, parsed and validated once when created. Copyright (c) 2000-2005 Darren Greaves.
+ * 
+ * Tracks are immutable, and the artist, album and path strings are shared by every track of an album.
  * 
  * @author Darren Greaves
  * @version $Id: Track.java,v 1.4 2008-11-14 11:48:58 boncey Exp $
  */
-public class Track
+public final class Track
 {
 
     /**
-     * The track's wav file.
+     * The Pattern for matching the track name and track number.
      */
-    private File _wavFile;
+    private static final Pattern TRACK_PATTERN = Pattern.compile("^(\\d-|)(\\d+) (- |)(.+)$");
 
 
     /**
-     * The track name.
+     * The file extension of a track ripped to FLAC rather than wav.
      */
-    private String _artist;
+    private static final String FLAC_EXT = ".flac";
 
 
     /**
-     * The track name.
+     * The track's wav file, or FLAC file if it was ripped to FLAC.
+     */
+    private final File _wavFile;
+
+
+    /**
+     * The artist.
+     */
+    private final String _artist;
+
+
+    /**
+     * The album.
      */
-    private String _album;
+    private final String _album;
+
+
+    /**
+     * The track number.
+     */
+    private final String _trackNum;
 
 
     /**
      * The track name.
      */
-    private String _trackName;
+    private final String _trackName;
 
 
     /**
@@ -45,47 +66,52 @@ public class Track
 
 
     /**
-     * The Pattern for matching the track name and track number.
+     * The number of samples of each channel in the wav file, 0 if its header hasn't been read.
+     */
+    private final long _sampleCount;
+
+
+    /**
+     * The samples per second of the wav file, 0 if its header hasn't been read.
      */
-    private static final String TRACK_PATTERN = "^(\\d-|)(\\d+) (- |)(.+)$";
+    private final int _sampleRate;
 
 
     /**
-     * Private constructor.
+     * Private constructor, parsing the track number and name from the file name.
      * 
      * @param wavFile
      * @param artist
      * @param album
-     * @param trackName
+     * @param workingName the file name without its extension.
      * @param relativeBasePath
+     * @param header the wav file's header, null if it hasn't been read.
+     * @throws IllegalArgumentException if the track number and name can't be parsed.
      */
-    private Track(File wavFile, String artist, String album, String trackName, String relativeBasePath)
+    private Track(File wavFile, String artist, String album, String workingName, String relativeBasePath, AudioHeader header)
     {
 
-        _wavFile = wavFile;
-        _artist = artist;
-        _album = album;
-        _trackName = trackName;
-        _relativeBasePath = relativeBasePath;
-    }
-
-
-    /**
-     * Set the wavFile.
-     * 
-     * @param wavFile the wavFile.
-     */
-    public void setWavFile(File wavFile)
-    {
+        Matcher m = TRACK_PATTERN.matcher(workingName);
+        if (!m.matches())
+        {
+            throw new IllegalArgumentException(String.format("Unable to parse track number and name from %s", new File(relativeBasePath, workingName)));
+        }
 
         _wavFile = wavFile;
+        _artist = artist.intern();
+        _album = album.intern();
+        _trackNum = m.group(2);
+        _trackName = m.group(4);
+        _relativeBasePath = relativeBasePath.intern();
+        _sampleCount = header == null ? 0 : header.getSampleCount();
+        _sampleRate = header == null ? 0 : header.getSampleRate();
     }
 
 
     /**
      * Get the wavFile.
      * 
-     * @return the wavFile.
+     * @return the wavFile, a FLAC file if {@link #isFlac()}.
      */
     public File getWavFile()
     {
@@ -95,50 +121,96 @@ public class Track
 
 
     /**
-     * Set the track.
+     * Was this track ripped to FLAC rather than wav?
      * 
-     * @param trackName the track.
+     * @return whether its file is FLAC.
      */
-    public void setTrackName(String trackName)
+    public boolean isFlac()
     {
 
-        _trackName = trackName;
+        return _wavFile.getName().endsWith(FLAC_EXT);
     }
 
 
     /**
-     * Get the track.
+     * Get the track name.
      * 
-     * @return the track.
+     * @return the track name.
      */
     public String getTrackName()
     {
 
-        return parseTrackName(4, "name");
+        return _trackName;
     }
 
 
     /**
-     * Get the track.
+     * Get the track number.
      * 
-     * @return the track.
+     * @return the track number.
      */
     public String getTrackNum()
     {
 
-        return parseTrackName(2, "number");
+        return _trackNum;
     }
 
 
     /**
-     * Factory method for creating a {@link Track}.
+     * Factory method for creating a {@link Track} from its path alone, without reading the wav file.
      * 
      * @param wavFile
      * @param baseDir
      * @param ext
-     * @return
+     * @return the Track.
+     * @throws IllegalArgumentException if the file is not in an album directory or its name can't be parsed.
      */
     public static Track createTrack(File wavFile, File baseDir, String ext)
+    {
+
+        return createTrack(wavFile, baseDir, ext, null);
+    }
+
+
+    /**
+     * Factory method for creating a {@link Track} from a wav or FLAC file on disk, checking it holds as much CD audio
+     * as its header says so a bad rip is rejected before it's queued.
+     * 
+     * @param wavFile the wav or FLAC file.
+     * @param baseDir the base dir the album directories are in.
+     * @param ext the file extension.
+     * @return the Track, with its duration.
+     * @throws IllegalArgumentException if the file is not in an album directory, its name can't be parsed or it's not
+     *             complete CD audio.
+     */
+    public static Track readTrack(File wavFile, File baseDir, String ext)
+    {
+
+        AudioHeader header;
+        try
+        {
+            header = AudioHeader.read(wavFile);
+            header.checkCdAudio();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException(String.format("Bad %s file %s: %s", ext.substring(1), wavFile, e.getMessage()), e);
+        }
+
+        return createTrack(wavFile, baseDir, ext, header);
+    }
+
+
+    /**
+     * Create a {@link Track}, parsing the artist and album from the directory structure.
+     * 
+     * @param wavFile the wav file.
+     * @param baseDir the base dir the album directories are in.
+     * @param ext the file extension.
+     * @param header the wav file's header, null if it hasn't been read.
+     * @return the Track.
+     */
+    private static Track createTrack(File wavFile, File baseDir, String ext, AudioHeader header)
     {
 
         File wavFileParentDir = wavFile.getParentFile();
@@ -148,69 +220,47 @@ public class Track
         String album;
         String relativeBasePath;
 
-        Track track = null;
         if (parent.length >= 2)
         {
             // cdripper style 'Artist - Album'
             artist = parent[0].trim();
             album = parent[1].trim();
             relativeBasePath = tidyTrackPath(wavFileParentDir.getName());
-            track = new Track(wavFile, artist, album, trackName, relativeBasePath);
         }
         else
         {
             // iTunes style 'Artist/Album'
             if (wavFileParentDir.getParentFile().equals(baseDir))
             {
-                System.err.println(String.format("File hierarchy incorrect for %s, ignoring", wavFile));
-            }
-            else
-            {
-                artist = wavFileParentDir.getParentFile().getName();
-                album = wavFileParentDir.getName();
-                relativeBasePath = tidyTrackPath(String.format("%s - %s", artist, album));
-                track = new Track(wavFile, artist, album, trackName, relativeBasePath);
+                throw new IllegalArgumentException(String.format("File hierarchy incorrect for %s", wavFile));
             }
-        }
-
-        return track;
-    }
-
-
-    /**
-     * Parse the required field from the track name.
-     * 
-     * @param group
-     * @param field
-     * @return
-     */
-    private String parseTrackName(int group, String field)
-    {
 
-        Pattern trackPattern = Pattern.compile(TRACK_PATTERN);
-        String ret;
-        Matcher m = trackPattern.matcher(_trackName);
-        if (m.matches())
-        {
-            ret = m.group(group);
-        }
-        else
-        {
-            throw new IllegalArgumentException(String.format("Unable to parse %s from %s", field, getWorkingTrackName()));
+            artist = wavFileParentDir.getParentFile().getName();
+            album = wavFileParentDir.getName();
+            relativeBasePath = tidyTrackPath(String.format("%s - %s", artist, album));
         }
 
-        return ret;
+        return new Track(wavFile, artist, album, trackName, relativeBasePath, header);
     }
 
 
     /**
+     * Factory method for creating a {@link Track} for a freshly ripped file, using the CD info rather than the
+     * directory structure for the artist and album.
      * 
-     * @return
+     * @param wavFile the ripped file.
+     * @param ext the file extension.
+     * @param cdInfo the CD info.
+     * @return the Track.
+     * @throws IllegalArgumentException if the file name can't be parsed.
      */
-    private String getWorkingTrackName()
+    public static Track createTrack(File wavFile, String ext, CDInfo cdInfo)
     {
 
-        return new File(_relativeBasePath, _trackName).getPath();
+        String trackName = wavFile.getName().replaceFirst(ext, "");
+        String relativeBasePath = tidyTrackPath(cdInfo.getDir());
+
+        return new Track(wavFile, cdInfo.getArtist(), cdInfo.getAlbum(), trackName, relativeBasePath, null);
     }
 
 
@@ -233,62 +283,62 @@ public class Track
 
 
     /**
-     * Set the artist.
+     * Get the artist.
      * 
-     * @param artist the artist.
+     * @return the artist.
      */
-    public void setArtist(String artist)
+    public String getArtist()
     {
 
-        _artist = artist;
+        return _artist;
     }
 
 
     /**
-     * Get the artist.
+     * Get the album.
      * 
-     * @return the artist.
+     * @return the album.
      */
-    public String getArtist()
+    public String getAlbum()
     {
 
-        return _artist;
+        return _album;
     }
 
 
     /**
-     * Set the album.
+     * Get the relativeBasePath.
      * 
-     * @param album the album.
+     * @return the relativeBasePath.
      */
-    public void setAlbum(String album)
+    public String getRelativeBasePath()
     {
 
-        _album = album;
+        return _relativeBasePath;
     }
 
 
     /**
-     * Get the album.
+     * Get the number of samples of each channel in the wav file.
      * 
-     * @return the album.
+     * @return the sample count, 0 if the wav file's header wasn't read.
      */
-    public String getAlbum()
+    public long getSampleCount()
     {
 
-        return _album;
+        return _sampleCount;
     }
 
 
     /**
-     * Get the relativeBasePath.
+     * Get the length of the audio.
      * 
-     * @return the relativeBasePath.
+     * @return the duration in seconds, 0 if the wav file's header wasn't read.
      */
-    public String getRelativeBasePath()
+    public double getDuration()
     {
 
-        return _relativeBasePath;
+        return _sampleRate == 0 ? 0 : (double)_sampleCount / _sampleRate;
     }
 
 
@@ -302,8 +352,8 @@ public class Track
     public File constructFilename(File location, String extension)
     {
 
-        String filename = String.format("%s - %s", getTrackNum(), getTrackName());
-        File basePath = new File(location, getRelativeBasePath());
+        String filename = String.format("%s - %s", _trackNum, _trackName);
+        File basePath = new File(location, _relativeBasePath);
 
         return new File(basePath, filename + extension);
     }
@@ -0,0 +1,96 @@
+package org.boncey.cdripper.process;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+/**
+ * The stdout of a running process, which fails at the end of the stream if the process did not succeed so partial
+ * output is never mistaken for the whole.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class CheckedStdout extends FilterInputStream
+{
+
+    /**
+     * The process.
+     */
+    private final RunningProcess _proc;
+
+
+    /**
+     * What the process is doing, for reporting.
+     */
+    private final String _name;
+
+
+    /**
+     * Public constructor.
+     *
+     * @param proc the process, started with {@link RunningProcess#startReadingStdout(String...)}.
+     * @param name what the process is doing, for reporting.
+     */
+    public CheckedStdout(RunningProcess proc, String name)
+    {
+
+        super(proc.getStdout());
+        _proc = proc;
+        _name = name;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+
+        return checkEnd(super.read());
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+
+        return checkEnd(super.read(b, off, len));
+    }
+
+
+    /**
+     * Check the process exit status once the end of the stream is reached.
+     *
+     * @param read the result of the read.
+     * @return the result of the read.
+     * @throws IOException if the process failed.
+     */
+    private int checkEnd(int read) throws IOException
+    {
+
+        if (read == -1)
+        {
+            try
+            {
+                ProcessResult result = _proc.waitFor();
+                if (!result.isSuccess())
+                {
+                    result.reportFailure();
+                    throw new IOException(String.format("%s exited with %d", _name, result.getExitValue()));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("Interrupted waiting for %s", _name), e);
+            }
+        }
+
+        return read;
+    }
+}
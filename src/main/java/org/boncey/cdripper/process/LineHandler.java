@@ -0,0 +1,22 @@
+package org.boncey.cdripper.process;
+
+
+import java.io.IOException;
+
+/**
+ * Handles each line output by a process as it's read.
+ * 
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public interface LineHandler
+{
+
+    /**
+     * Handle a line of output.
+     * 
+     * @param line the line, without its line terminator.
+     * @throws IOException if unable to handle the line, the rest of the stream is still drained.
+     */
+    void handle(String line) throws IOException;
+}
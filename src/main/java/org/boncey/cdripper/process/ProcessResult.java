@@ -0,0 +1,119 @@
+package org.boncey.cdripper.process;
+
+
+/**
+ * The outcome of a finished process.
+ * 
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class ProcessResult
+{
+
+    /**
+     * The command that was run.
+     */
+    private final String _command;
+
+
+    /**
+     * The exit value.
+     */
+    private final int _exitValue;
+
+
+    /**
+     * The last lines written to stdout.
+     */
+    private final StreamTail _stdout;
+
+
+    /**
+     * The last lines written to stderr.
+     */
+    private final StreamTail _stderr;
+
+
+    /**
+     * Public constructor.
+     * 
+     * @param command the command that was run.
+     * @param exitValue the exit value.
+     * @param stdout the last lines written to stdout.
+     * @param stderr the last lines written to stderr.
+     */
+    public ProcessResult(String command, int exitValue, StreamTail stdout, StreamTail stderr)
+    {
+
+        _command = command;
+        _exitValue = exitValue;
+        _stdout = stdout;
+        _stderr = stderr;
+    }
+
+
+    /**
+     * Did the process exit successfully?
+     * 
+     * @return true if the exit value was zero.
+     */
+    public boolean isSuccess()
+    {
+
+        return _exitValue == 0;
+    }
+
+
+    /**
+     * Get the exitValue.
+     * 
+     * @return the exitValue.
+     */
+    public int getExitValue()
+    {
+
+        return _exitValue;
+    }
+
+
+    /**
+     * Get the last lines written to stdout.
+     * 
+     * @return the stdout tail.
+     */
+    public StreamTail getStdout()
+    {
+
+        return _stdout;
+    }
+
+
+    /**
+     * Get the last lines written to stderr.
+     * 
+     * @return the stderr tail.
+     */
+    public StreamTail getStderr()
+    {
+
+        return _stderr;
+    }
+
+
+    /**
+     * Print the output of a failed process to stderr.
+     */
+    public void reportFailure()
+    {
+
+        System.err.println(String.format("%s exited with %d", _command, _exitValue));
+        if (!_stderr.isEmpty())
+        {
+            System.err.println(_stderr);
+        }
+        else if (!_stdout.isEmpty())
+        {
+            System.err.println(_stdout);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.boncey.cdripper.process;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A running child process whose output is drained on background threads, so it can never block writing to a full
+ * pipe and the caller never blocks reading one.
+ *
+ * The last few lines of each stream are kept for diagnostics and the exit status is available as a {@link Future}.
+ *
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class RunningProcess
+{
+
+    /**
+     * Lines longer than this are split, so binary output can't use unbounded memory.
+     */
+    private static final int MAX_LINE_LENGTH = 1024;
+
+
+    /**
+     * The threads shared by all processes for draining their output and waiting for them to exit.
+     */
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "process-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * The process.
+     */
+    private final Process _proc;
+
+
+    /**
+     * The outcome, completed once the process has exited and its output has been drained.
+     */
+    private final CompletableFuture<ProcessResult> _result;
+
+
+    /**
+     * Public constructor, draining both streams of an already started process.
+     *
+     * @param proc the started process.
+     * @param command the command, for reporting.
+     * @param stdout handles each line of stdout, may be null.
+     * @param stderr handles each line of stderr, may be null.
+     * @param drainStdout false if the caller will read stdout itself.
+     */
+    public RunningProcess(Process proc, String command, LineHandler stdout, LineHandler stderr, boolean drainStdout)
+    {
+
+        _proc = proc;
+
+        StreamTail stdoutTail = new StreamTail();
+        StreamTail stderrTail = new StreamTail();
+        CompletableFuture<Void> stdoutDrained;
+        if (drainStdout)
+        {
+            stdoutDrained = CompletableFuture.runAsync(() -> drain(proc.getInputStream(), stdout, stdoutTail), DRAINERS);
+        }
+        else
+        {
+            stdoutDrained = CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> stderrDrained = CompletableFuture.runAsync(() -> drain(proc.getErrorStream(), stderr, stderrTail), DRAINERS);
+
+        _result = CompletableFuture.allOf(stdoutDrained, stderrDrained).thenApplyAsync(v -> {
+            while (true)
+            {
+                try
+                {
+                    return new ProcessResult(command, proc.waitFor(), stdoutTail, stderrTail);
+                }
+                catch (InterruptedException e)
+                {
+                    // Only the shared drainer threads wait here, keep waiting
+                }
+            }
+        }, DRAINERS);
+    }
+
+
+    /**
+     * Start a process, draining both of its streams.
+     *
+     * @param args the command.
+     * @return the running process.
+     * @throws IOException if unable to start the process.
+     */
+    public static RunningProcess start(String... args) throws IOException
+    {
+
+        return start(new ProcessBuilder(args), null, null);
+    }
+
+
+    /**
+     * Start a process, draining both of its streams.
+     *
+     * @param args the command.
+     * @param dir the working directory.
+     * @return the running process.
+     * @throws IOException if unable to start the process.
+     */
+    public static RunningProcess start(String[] args, File dir) throws IOException
+    {
+
+        return start(new ProcessBuilder(args).directory(dir), null, null);
+    }
+
+
+    /**
+     * Start a process, passing each line of output to the handlers as it's read.
+     *
+     * @param builder the process to start.
+     * @param stdout handles each line of stdout, may be null.
+     * @param stderr handles each line of stderr, may be null.
+     * @return the running process.
+     * @throws IOException if unable to start the process.
+     */
+    public static RunningProcess start(ProcessBuilder builder, LineHandler stdout, LineHandler stderr) throws IOException
+    {
+
+        return new RunningProcess(builder.start(), String.join(" ", builder.command()), stdout, stderr, true);
+    }
+
+
+    /**
+     * Start a process whose stdout will be read by the caller, only stderr is drained.
+     *
+     * @param args the command.
+     * @return the running process.
+     * @throws IOException if unable to start the process.
+     */
+    public static RunningProcess startReadingStdout(String... args) throws IOException
+    {
+
+        return new RunningProcess(new ProcessBuilder(args).start(), String.join(" ", args), null, null, false);
+    }
+
+
+    /**
+     * Get the process's stdin.
+     *
+     * @return the stdin.
+     */
+    public OutputStream getStdin()
+    {
+
+        return _proc.getOutputStream();
+    }
+
+
+    /**
+     * Get the process's stdout, only to be read if it is not being drained.
+     *
+     * @return the stdout.
+     */
+    public InputStream getStdout()
+    {
+
+        return _proc.getInputStream();
+    }
+
+
+    /**
+     * Get the outcome, completed once the process has exited and its output has been drained.
+     *
+     * @return the outcome.
+     */
+    public Future<ProcessResult> getResult()
+    {
+
+        return _result;
+    }
+
+
+    /**
+     * Wait for the process to exit and its output to be drained.
+     *
+     * @return the outcome.
+     * @throws InterruptedException if this thread is interrupted.
+     */
+    public ProcessResult waitFor() throws InterruptedException
+    {
+
+        try
+        {
+            return _result.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Unable to wait for process", e.getCause());
+        }
+    }
+
+
+    /**
+     * Kill the process.
+     */
+    public void destroy()
+    {
+
+        _proc.destroy();
+    }
+
+
+    /**
+     * Read a stream until it ends, keeping its tail and passing each line to the handler.
+     *
+     * @param in the stream.
+     * @param handler handles each line, may be null.
+     * @param tail keeps the last lines.
+     */
+    private static void drain(InputStream in, LineHandler handler, StreamTail tail)
+    {
+
+        try (Reader reader = new InputStreamReader(in))
+        {
+            LineHandler current = handler;
+            StringBuilder line = new StringBuilder();
+            char[] buffer = new char[4096];
+            int len = reader.read(buffer);
+            while (len != -1)
+            {
+                for (int i = 0; i < len; i++)
+                {
+                    char c = buffer[i];
+                    if (c == '\n' || line.length() == MAX_LINE_LENGTH)
+                    {
+                        current = emit(line, current, tail);
+                    }
+
+                    if (c != '\n' && c != '\r')
+                    {
+                        line.append(c);
+                    }
+                }
+                len = reader.read(buffer);
+            }
+
+            if (line.length() > 0)
+            {
+                emit(line, current, tail);
+            }
+        }
+        catch (IOException e)
+        {
+            // The process has gone
+        }
+    }
+
+
+    /**
+     * Pass a complete line on and clear it.
+     *
+     * @param line the line.
+     * @param handler handles the line, may be null.
+     * @param tail keeps the last lines.
+     * @return the handler to use for later lines, null once the handler has failed.
+     */
+    private static LineHandler emit(StringBuilder line, LineHandler handler, StreamTail tail)
+    {
+
+        String text = line.toString();
+        line.setLength(0);
+        tail.add(text);
+
+        if (handler != null)
+        {
+            try
+            {
+                handler.handle(text);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                System.err.println("Unable to handle process output: " + e.getMessage());
+                return null;
+            }
+        }
+
+        return handler;
+    }
+}
@@ -0,0 +1,75 @@
+package org.boncey.cdripper.process;
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps the last few lines output by a process, for diagnostics.
+ * 
+ * @author Darren Greaves
+ * @version $Id$ Copyright (c) 2010 Darren Greaves.
+ */
+public class StreamTail
+{
+
+    /**
+     * The number of lines kept.
+     */
+    private static final int MAX_LINES = 20;
+
+
+    /**
+     * The lines kept, oldest first.
+     */
+    private final Deque<String> _lines;
+
+
+    /**
+     * Public constructor.
+     */
+    public StreamTail()
+    {
+
+        _lines = new ArrayDeque<>();
+    }
+
+
+    /**
+     * Add a line, discarding the oldest if full.
+     * 
+     * @param line the line.
+     */
+    public synchronized void add(String line)
+    {
+
+        if (_lines.size() == MAX_LINES)
+        {
+            _lines.removeFirst();
+        }
+        _lines.addLast(line);
+    }
+
+
+    /**
+     * Is the tail empty?
+     * 
+     * @return true if no lines were output.
+     */
+    public synchronized boolean isEmpty()
+    {
+
+        return _lines.isEmpty();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString()
+    {
+
+        return String.join(System.lineSeparator(), _lines);
+    }
+}